@@ -0,0 +1,715 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import plugins.Freetalk.SubscribedBoard.BoardMessageLink;
+import plugins.Freetalk.SubscribedBoard.BoardThreadLink;
+import plugins.Freetalk.exceptions.NoSuchMessageException;
+
+/**
+ * An immutable in-memory snapshot of the content of a {@link SubscribedBoard}: Its threads, their replies, the read-flags and the counters
+ * which the user interfaces display.
+ *
+ * Obtained from {@link SubscribedBoard#getProjection()}. A projection never changes after it was built so it can be used without locking the
+ * board or the database. When a transaction which changes the board is committed, {@link SubscribedBoard} replaces its projection with a
+ * new one which contains the changed links - objects obtained from an old projection stay valid but show the old state.
+ *
+ * The projection only contains the data of the {@link BoardMessageLink} objects. To display the text or author of a message, the message
+ * has to be obtained from the {@link MessageManager} by its ID.
+ */
+public final class BoardProjection {
+
+	/**
+	 * The state of a single {@link BoardMessageLink} at the time the projection was built.
+	 */
+	public static class MessageSummary {
+
+		private final String mMessageID;
+
+		private final String mThreadID;
+
+		private final String mAuthorID;
+
+		private final String mTitle;
+
+		private final long mDate;
+
+		private final int mIndex;
+
+		private final boolean mWasRead;
+
+		private final boolean mWasFetched;
+
+		private MessageSummary(final BoardMessageLink link) {
+			mMessageID = link.getMessageID();
+			mThreadID = link.getThreadID();
+			mAuthorID = link.getAuthorID();
+			mTitle = link.getMessageTitle();
+			mDate = link.getMessageDate().getTime();
+			mIndex = link.getIndex();
+			mWasRead = link.wasRead();
+			mWasFetched = link.wasFetched();
+		}
+
+		private MessageSummary(final MessageSummary message) {
+			mMessageID = message.mMessageID;
+			mThreadID = message.mThreadID;
+			mAuthorID = message.mAuthorID;
+			mTitle = message.mTitle;
+			mDate = message.mDate;
+			mIndex = message.mIndex;
+			mWasRead = message.mWasRead;
+			mWasFetched = message.mWasFetched;
+		}
+
+		public final String getMessageID() {
+			return mMessageID;
+		}
+
+		public final String getThreadID() {
+			return mThreadID;
+		}
+
+		/**
+		 * Get the ID of the author. Notice that it is taken from the message ID and might not be true if the message was not fetched yet,
+		 * see {@link #wasFetched()}.
+		 */
+		public final String getAuthorID() {
+			return mAuthorID;
+		}
+
+		/**
+		 * Get the title of the message. If the message was not fetched yet, this is a guess.
+		 */
+		public final String getTitle() {
+			return mTitle;
+		}
+
+		/**
+		 * Get the date of the message. If the message was not fetched yet, this is a guess.
+		 */
+		public final Date getDate() {
+			return new Date(mDate);
+		}
+
+		/**
+		 * Get the index of the message in the board, see {@link BoardMessageLink#getIndex()}.
+		 */
+		public final int getIndex() {
+			return mIndex;
+		}
+
+		public final boolean wasRead() {
+			return mWasRead;
+		}
+
+		/**
+		 * @return False if the message is only referenced by other messages and was not downloaded yet.
+		 */
+		public final boolean wasFetched() {
+			return mWasFetched;
+		}
+	}
+
+	/**
+	 * The state of a {@link BoardThreadLink} and its replies at the time the projection was built.
+	 */
+	public static final class ThreadSummary extends MessageSummary {
+
+		private final long mLastReplyDate;
+
+		private final boolean mWasThreadRead;
+
+		private final List<MessageSummary> mReplies;
+
+		private final int mUnreadReplyCount;
+
+		/**
+		 * Constructs a summary without replies, see {@link BoardProjection#summarize(BoardMessageLink)}.
+		 */
+		private ThreadSummary(final BoardThreadLink link) {
+			super(link);
+			mLastReplyDate = link.getLastReplyDate().getTime();
+			mWasThreadRead = link.wasThreadRead();
+			mReplies = Collections.emptyList();
+			mUnreadReplyCount = 0;
+		}
+
+		private ThreadSummary(final ThreadSummary thread, final List<MessageSummary> replies) {
+			super(thread);
+			mLastReplyDate = thread.mLastReplyDate;
+			mWasThreadRead = thread.mWasThreadRead;
+			mReplies = Collections.unmodifiableList(replies);
+
+			int unreadReplyCount = 0;
+			for(MessageSummary reply : replies) {
+				if(!reply.wasRead())
+					++unreadReplyCount;
+			}
+			mUnreadReplyCount = unreadReplyCount;
+		}
+
+		public Date getLastReplyDate() {
+			return new Date(mLastReplyDate);
+		}
+
+		/**
+		 * Gets the "thread was read flag". This is false if the thread contains a single unread message.
+		 */
+		public boolean wasThreadRead() {
+			return mWasThreadRead;
+		}
+
+		/**
+		 * Get the replies to the thread, sorted ascending by date.
+		 */
+		public List<MessageSummary> getReplies() {
+			return mReplies;
+		}
+
+		public int getReplyCount() {
+			return mReplies.size();
+		}
+
+		public int getUnreadReplyCount() {
+			return mUnreadReplyCount;
+		}
+	}
+
+
+	/**
+	 * The maximal number of changes which are kept by projections which were not built yet, see {@link #getState()}. If it is exceeded,
+	 * the projection is built when it is constructed so the chain of changes does not grow without bounds if nobody reads the board.
+	 */
+	private static final int MAX_PENDING_CHANGES = 4096;
+
+	/**
+	 * The content of a projection. Built when it is accessed the first time, see {@link #getState()}.
+	 */
+	private static final class State {
+
+		/**
+		 * The threads of the board, sorted by {@link BoardProjection#LAST_REPLY_DATE_DESCENDING} like {@link SubscribedBoard#getThreads()}.
+		 */
+		private final List<ThreadSummary> mThreads;
+
+		private final HashMap<String, ThreadSummary> mThreadsByID;
+
+		/**
+		 * The replies of all threads by thread ID, sorted ascending by date. Also contains the replies to threads of which the board does
+		 * not contain a {@link BoardThreadLink}. The lists are shared with the projections which are built from this one.
+		 */
+		private final HashMap<String, List<MessageSummary>> mRepliesByThreadID;
+
+		/**
+		 * All messages of the board, sorted ascending by index.
+		 */
+		private final List<MessageSummary> mMessagesByIndex;
+
+		private final int mUnreadMessageCount;
+
+		/**
+		 * The latest message which was fetched, null if there is none. See {@link SubscribedBoard#getLatestMessage()}.
+		 */
+		private final MessageSummary mLatestMessage;
+
+		/**
+		 * Builds the state from all messages of a board.
+		 *
+		 * @param messages All messages of the board, sorted ascending by index. The summaries of threads do not contain their replies yet.
+		 */
+		private State(final ArrayList<MessageSummary> messages) {
+			final HashMap<String, ArrayList<MessageSummary>> repliesByThreadID = new HashMap<String, ArrayList<MessageSummary>>();
+
+			for(MessageSummary message : messages) {
+				if(message instanceof ThreadSummary)
+					continue;
+
+				ArrayList<MessageSummary> replies = repliesByThreadID.get(message.mThreadID);
+				if(replies == null) {
+					replies = new ArrayList<MessageSummary>();
+					repliesByThreadID.put(message.mThreadID, replies);
+				}
+				replies.add(message);
+			}
+
+			mRepliesByThreadID = new HashMap<String, List<MessageSummary>>(repliesByThreadID.size() * 2);
+			for(Map.Entry<String, ArrayList<MessageSummary>> entry : repliesByThreadID.entrySet()) {
+				Collections.sort(entry.getValue(), DATE_ASCENDING);
+				mRepliesByThreadID.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+			}
+
+			final ArrayList<ThreadSummary> threads = new ArrayList<ThreadSummary>();
+			mThreadsByID = new HashMap<String, ThreadSummary>();
+
+			int unreadMessageCount = 0;
+			MessageSummary latestMessage = null;
+
+			for(int i = 0; i < messages.size(); ++i) {
+				MessageSummary message = messages.get(i);
+
+				if(message instanceof ThreadSummary) {
+					final ThreadSummary thread = new ThreadSummary((ThreadSummary)message, getReplies(mRepliesByThreadID, message.mThreadID));
+					messages.set(i, thread);
+					threads.add(thread);
+					mThreadsByID.put(thread.getThreadID(), thread);
+					message = thread;
+				}
+
+				if(!message.mWasRead)
+					++unreadMessageCount;
+
+				if(message.mWasFetched && isLater(message, latestMessage))
+					latestMessage = message;
+			}
+
+			Collections.sort(threads, LAST_REPLY_DATE_DESCENDING);
+
+			mThreads = Collections.unmodifiableList(threads);
+			mMessagesByIndex = Collections.unmodifiableList(messages);
+			mUnreadMessageCount = unreadMessageCount;
+			mLatestMessage = latestMessage;
+		}
+
+		/**
+		 * Builds the state which equals the given one except for the given changes. Only the threads to which a changed link belongs are
+		 * built again, the summaries and reply lists of all other threads are shared with the old state.
+		 *
+		 * @param changes See {@link BoardProjection#BoardProjection(BoardProjection, Map)}.
+		 */
+		private State(final State old, final Map<Integer, MessageSummary> changes) {
+			final ArrayList<MessageSummary> messages = applyChanges(old.mMessagesByIndex, changes);
+
+			// Collect the changed threads, the changed links by thread and the previous summaries of the changed links.
+			final HashSet<String> changedThreadIDs = new HashSet<String>(changes.size() * 2);
+			final HashMap<String, ThreadSummary> changedThreads = new HashMap<String, ThreadSummary>();
+			final HashMap<String, ArrayList<MessageSummary>> changedReplies = new HashMap<String, ArrayList<MessageSummary>>();
+			final HashMap<Integer, MessageSummary> oldSummaries = new HashMap<Integer, MessageSummary>(changes.size() * 2);
+			for(Map.Entry<Integer, MessageSummary> change : changes.entrySet()) {
+				final MessageSummary changed = change.getValue();
+				if(changed instanceof ThreadSummary) {
+					changedThreadIDs.add(changed.mThreadID);
+					changedThreads.put(changed.mThreadID, (ThreadSummary)changed);
+				} else if(changed != null) {
+					changedThreadIDs.add(changed.mThreadID);
+					ArrayList<MessageSummary> replies = changedReplies.get(changed.mThreadID);
+					if(replies == null) {
+						replies = new ArrayList<MessageSummary>();
+						changedReplies.put(changed.mThreadID, replies);
+					}
+					replies.add(changed);
+				}
+
+				final MessageSummary oldSummary = getMessageByIndex(old.mMessagesByIndex, change.getKey());
+				if(oldSummary != null) {
+					changedThreadIDs.add(oldSummary.mThreadID);
+					oldSummaries.put(change.getKey(), oldSummary);
+				}
+			}
+
+			// Rebuild the reply lists of the changed threads from their old lists and the changes.
+			mRepliesByThreadID = new HashMap<String, List<MessageSummary>>(old.mRepliesByThreadID);
+			for(String threadID : changedThreadIDs) {
+				final ArrayList<MessageSummary> replies = new ArrayList<MessageSummary>();
+
+				for(MessageSummary reply : getReplies(old.mRepliesByThreadID, threadID)) {
+					if(!changes.containsKey(reply.mIndex))
+						replies.add(reply);
+				}
+
+				if(changedReplies.containsKey(threadID))
+					replies.addAll(changedReplies.get(threadID));
+
+				if(replies.isEmpty())
+					mRepliesByThreadID.remove(threadID);
+				else {
+					Collections.sort(replies, DATE_ASCENDING);
+					mRepliesByThreadID.put(threadID, Collections.unmodifiableList(replies));
+				}
+			}
+
+			// Rebuild the summaries of the changed threads. Their position in the thread list might have changed.
+			mThreadsByID = new HashMap<String, ThreadSummary>(old.mThreadsByID);
+			final HashSet<ThreadSummary> removedThreads = new HashSet<ThreadSummary>();
+			final ArrayList<ThreadSummary> addedThreads = new ArrayList<ThreadSummary>();
+
+			for(String threadID : changedThreadIDs) {
+				final ThreadSummary oldThread = old.mThreadsByID.get(threadID);
+				if(oldThread != null) {
+					removedThreads.add(oldThread);
+					mThreadsByID.remove(threadID);
+				}
+			}
+
+			for(String threadID : changedThreadIDs) {
+				final ThreadSummary oldThread = old.mThreadsByID.get(threadID);
+				final ThreadSummary thread;
+
+				// The thread link itself might have been changed or added, the summaries in the changes do not contain replies.
+				final ThreadSummary changedThread = changedThreads.get(threadID);
+
+				if(changedThread != null)
+					thread = new ThreadSummary(changedThread, getReplies(mRepliesByThreadID, threadID));
+				else if(oldThread != null && !changes.containsKey(oldThread.getIndex()))
+					thread = new ThreadSummary(oldThread, getReplies(mRepliesByThreadID, threadID));
+				else
+					continue; // The thread link was deleted or does not exist
+
+				mThreadsByID.put(threadID, thread);
+				addedThreads.add(thread);
+				messages.set(getPosition(messages, thread.getIndex()), thread);
+			}
+
+			final ArrayList<ThreadSummary> threads = new ArrayList<ThreadSummary>(old.mThreads.size() + addedThreads.size());
+			for(ThreadSummary thread : old.mThreads) {
+				if(!removedThreads.contains(thread))
+					threads.add(thread);
+			}
+			for(ThreadSummary thread : addedThreads) {
+				final int position = Collections.binarySearch(threads, thread, LAST_REPLY_DATE_DESCENDING);
+				threads.add(position < 0 ? -position - 1 : position, thread);
+			}
+
+			// The counters only change by the changed links: Rebuilding a thread summary does not change its flags.
+			int unreadMessageCount = old.mUnreadMessageCount;
+			for(MessageSummary oldSummary : oldSummaries.values()) {
+				if(!oldSummary.mWasRead)
+					--unreadMessageCount;
+			}
+			for(MessageSummary changed : changes.values()) {
+				if(changed != null && !changed.mWasRead)
+					++unreadMessageCount;
+			}
+
+			MessageSummary latestMessage = old.mLatestMessage;
+			if(latestMessage != null && changes.containsKey(latestMessage.mIndex)) {
+				// The latest message was changed or deleted, find the new one
+				latestMessage = null;
+				for(MessageSummary message : messages) {
+					if(message.mWasFetched && isLater(message, latestMessage))
+						latestMessage = message;
+				}
+			} else {
+				for(MessageSummary changed : changes.values()) {
+					if(changed != null && changed.mWasFetched && isLater(changed, latestMessage))
+						latestMessage = changed;
+				}
+				if(latestMessage != null) // Use the rebuilt summary if it is a thread
+					latestMessage = messages.get(getPosition(messages, latestMessage.mIndex));
+			}
+
+			mThreads = Collections.unmodifiableList(threads);
+			mMessagesByIndex = Collections.unmodifiableList(messages);
+			mUnreadMessageCount = unreadMessageCount;
+			mLatestMessage = latestMessage;
+		}
+	}
+
+
+	/**
+	 * The content of this projection, null if it was not built yet. Protected by the lock of this projection.
+	 */
+	private volatile State mState;
+
+	/**
+	 * The projection from which this one is built by applying {@link #mChanges}, null if it is built already.
+	 */
+	private BoardProjection mBase;
+
+	/**
+	 * The changes which have to be applied to {@link #mBase}, null if this projection is built already.
+	 */
+	private Map<Integer, MessageSummary> mChanges;
+
+	/**
+	 * The number of changes which have to be applied to the nearest projection which is built already to build this one.
+	 */
+	private final int mPendingChangeCount;
+
+
+	private static final Comparator<MessageSummary> INDEX_ASCENDING = new Comparator<MessageSummary>() {
+		public int compare(MessageSummary a, MessageSummary b) {
+			return a.mIndex < b.mIndex ? -1 : (a.mIndex > b.mIndex ? 1 : 0);
+		}
+	};
+
+	/**
+	 * Messages with the same date are sorted ascending by index so the order does not depend on how the projection was built.
+	 */
+	private static final Comparator<MessageSummary> DATE_ASCENDING = new Comparator<MessageSummary>() {
+		public int compare(MessageSummary a, MessageSummary b) {
+			if(a.mDate != b.mDate)
+				return a.mDate < b.mDate ? -1 : 1;
+			return INDEX_ASCENDING.compare(a, b);
+		}
+	};
+
+	/**
+	 * Threads with the same last reply date are sorted ascending by index so the order does not depend on how the projection was built.
+	 */
+	private static final Comparator<ThreadSummary> LAST_REPLY_DATE_DESCENDING = new Comparator<ThreadSummary>() {
+		public int compare(ThreadSummary a, ThreadSummary b) {
+			if(a.mLastReplyDate != b.mLastReplyDate)
+				return a.mLastReplyDate > b.mLastReplyDate ? -1 : 1;
+			return INDEX_ASCENDING.compare(a, b);
+		}
+	};
+
+
+	/**
+	 * Get the current state of the given link for passing it to {@link #BoardProjection(BoardProjection, Map)}. For a
+	 * {@link BoardThreadLink} this is a ThreadSummary without replies, the replies are filled in by the projection.
+	 * You have to synchronize on the board of the link when calling this function.
+	 */
+	protected static MessageSummary summarize(final BoardMessageLink link) {
+		if(link instanceof BoardThreadLink)
+			return new ThreadSummary((BoardThreadLink)link);
+		else
+			return new MessageSummary(link);
+	}
+
+	/**
+	 * Builds the projection from the given links, which must be all links of a board sorted ascending by index.
+	 * Does not need any locks: If a link is changed concurrently, the caller has to apply the change with
+	 * {@link #BoardProjection(BoardProjection, Map)} afterwards.
+	 */
+	protected BoardProjection(final Iterable<BoardMessageLink> links) {
+		final ArrayList<MessageSummary> messages = new ArrayList<MessageSummary>();
+		for(BoardMessageLink link : links)
+			messages.add(summarize(link));
+
+		mState = new State(messages);
+		mBase = null;
+		mChanges = null;
+		mPendingChangeCount = 0;
+	}
+
+	/**
+	 * Creates a projection which equals the given one except for the given changed links, without using the database.
+	 *
+	 * Only the changes are stored, so this is fast enough to be called when a transaction is committed. The projection is built when it
+	 * is accessed the first time, by the thread which accesses it, see {@link #getState()}. Changes of several commits are applied in one
+	 * step then.
+	 *
+	 * @param changes The changed links, keyed by {@link BoardMessageLink#getIndex()}. The values are the results of
+	 * 	{@link #summarize(BoardMessageLink)}, null for deleted links.
+	 */
+	protected BoardProjection(final BoardProjection old, final Map<Integer, MessageSummary> changes) {
+		mState = null;
+		mBase = old;
+		mChanges = new HashMap<Integer, MessageSummary>(changes);
+		mPendingChangeCount = (old.mState != null ? 0 : old.mPendingChangeCount) + changes.size();
+
+		if(mPendingChangeCount > MAX_PENDING_CHANGES)
+			getState();
+	}
+
+	/**
+	 * Get the content of this projection, builds it if necessary: The changes of all projections between this one and the nearest one
+	 * which was built already are merged and applied in one step.
+	 */
+	private State getState() {
+		final State state = mState;
+		if(state != null)
+			return state;
+
+		synchronized(this) {
+			if(mState != null)
+				return mState;
+
+			final ArrayList<Map<Integer, MessageSummary>> changeSets = new ArrayList<Map<Integer, MessageSummary>>();
+			changeSets.add(mChanges);
+
+			// Locking the projections one after another from the newest to the oldest cannot deadlock: A projection which is being built
+			// only locks older ones.
+			BoardProjection base = mBase;
+			State baseState;
+			while(true) {
+				synchronized(base) {
+					baseState = base.mState;
+					if(baseState != null)
+						break;
+
+					changeSets.add(base.mChanges);
+					base = base.mBase;
+				}
+			}
+
+			final HashMap<Integer, MessageSummary> changes = new HashMap<Integer, MessageSummary>(mPendingChangeCount * 2);
+			for(int i = changeSets.size() - 1; i >= 0; --i)
+				changes.putAll(changeSets.get(i));
+
+			mState = new State(baseState, changes);
+			mBase = null;
+			mChanges = null;
+			return mState;
+		}
+	}
+
+	/**
+	 * Get the messages with the changes applied, sorted ascending by index. The summaries of changed threads do not contain their
+	 * replies yet.
+	 */
+	private static ArrayList<MessageSummary> applyChanges(final List<MessageSummary> oldMessages, final Map<Integer, MessageSummary> changes) {
+		final ArrayList<MessageSummary> messages = new ArrayList<MessageSummary>(oldMessages.size() + changes.size());
+		final HashSet<Integer> appliedIndices = new HashSet<Integer>(changes.size() * 2);
+
+		for(MessageSummary message : oldMessages) {
+			final Integer index = message.mIndex;
+
+			if(changes.containsKey(index)) {
+				final MessageSummary changed = changes.get(index);
+				if(changed != null) // Null means that the link was deleted
+					messages.add(changed);
+				appliedIndices.add(index);
+			} else
+				messages.add(message);
+		}
+
+		// The remaining changes are new links. New links get a higher index than all existing ones so they can usually be appended.
+		final ArrayList<MessageSummary> added = new ArrayList<MessageSummary>();
+		for(Map.Entry<Integer, MessageSummary> change : changes.entrySet()) {
+			if(change.getValue() != null && !appliedIndices.contains(change.getKey()))
+				added.add(change.getValue());
+		}
+		Collections.sort(added, INDEX_ASCENDING);
+
+		final boolean sorted = messages.isEmpty() || added.isEmpty() || messages.get(messages.size() - 1).mIndex < added.get(0).mIndex;
+		messages.addAll(added);
+
+		if(!sorted)
+			Collections.sort(messages, INDEX_ASCENDING);
+
+		return messages;
+	}
+
+	/**
+	 * @return True if the given message is a better candidate for {@link #getLatestMessage()} than the current one, which may be null.
+	 * 	Of messages with the same date the one with the lowest index is chosen so the result does not depend on the order of the updates.
+	 */
+	private static boolean isLater(final MessageSummary message, final MessageSummary current) {
+		return current == null || message.mDate > current.mDate || (message.mDate == current.mDate && message.mIndex < current.mIndex);
+	}
+
+	private static List<MessageSummary> getReplies(final HashMap<String, List<MessageSummary>> repliesByThreadID, final String threadID) {
+		final List<MessageSummary> replies = repliesByThreadID.get(threadID);
+		if(replies == null)
+			return Collections.emptyList();
+		return replies;
+	}
+
+	/**
+	 * Get the position of the message with the given index in the given list which is sorted ascending by index, -1 if there is none.
+	 */
+	private static int getPosition(final List<MessageSummary> messages, final int index) {
+		int low = 0;
+		int high = messages.size() - 1;
+
+		while(low <= high) {
+			final int middle = (low + high) >>> 1;
+			final int middleIndex = messages.get(middle).mIndex;
+
+			if(middleIndex < index)
+				low = middle + 1;
+			else if(middleIndex > index)
+				high = middle - 1;
+			else
+				return middle;
+		}
+
+		return -1;
+	}
+
+	private static MessageSummary getMessageByIndex(final List<MessageSummary> messages, final int index) {
+		final int position = getPosition(messages, index);
+		return position >= 0 ? messages.get(position) : null;
+	}
+
+	/**
+	 * Get all threads of the board, sorted descending by the date of their last reply.
+	 */
+	public List<ThreadSummary> getThreads() {
+		return getState().mThreads;
+	}
+
+	public ThreadSummary getThread(final String threadID) throws NoSuchMessageException {
+		final ThreadSummary thread = getState().mThreadsByID.get(threadID);
+
+		if(thread == null)
+			throw new NoSuchMessageException(threadID);
+
+		return thread;
+	}
+
+	/**
+	 * Get all messages of the board, sorted ascending by index. Includes the threads.
+	 */
+	public List<MessageSummary> getMessages() {
+		return getState().mMessagesByIndex;
+	}
+
+	public MessageSummary getMessageByIndex(final int index) throws NoSuchMessageException {
+		final MessageSummary message = getMessageByIndex(getState().mMessagesByIndex, index);
+
+		if(message == null)
+			throw new NoSuchMessageException();
+
+		return message;
+	}
+
+	public int getMessageCount() {
+		return getState().mMessagesByIndex.size();
+	}
+
+	public int getUnreadMessageCount() {
+		return getState().mUnreadMessageCount;
+	}
+
+	/**
+	 * @throws NoSuchMessageException If the board is empty.
+	 */
+	public int getFirstMessageIndex() throws NoSuchMessageException {
+		final List<MessageSummary> messages = getState().mMessagesByIndex;
+
+		if(messages.isEmpty())
+			throw new NoSuchMessageException();
+
+		return messages.get(0).getIndex();
+	}
+
+	/**
+	 * @throws NoSuchMessageException If the board is empty.
+	 */
+	public int getLastMessageIndex() throws NoSuchMessageException {
+		final List<MessageSummary> messages = getState().mMessagesByIndex;
+
+		if(messages.isEmpty())
+			throw new NoSuchMessageException();
+
+		return messages.get(messages.size() - 1).getIndex();
+	}
+
+	/**
+	 * Get the latest message which was fetched.
+	 * @throws NoSuchMessageException If no message of the board was fetched yet.
+	 */
+	public MessageSummary getLatestMessage() throws NoSuchMessageException {
+		final MessageSummary latestMessage = getState().mLatestMessage;
+
+		if(latestMessage == null)
+			throw new NoSuchMessageException();
+
+		return latestMessage;
+	}
+
+}
@@ -31,6 +31,9 @@ public final class Configuration extends Persistent {
 	
 	public static transient final String MINIMUM_TRUSTER_COUNT = "Introduction.MinimumTrusterCount";
 	
+	/** Parameter name for the number of seconds for which an own message list waits for further messages before it is inserted. */
+	public static transient final String MESSAGELIST_INSERT_DELAY = "MessageList.InsertDelay";
+	
 	public static transient final String NNTP_SERVER_ENABLED = "NNTP.ServerEnabled";
 
 	/** Parameter name for the {@code bindTo} parameter. */
@@ -39,6 +42,15 @@ public final class Configuration extends Persistent {
 	/** Parameter name for the {@code allowedHosts} parameter. */
 	public static transient final String NNTP_SERVER_ALLOWED_HOSTS = "NNTP.AllowedHosts";
 
+	/** Parameter name for the maximal number of clients which can be connected to the NNTP server at once. */
+	public static transient final String NNTP_SERVER_MAX_CONNECTIONS = "NNTP.MaxConnections";
+
+	/** Parameter name for the number of seconds after which the NNTP server disconnects a client which did not send a command. */
+	public static transient final String NNTP_SERVER_IDLE_TIMEOUT = "NNTP.IdleTimeout";
+
+	/** Parameter name for the maximal size in bytes of an article which a client can send to the NNTP server. */
+	public static transient final String NNTP_SERVER_MAX_POST_SIZE = "NNTP.MaxPostSize";
+
 
 	/**
 	 * The database format version of this Freetalk-database.
@@ -298,9 +310,27 @@ public final class Configuration extends Persistent {
 			set(MINIMUM_TRUSTER_COUNT, 5);
 		}
 		
+		if(!containsInt(MESSAGELIST_INSERT_DELAY)) {
+			set(MESSAGELIST_INSERT_DELAY, Freetalk.FAST_DEBUG_MODE ? 30 : 5 * 60);
+		}
+		
 		if (!containsBoolean(NNTP_SERVER_ENABLED)) {
 			set(NNTP_SERVER_ENABLED, false);
 		}
+		
+		if(!containsInt(NNTP_SERVER_MAX_CONNECTIONS)) {
+			set(NNTP_SERVER_MAX_CONNECTIONS, 16);
+		}
+		
+		if(!containsInt(NNTP_SERVER_IDLE_TIMEOUT)) {
+			// RFC 3977 says that the timeout should be at least 3 minutes.
+			set(NNTP_SERVER_IDLE_TIMEOUT, 10 * 60);
+		}
+		
+		if(!containsInt(NNTP_SERVER_MAX_POST_SIZE)) {
+			// The text of a message can have 64 KiB, the rest is for the headers and for the encoding of the text
+			set(NNTP_SERVER_MAX_POST_SIZE, 2 * Message.MAX_MESSAGE_TEXT_BYTE_LENGTH);
+		}
 	}
 
 }
@@ -0,0 +1,293 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Formats and parses the dates which Freetalk shows and exchanges: The dates in message XML, in NNTP articles and responses and on the
+ * web interface. All functions may be called by any thread without locking.
+ *
+ * SimpleDateFormat is not thread-safe, so shared instances have to be locked for each use and all NNTP connections and web requests
+ * would serialize on them. The fixed formats are computed arithmetically instead, which needs neither a lock nor a Calendar. The
+ * localized formats of the web interface use one DateFormat per thread.
+ */
+public final class DateFormatter {
+
+	private static final long MILLIS_PER_SECOND = 1000;
+
+	private static final long MILLIS_PER_DAY = 24 * 60 * 60 * MILLIS_PER_SECOND;
+
+	private static final String[] DAY_NAMES = { "Mon", "Tue", "Wed", "Thu", "Fri", "Sat", "Sun" };
+
+	private static final String[] MONTH_NAMES = { "Jan", "Feb", "Mar", "Apr", "May", "Jun", "Jul", "Aug", "Sep", "Oct", "Nov", "Dec" };
+
+	/**
+	 * The time zone of the RFC 5322 dates. NNTP clients run on the same computer so they get the local time, as they did when
+	 * SimpleDateFormat was used. The default time zone is read once because {@link TimeZone#getDefault()} returns a new clone each time.
+	 */
+	private static final TimeZone LOCAL_TIME_ZONE = TimeZone.getDefault();
+
+	/**
+	 * The number of cached RFC 5322 dates. Must be a power of two.
+	 */
+	private static final int RFC5322_CACHE_SIZE = 1024;
+
+	/**
+	 * Recently formatted RFC 5322 dates. The slot of a date is determined by its second so the lookup does not need a lock: A slot
+	 * contains an immutable {@link FormattedSecond} which is replaced as a whole if a different second is formatted.
+	 */
+	private static final AtomicReferenceArray<FormattedSecond> mRFC5322Cache = new AtomicReferenceArray<FormattedSecond>(RFC5322_CACHE_SIZE);
+
+	private static final ThreadLocal<DateFormat> mLocalDateTimeFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return DateFormat.getDateTimeInstance();
+		}
+	};
+
+	private static final ThreadLocal<DateFormat> mLocalShortDateTimeFormat = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return DateFormat.getInstance();
+		}
+	};
+
+	private static final class FormattedSecond {
+		private final long mSecond;
+		private final String mText;
+
+		public FormattedSecond(final long second, final String text) {
+			mSecond = second;
+			mText = text;
+		}
+	}
+
+
+	private DateFormatter() {
+	}
+
+	/**
+	 * Format a date as specified by RFC 5322 in the local time zone, as used in the Date header of NNTP articles:
+	 * "Thu, 1 Jan 1970 01:00:00 +0100". The formatted dates are cached per second.
+	 */
+	public static String formatRFC5322(final Date date) {
+		final long second = floorDiv(date.getTime(), MILLIS_PER_SECOND);
+		final int slot = (int)(second & (RFC5322_CACHE_SIZE - 1));
+
+		final FormattedSecond cached = mRFC5322Cache.get(slot);
+		if(cached != null && cached.mSecond == second)
+			return cached.mText;
+
+		final long millis = second * MILLIS_PER_SECOND;
+		final int offset = LOCAL_TIME_ZONE.getOffset(millis);
+		// Historical offsets can contain seconds: They are applied to the time but not printed, like SimpleDateFormat does.
+		final int offsetMinutes = offset / (60 * 1000);
+		final long localMillis = millis + offset;
+		final long days = floorDiv(localMillis, MILLIS_PER_DAY);
+		final long civil = civilFromDays(days);
+
+		final StringBuilder sb = new StringBuilder(31);
+		sb.append(DAY_NAMES[(int)floorMod(days + 3, 7)]); // 1970-01-01 was a Thursday
+		sb.append(", ");
+		sb.append(civil % 100);
+		sb.append(' ');
+		sb.append(MONTH_NAMES[(int)(civil / 100 % 100) - 1]);
+		sb.append(' ');
+		appendPadded(sb, civil / 10000, 4);
+		sb.append(' ');
+		appendTime(sb, localMillis, ':');
+		sb.append(' ');
+		sb.append(offsetMinutes < 0 ? '-' : '+');
+		appendPadded(sb, Math.abs(offsetMinutes) / 60, 2);
+		appendPadded(sb, Math.abs(offsetMinutes) % 60, 2);
+
+		final String text = sb.toString();
+		mRFC5322Cache.set(slot, new FormattedSecond(second, text));
+		return text;
+	}
+
+	/**
+	 * Format a date as used by the NNTP DATE command: "yyyyMMddHHmmss" in UTC.
+	 */
+	public static String formatNNTPDate(final Date date) {
+		final StringBuilder sb = new StringBuilder(14);
+		appendDate(sb, date.getTime(), (char)0);
+		appendTime(sb, date.getTime(), (char)0);
+		return sb.toString();
+	}
+
+	/**
+	 * Format a date as used in message XML: "yyyy-MM-dd HH:mm:ss" in UTC.
+	 */
+	public static String formatXMLDateTime(final Date date) {
+		final StringBuilder sb = new StringBuilder(19);
+		appendDate(sb, date.getTime(), '-');
+		sb.append(' ');
+		appendTime(sb, date.getTime(), ':');
+		return sb.toString();
+	}
+
+	/**
+	 * Format a date as used in message list XML: "yyyy-MM-dd" in UTC.
+	 */
+	public static String formatXMLDate(final Date date) {
+		final StringBuilder sb = new StringBuilder(10);
+		appendDate(sb, date.getTime(), '-');
+		return sb.toString();
+	}
+
+	/**
+	 * Parse a date which was formatted by {@link #formatXMLDateTime(Date)}.
+	 */
+	public static Date parseXMLDateTime(final String text) throws ParseException {
+		return parseUTC(text, "-- ::");
+	}
+
+	/**
+	 * Parse a date which was formatted by {@link #formatXMLDate(Date)}.
+	 */
+	public static Date parseXMLDate(final String text) throws ParseException {
+		return parseUTC(text, "--");
+	}
+
+	/**
+	 * Format a date with the default date and time style of the local locale and time zone, for the web interface.
+	 */
+	public static String formatLocalDateTime(final Date date) {
+		return mLocalDateTimeFormat.get().format(date);
+	}
+
+	/**
+	 * Format a date with the short date and time style of the local locale and time zone, for the web interface.
+	 */
+	public static String formatLocalShortDateTime(final Date date) {
+		return mLocalShortDateTimeFormat.get().format(date);
+	}
+
+	/**
+	 * Parse a sequence of numbers which are separated by the given separators: Year, month, day, hour, minute, second. The omitted
+	 * fields are 0.
+	 */
+	private static Date parseUTC(final String text, final String separators) throws ParseException {
+		final int[] fields = new int[6];
+		int position = 0;
+
+		for(int i = 0; i <= separators.length(); ++i) {
+			if(i > 0) {
+				if(position >= text.length() || text.charAt(position) != separators.charAt(i - 1))
+					throw new ParseException("Invalid date: " + text, position);
+				++position;
+			}
+
+			final int start = position;
+			int value = 0;
+			char c;
+			while(position < text.length() && position - start < 9 && (c = text.charAt(position)) >= '0' && c <= '9') {
+				value = value * 10 + (c - '0');
+				++position;
+			}
+
+			if(position == start)
+				throw new ParseException("Invalid date: " + text, position);
+
+			fields[i] = value;
+		}
+
+		if(position != text.length())
+			throw new ParseException("Invalid date: " + text, position);
+
+		if(fields[1] < 1 || fields[1] > 12 || fields[2] < 1 || fields[2] > 31 || fields[3] > 23 || fields[4] > 59 || fields[5] > 60)
+			throw new ParseException("Invalid date: " + text, 0);
+
+		final long days = daysFromCivil(fields[0], fields[1], fields[2]);
+		return new Date(days * MILLIS_PER_DAY + ((fields[3] * 60L + fields[4]) * 60L + fields[5]) * MILLIS_PER_SECOND);
+	}
+
+	/**
+	 * Append the UTC date "yyyy", "MM", "dd" of the given time, separated by the given separator unless it is 0.
+	 */
+	private static void appendDate(final StringBuilder sb, final long millis, final char separator) {
+		final long civil = civilFromDays(floorDiv(millis, MILLIS_PER_DAY));
+
+		appendPadded(sb, civil / 10000, 4);
+		if(separator != 0)
+			sb.append(separator);
+		appendPadded(sb, civil / 100 % 100, 2);
+		if(separator != 0)
+			sb.append(separator);
+		appendPadded(sb, civil % 100, 2);
+	}
+
+	/**
+	 * Append the UTC time "HH", "mm", "ss" of the given time, separated by the given separator unless it is 0.
+	 */
+	private static void appendTime(final StringBuilder sb, final long millis, final char separator) {
+		final long seconds = floorMod(millis, MILLIS_PER_DAY) / MILLIS_PER_SECOND;
+
+		appendPadded(sb, seconds / 3600, 2);
+		if(separator != 0)
+			sb.append(separator);
+		appendPadded(sb, seconds / 60 % 60, 2);
+		if(separator != 0)
+			sb.append(separator);
+		appendPadded(sb, seconds % 60, 2);
+	}
+
+	private static void appendPadded(final StringBuilder sb, final long value, final int digits) {
+		long limit = 1;
+		for(int i = 1; i < digits; ++i)
+			limit *= 10;
+
+		for(; limit > 1 && value < limit; limit /= 10)
+			sb.append('0');
+		sb.append(value);
+	}
+
+	/**
+	 * Convert a number of days since 1970-01-01 to a date of the proleptic Gregorian calendar.
+	 * Algorithm from http://howardhinnant.github.io/date_algorithms.html
+	 *
+	 * @return The date as year * 10000 + month * 100 + day.
+	 */
+	private static long civilFromDays(final long days) {
+		final long z = days + 719468;
+		final long era = (z >= 0 ? z : z - 146096) / 146097;
+		final long dayOfEra = z - era * 146097;
+		final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		final long monthIndex = (5 * dayOfYear + 2) / 153; // March == 0
+		final long day = dayOfYear - (153 * monthIndex + 2) / 5 + 1;
+		final long month = monthIndex < 10 ? monthIndex + 3 : monthIndex - 9;
+		final long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+		return year * 10000 + month * 100 + day;
+	}
+
+	/**
+	 * The inverse of {@link #civilFromDays(long)}. Days which exceed the length of the month continue into the next month.
+	 */
+	private static long daysFromCivil(long year, final long month, final long day) {
+		if(month <= 2)
+			--year;
+		final long era = (year >= 0 ? year : year - 399) / 400;
+		final long yearOfEra = year - era * 400;
+		final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+		final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+
+	private static long floorDiv(final long dividend, final long divisor) {
+		final long quotient = dividend / divisor;
+		return (dividend % divisor < 0) ? quotient - 1 : quotient;
+	}
+
+	private static long floorMod(final long dividend, final long divisor) {
+		return dividend - floorDiv(dividend, divisor) * divisor;
+	}
+
+}
@@ -5,6 +5,7 @@ package plugins.Freetalk;
 
 import java.io.File;
 import java.lang.reflect.Field;
+import java.util.HashMap;
 
 import plugins.Freetalk.WoT.WoTIdentity;
 import plugins.Freetalk.WoT.WoTIdentityManager;
@@ -78,7 +79,7 @@ public final class Freetalk implements FredPlugin, FredPluginFCP, FredPluginL10n
 	public static final String WOT_PLUGIN_URI = "/WebOfTrust";
 	public static final String WOT_CONTEXT = PLUGIN_TITLE;
 	public static final String DATABASE_FILENAME = PLUGIN_TITLE + ".db4o";
-	public static final int DATABASE_FORMAT_VERSION = 1;
+	public static final int DATABASE_FORMAT_VERSION = 6;
 
 	/* References from the node */
 	
@@ -206,7 +207,7 @@ public final class Freetalk implements FredPlugin, FredPluginFCP, FredPluginL10n
 
 		if(logDEBUG) Logger.debug(this, "Creating message list inserter...");
 		mMessageListInserter = new WoTMessageListInserter(mPluginRespirator.getNode(), mPluginRespirator.getHLSimpleClient(), "Freetalk WoTMessageListInserter",
-				mIdentityManager, mMessageManager, mMessageListXML);
+				this, mIdentityManager, mMessageManager, mMessageListXML);
 		mMessageListInserter.start();
 		
 		// They need each users so they must be started after they exist all three.
@@ -237,7 +238,9 @@ public final class Freetalk implements FredPlugin, FredPluginFCP, FredPluginL10n
 			if (allowedHosts == null) {
 				allowedHosts = "127.0.0.1";
 			}
-			mNNTPServer = new FreetalkNNTPServer(this, 1199, bindTo, allowedHosts);
+			mNNTPServer = new FreetalkNNTPServer(this, 1199, bindTo, allowedHosts,
+					mConfig.getInt(Configuration.NNTP_SERVER_MAX_CONNECTIONS), mConfig.getInt(Configuration.NNTP_SERVER_IDLE_TIMEOUT) * 1000,
+					mConfig.getInt(Configuration.NNTP_SERVER_MAX_POST_SIZE));
 			mNNTPServer.start();
 		} else {
             if(logDEBUG) Logger.debug(this, "NNTP server disabled by user...");
@@ -299,6 +302,7 @@ public final class Freetalk implements FredPlugin, FredPluginFCP, FredPluginL10n
         	IdentityStatistics.class,
         	Message.class,
         	Message.Attachment.class,
+        	Message.CompressedText.class,
         	MessageList.class,
         	MessageList.MessageReference.class,
         	MessageList.MessageFetchFailedMarker.class,
@@ -399,6 +403,177 @@ public final class Freetalk implements FredPlugin, FredPluginFCP, FredPluginL10n
 		}
 		*/
 		
+		if(oldVersion == 1) {
+			Logger.normal(this, "Upgrading database version " + oldVersion);
+			
+			synchronized(mMessageManager) {
+				Logger.normal(this, "Compressing message texts...");
+				
+				final Query q = db.query();
+				q.constrain(Message.class);
+				q.descend("mText").constrain(null).identity().not();
+				
+				int count = 0;
+				
+				synchronized(Persistent.transactionLock(db)) {
+					try {
+						for(Message message : new Persistent.InitializingObjectSet<Message>(this, q)) {
+							message.compressTextWithoutCommit();
+							
+							// Commit in chunks to keep the transaction small. This is safe because messages which were not compressed yet
+							// are still readable and will be compressed when the upgrade is run again after a crash.
+							if(++count % 256 == 0)
+								Persistent.checkedCommit(db, this);
+						}
+						Persistent.checkedCommit(db, this);
+					} catch(RuntimeException e) {
+						Persistent.checkedRollbackAndThrow(db, this, e);
+					}
+				}
+				
+				Logger.normal(this, "Compressed the texts of " + count + " messages.");
+			}
+			
+			mConfig.setDatabaseFormatVersion(++oldVersion);
+			mConfig.storeAndCommit();
+			Logger.normal(this, "Upgraded database to version " + oldVersion);
+		}
+		
+		if(oldVersion == 2) {
+			Logger.normal(this, "Upgrading database version " + oldVersion);
+			
+			synchronized(mMessageManager) {
+				Logger.normal(this, "Computing index keys of message IDs...");
+				
+				synchronized(Persistent.transactionLock(db)) {
+					try {
+						Query q = db.query();
+						q.constrain(Message.class);
+						int count = 0;
+						for(Message message : new Persistent.InitializingObjectSet<Message>(this, q)) {
+							message.computeIndexKeysWithoutCommit();
+							++count;
+						}
+						Logger.normal(this, "Computed index keys of " + count + " messages.");
+						
+						q = db.query();
+						q.constrain(SubscribedBoard.BoardMessageLink.class);
+						count = 0;
+						for(SubscribedBoard.BoardMessageLink link : new Persistent.InitializingObjectSet<SubscribedBoard.BoardMessageLink>(this, q)) {
+							link.computeIndexKeysWithoutCommit();
+							++count;
+						}
+						Logger.normal(this, "Computed index keys of " + count + " board message links.");
+						
+						Persistent.checkedCommit(db, this);
+					} catch(RuntimeException e) {
+						Persistent.checkedRollbackAndThrow(db, this, e);
+					}
+				}
+			}
+			
+			mConfig.setDatabaseFormatVersion(++oldVersion);
+			mConfig.storeAndCommit();
+			Logger.normal(this, "Upgraded database to version " + oldVersion);
+		}
+		
+		if(oldVersion == 3) {
+			Logger.normal(this, "Upgrading database version " + oldVersion);
+			
+			synchronized(mMessageManager) {
+				Logger.normal(this, "Resetting the cached free own message list indices...");
+				
+				// IdentityStatistics objects which were stored before the field existed do not contain the -1 which marks the index
+				// as not computed yet. It is computed when it is first needed.
+				synchronized(Persistent.transactionLock(db)) {
+					try {
+						for(IdentityStatistics stats : mMessageManager.getAllIdentityStatistics()) {
+							stats.setFreeOwnMessageListIndex(-1);
+							stats.storeWithoutCommit();
+						}
+						Persistent.checkedCommit(db, this);
+					} catch(RuntimeException e) {
+						Persistent.checkedRollbackAndThrow(db, this, e);
+					}
+				}
+			}
+			
+			mConfig.setDatabaseFormatVersion(++oldVersion);
+			mConfig.storeAndCommit();
+			Logger.normal(this, "Upgraded database to version " + oldVersion);
+		}
+		
+		if(oldVersion == 4) {
+			Logger.normal(this, "Upgrading database version " + oldVersion);
+			
+			synchronized(mMessageManager) {
+				Logger.normal(this, "Computing link dates of board message links...");
+				
+				synchronized(Persistent.transactionLock(db)) {
+					try {
+						final Query q = db.query();
+						q.constrain(SubscribedBoard.BoardMessageLink.class);
+						int count = 0;
+						for(SubscribedBoard.BoardMessageLink link : new Persistent.InitializingObjectSet<SubscribedBoard.BoardMessageLink>(this, q)) {
+							link.computeLinkDateWithoutCommit();
+							++count;
+						}
+						Logger.normal(this, "Computed link dates of " + count + " board message links.");
+						
+						Persistent.checkedCommit(db, this);
+					} catch(RuntimeException e) {
+						Persistent.checkedRollbackAndThrow(db, this, e);
+					}
+				}
+			}
+			
+			mConfig.setDatabaseFormatVersion(++oldVersion);
+			mConfig.storeAndCommit();
+			Logger.normal(this, "Upgraded database to version " + oldVersion);
+		}
+		
+		if(oldVersion == 5) {
+			Logger.normal(this, "Upgrading database version " + oldVersion);
+			
+			synchronized(mMessageManager) {
+				Logger.normal(this, "Computing message counts of identity statistics...");
+				
+				synchronized(Persistent.transactionLock(db)) {
+					try {
+						final HashMap<String, IdentityStatistics> statistics = new HashMap<String, IdentityStatistics>();
+						
+						final Query q = db.query();
+						q.constrain(Message.class);
+						q.constrain(OwnMessage.class).not();
+						int count = 0;
+						for(Message message : new Persistent.InitializingObjectSet<Message>(this, q)) {
+							final Identity author = message.getAuthor();
+							IdentityStatistics stats = statistics.get(author.getID());
+							if(stats == null) {
+								stats = mMessageManager.getOrCreateIdentityStatistics(author);
+								statistics.put(author.getID(), stats);
+							}
+							stats.onMessageStored(message);
+							++count;
+						}
+						
+						for(IdentityStatistics stats : statistics.values())
+							stats.storeWithoutCommit();
+						
+						Logger.normal(this, "Counted " + count + " messages of " + statistics.size() + " identities.");
+						
+						Persistent.checkedCommit(db, this);
+					} catch(RuntimeException e) {
+						Persistent.checkedRollbackAndThrow(db, this, e);
+					}
+				}
+			}
+			
+			mConfig.setDatabaseFormatVersion(++oldVersion);
+			mConfig.storeAndCommit();
+			Logger.normal(this, "Upgraded database to version " + oldVersion);
+		}
+		
 		if(oldVersion == Freetalk.DATABASE_FORMAT_VERSION)
 			return;
 		
@@ -590,6 +765,10 @@ public final class Freetalk implements FredPlugin, FredPluginFCP, FredPluginL10n
 		return mMessageInserter;
 	}
 	
+	public WoTMessageListInserter getMessageListInserter() {
+		return mMessageListInserter;
+	}
+	
 	public WoTMessageManager getMessageManager() {
 		return mMessageManager;
 	}
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk;
 
+import java.util.Date;
+
 import plugins.Freetalk.MessageList.MessageListID;
 import plugins.Freetalk.exceptions.NoSuchMessageListException;
 import freenet.support.Logger;
@@ -29,6 +31,29 @@ public final class IdentityStatistics extends Persistent {
 	 */
 	private long mLowestFetchedMessageListIndex = -1;
 	
+	/**
+	 * Only used for {@link OwnIdentity}s: The index at which the next {@link OwnMessageList} can be inserted. All indices which are equal to
+	 * or higher than it are free. -1 if it was not computed yet, see {@link #getFreeOwnMessageListIndex()}.
+	 */
+	private long mFreeOwnMessageListIndex = -1;
+	
+	/**
+	 * The amount of fetched messages of this identity, {@link OwnMessage}s are not counted.
+	 * Kept up to date by {@link #onMessageStored(Message)} and {@link #onMessageDeleted(Message)} so the web interface does not need to
+	 * query all messages of the identity for displaying it.
+	 */
+	private int mMessageCount = 0;
+	
+	/**
+	 * The amount of fetched messages of this identity which are threads, {@link OwnMessage}s are not counted.
+	 */
+	private int mThreadCount = 0;
+	
+	/**
+	 * The latest {@link Message#getDate()} of the fetched messages of this identity, null if there are none.
+	 */
+	private Date mLatestMessageDate = null;
+	
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
@@ -55,6 +80,29 @@ public final class IdentityStatistics extends Persistent {
 			throw new IllegalStateException("mLowestFetchedMessageListIndex==" + mLowestFetchedMessageListIndex 
 					+ "; mHighestFetchedMessageListIndex==" + mHighestFetchedMessageListIndex);
 		
+		if(mFreeOwnMessageListIndex < -1)
+			throw new IllegalStateException("mFreeOwnMessageListIndex==" + mFreeOwnMessageListIndex);
+		
+		if(mThreadCount < 0 || mThreadCount > mMessageCount)
+			throw new IllegalStateException("mMessageCount==" + mMessageCount + "; mThreadCount==" + mThreadCount);
+		
+		if((mMessageCount == 0) ^ (mLatestMessageDate == null))
+			throw new IllegalStateException("mMessageCount==" + mMessageCount + "; mLatestMessageDate==" + mLatestMessageDate);
+		
+		{
+			int messageCount = 0;
+			int threadCount = 0;
+			for(final Message message : mFreetalk.getMessageManager().getMessagesBy(getIdentity())) {
+				++messageCount;
+				if(message.isThread())
+					++threadCount;
+			}
+			
+			if(messageCount != mMessageCount || threadCount != mThreadCount)
+				throw new IllegalStateException("mMessageCount==" + mMessageCount + "; mThreadCount==" + mThreadCount 
+						+ "; actual message count==" + messageCount + "; actual thread count==" + threadCount);
+		}
+		
 		if(mLowestFetchedMessageListIndex >= 0) {
 			final MessageManager messageManager = mFreetalk.getMessageManager();
 			
@@ -140,6 +188,109 @@ public final class IdentityStatistics extends Persistent {
 		if(mHighestFetchedMessageListIndex == -1) mHighestFetchedMessageListIndex = index;
 	}
 	
+	/**
+	 * Get the index at which the next {@link OwnMessageList} of this identity can be inserted.
+	 * 
+	 * @return -1 if the index is not known yet. It then has to be computed from the message lists in the database and set with
+	 * 	{@link #setFreeOwnMessageListIndex(long)}. Once it is known, it is kept up to date by {@link #onMessageListIndexTaken(long)}.
+	 */
+	public final synchronized long getFreeOwnMessageListIndex() {
+		checkedActivate(1);
+		return mFreeOwnMessageListIndex;
+	}
+	
+	// TODO: This is public since we need it in WoTMessageManager.
+	public final synchronized void setFreeOwnMessageListIndex(long index) {
+		checkedActivate(1);
+		
+		if(index < -1)
+			throw new IllegalArgumentException("Illegal index: " + index);
+		
+		mFreeOwnMessageListIndex = index;
+	}
+	
+	/**
+	 * Must be called when a message list of this identity with the given index is created, inserted or fetched so that the index will not be
+	 * returned by {@link #getFreeOwnMessageListIndex()}.
+	 * Message lists which are only marked as DataNotFound do not take their index.
+	 */
+	// TODO: This is public since we need it in WoTMessageManager.
+	public final synchronized void onMessageListIndexTaken(long index) {
+		checkedActivate(1);
+		
+		// If the free index is not known yet, the message list will be considered when computing it. 
+		if(mFreeOwnMessageListIndex != -1 && index >= mFreeOwnMessageListIndex)
+			mFreeOwnMessageListIndex = index + 1;
+	}
+	
+	/**
+	 * Get the amount of fetched messages of this identity. Does not query the database.
+	 */
+	public final synchronized int getMessageCount() {
+		checkedActivate(1);
+		return mMessageCount;
+	}
+	
+	/**
+	 * Get the amount of fetched messages of this identity which are threads. Does not query the database.
+	 */
+	public final synchronized int getThreadCount() {
+		checkedActivate(1);
+		return mThreadCount;
+	}
+	
+	/**
+	 * Get the date of the latest fetched message of this identity. Does not query the database.
+	 * 
+	 * @return The latest {@link Message#getDate()}, null if no message of this identity was fetched.
+	 */
+	public final synchronized Date getLatestMessageDate() {
+		checkedActivate(1); // Date is a db4o primitive type so 1 is enough
+		return mLatestMessageDate;
+	}
+	
+	/**
+	 * Must be called when a message of this identity is stored in the database for the first time.
+	 * Own messages must not be passed, they are counted when they are fetched as normal messages.
+	 */
+	protected final synchronized void onMessageStored(final Message message) {
+		if(message instanceof OwnMessage)
+			throw new IllegalArgumentException("OwnMessage are not allowed: " + message);
+		
+		checkedActivate(1);
+		
+		++mMessageCount;
+		if(message.isThread())
+			++mThreadCount;
+		
+		final Date date = message.getDate();
+		if(mLatestMessageDate == null || date.after(mLatestMessageDate))
+			mLatestMessageDate = date;
+	}
+	
+	/**
+	 * Must be called when a message of this identity is deleted from the database.
+	 * 
+	 * The latest message date is only cleared once all messages are deleted: Messages of an identity are only deleted together with the
+	 * identity, recomputing the date from the remaining messages after each deletion would make that O(N*N).
+	 */
+	protected final synchronized void onMessageDeleted(final Message message) {
+		if(message instanceof OwnMessage)
+			throw new IllegalArgumentException("OwnMessage are not allowed: " + message);
+		
+		checkedActivate(1);
+		
+		if(mMessageCount <= 0)
+			throw new IllegalStateException("mMessageCount==" + mMessageCount + " for " + message);
+		
+		--mMessageCount;
+		if(message.isThread())
+			--mThreadCount;
+		
+		if(mMessageCount == 0)
+			mLatestMessageDate = null;
+	}
+	
 	private final void expandHighestAvailableMessageListIndex() {
 		final MessageManager messageManager = mFreetalk.getMessageManager();
 		
@@ -318,7 +469,9 @@ public final class IdentityStatistics extends Persistent {
 			throwIfNotStored(mIdentity);
 			
 			if(logDEBUG) Logger.debug(this, "Storing for " + getIdentity() + " with mLowestFetchedMessageListIndex == " + mLowestFetchedMessageListIndex
-					+ "; mHighestFetchedMessageListIndex == " + mHighestFetchedMessageListIndex);
+					+ "; mHighestFetchedMessageListIndex == " + mHighestFetchedMessageListIndex
+					+ "; mFreeOwnMessageListIndex == " + mFreeOwnMessageListIndex
+					+ "; mMessageCount == " + mMessageCount + "; mThreadCount == " + mThreadCount);
 			
 			checkedStore();
 		}
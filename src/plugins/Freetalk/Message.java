@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk;
 
+import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.Date;
@@ -10,6 +11,9 @@ import java.util.List;
 import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.UUID;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import javax.activation.MimeType;
 import javax.activation.MimeTypeParseException;
@@ -86,8 +90,14 @@ public abstract class Message extends Persistent {
 	/**
 	 * The parent thread ID which was calculated from {@link mThreadURI}
 	 */
-	@IndexedField /* IndexedField for being able to query all messages of a thread */
 	protected final String mThreadID;
+	
+	/**
+	 * The {@link MessageID#getIndexKey(String)} of {@link #mThreadID}, 0 if this message is a thread.
+	 * Not final because {@link Freetalk#upgradeDatabase()} computes it for messages of old databases.
+	 */
+	@IndexedField /* IndexedField for being able to query all messages of a thread */
+	protected long mThreadKey;
 
 	/**
 	 * The URI of the message to which this message is a reply. Null if it is a thread.
@@ -97,8 +107,14 @@ public abstract class Message extends Persistent {
 	/**
 	 * The parent message ID which was calculated from {@link mParentURI}
 	 */
-	@IndexedField /* IndexedField for being able to get all replies to a message */
 	protected final String mParentID;
+	
+	/**
+	 * The {@link MessageID#getIndexKey(String)} of {@link #mParentID}, 0 if this message is a thread.
+	 * Not final because {@link Freetalk#upgradeDatabase()} computes it for messages of old databases.
+	 */
+	@IndexedField /* IndexedField for being able to get all replies to a message */
+	protected long mParentKey;
 
 	/**
 	 * The boards to which this message was posted, in alphabetical order.
@@ -116,13 +132,105 @@ public abstract class Message extends Persistent {
 	 */
 	protected final Date mDate;
 
-	protected final String mText;
+	/**
+	 * The text of messages which were stored with database format version 1. Null for all other messages: Their text is stored in
+	 * {@link #mCompressedText}. Not final because {@link Freetalk#upgradeDatabase()} moves it to {@link #mCompressedText}.
+	 */
+	protected String mText;
+
+	/**
+	 * The text of the message. It is a separate object so that it is only loaded from the database when {@link #getText()} is called -
+	 * thread lists, message lists and NNTP overviews only need the other fields of the message.
+	 */
+	protected CompressedText mCompressedText;
 
 	/**
 	 * The attachments of this message, in the order in which they were received in the original message.
 	 */
 	protected final Attachment[] mAttachments;
 
+	/**
+	 * Stores the text of a {@link Message} as Deflate-compressed UTF-8.
+	 */
+	public static final class CompressedText extends Persistent {
+
+		private final byte[] mData;
+
+		/**
+		 * The length of the uncompressed UTF-8 data in bytes.
+		 */
+		private final int mLength;
+
+		protected CompressedText(String text) {
+			final byte[] utf8;
+			try {
+				utf8 = text.getBytes("UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+
+			final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+			try {
+				deflater.setInput(utf8);
+				deflater.finish();
+
+				final ByteArrayOutputStream output = new ByteArrayOutputStream(utf8.length / 2 + 16);
+				final byte[] buffer = new byte[4096];
+				while(!deflater.finished()) {
+					final int length = deflater.deflate(buffer);
+					output.write(buffer, 0, length);
+				}
+
+				mData = output.toByteArray();
+				mLength = utf8.length;
+			} finally {
+				deflater.end();
+			}
+		}
+
+		public void databaseIntegrityTest() throws Exception {
+			checkedActivate(1);
+
+			if(mData == null)
+				throw new NullPointerException("mData==null");
+
+			if(mLength < 0 || mLength > MAX_MESSAGE_TEXT_BYTE_LENGTH)
+				throw new IllegalStateException("mLength is invalid: " + mLength);
+
+			if(!isTextValid(getText()))
+				throw new IllegalStateException("Text is not valid");
+		}
+
+		public String getText() {
+			checkedActivate(1); // byte[] is a db4o primitive type so 1 is enough
+
+			final Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(mData);
+				final byte[] utf8 = new byte[mLength];
+				int length = 0;
+				while(length < mLength && !inflater.finished()) {
+					final int inflated = inflater.inflate(utf8, length, mLength - length);
+					if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					length += inflated;
+				}
+
+				if(length != mLength)
+					throw new RuntimeException("Compressed text is truncated: Inflated " + length + " of " + mLength + " bytes");
+
+				return new String(utf8, "UTF-8");
+			} catch (DataFormatException e) {
+				throw new RuntimeException(e);
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			} finally {
+				inflater.end();
+			}
+		}
+
+	}
+
 	public static class Attachment extends Persistent {
 		private Message mMessage;
 		
@@ -377,6 +485,37 @@ public abstract class Message extends Persistent {
 		public final IdentityID getAuthorID() {
 			return mAuthorID;
 		}
+		
+		/**
+		 * Get the compact, fixed-width key of this ID, see {@link #getIndexKey(String)}.
+		 */
+		public final long getIndexKey() {
+			return mUUID.getMostSignificantBits() ^ mUUID.getLeastSignificantBits();
+		}
+		
+		/**
+		 * Get the compact, fixed-width key of the given message ID. It is stored alongside ID strings and indexed instead of them:
+		 * Index entries of a long are a fraction of the size of the ~80 character ID strings and much cheaper to compare.
+		 * 
+		 * The key is computed from the random UUID of the message so two different IDs only have the same key with negligible probability.
+		 * Queries should nevertheless constrain the ID string as well, db4o will then use the index of the key and only compare the strings
+		 * of the few candidates it yields.
+		 * 
+		 * Does not validate the ID and does not throw: The key of an invalid ID is not a key of any stored ID (except by chance), so queries
+		 * for it will not find anything, as they would when querying for the invalid ID string.
+		 */
+		public static final long getIndexKey(final String id) {
+			final int uuidEnd = id.indexOf('@');
+			
+			if(uuidEnd > 0) {
+				try {
+					final UUID uuid = UUID.fromString(id.substring(0, uuidEnd));
+					return uuid.getMostSignificantBits() ^ uuid.getLeastSignificantBits();
+				} catch(IllegalArgumentException e) { }
+			}
+			
+			return id.hashCode();
+		}
 
 		public final boolean equals(final Object o) {
 			if(o instanceof MessageID)
@@ -458,6 +597,9 @@ public abstract class Message extends Persistent {
 		/* If the given thread URI is null, the message will be a thread */
 		mThreadURI = newThreadURI != null ? newThreadURI.clone() : null;
 		mThreadID = newThreadURI != null ? newThreadURI.getMessageID() : null;
+		
+		mParentKey = mParentID != null ? MessageID.getIndexKey(mParentID) : 0;
+		mThreadKey = mThreadID != null ? MessageID.getIndexKey(mThreadID) : 0;
 
 		if(mID.equals(mParentID))
 			throw new InvalidParameterException("A message cannot be parent of itself.");
@@ -477,13 +619,16 @@ public abstract class Message extends Persistent {
 			mDate = newDate; // TODO: Check out whether Date provides a function for getting the timezone and throw an Exception if not UTC.
 		}
 
-		mText = makeTextValid(newText);
+		final String text = makeTextValid(newText);
 
 		if (!isTitleValid(mTitle)) // TODO: Usability: Change the function to "throwIfTitleIsInvalid" so it can give a reason.
 			throw new InvalidParameterException("Invalid message title in message " + newURI);
 
-		if (!isTextValid(mText)) // TODO: Usability: Change the function to "throwIfTextIsInvalid" so it can give a reason.
+		if (!isTextValid(text)) // TODO: Usability: Change the function to "throwIfTextIsInvalid" so it can give a reason.
 			throw new InvalidParameterException("Invalid message text in message " + newURI);
+		
+		mText = null;
+		mCompressedText = new CompressedText(text);
 
 		if(newAttachments != null) {
 			if(newAttachments.size() > MAX_ATTACHMENTS_PER_MESSAGE)
@@ -583,12 +728,21 @@ public abstract class Message extends Persistent {
 	    	
 	    	if(!threadID.equals(mThreadID))
 	    		throw new IllegalStateException("mThreadURI==" + mThreadURI + " but mThreadID=="+threadID);
+	    	
+	    	if(mParentKey != MessageID.getIndexKey(mParentID))
+	    		throw new IllegalStateException("mParentKey does not match mParentID: " + mParentKey);
+	    	
+	    	if(mThreadKey != MessageID.getIndexKey(mThreadID))
+	    		throw new IllegalStateException("mThreadKey does not match mThreadID: " + mThreadKey);
 	    } else { // Parent URI is null => Thread URI is null => No parent message / thread should be set.
 	    	if(mParent != null)
 	    		throw new IllegalStateException("mParent == " + mParent);
 	    	
 	    	if(mThread != null)
 	    		throw new IllegalStateException("mThread == " + mThread);
+	    	
+	    	if(mParentKey != 0 || mThreadKey != 0)
+	    		throw new IllegalStateException("mParentKey == " + mParentKey + "; mThreadKey == " + mThreadKey);
 	    }
 
 	    {
@@ -623,8 +777,16 @@ public abstract class Message extends Persistent {
 	    if(!isTitleValid(mTitle)) // Checks for null aswell
 	    	throw new IllegalStateException("Title is not valid: " + mTitle);
 	    
-	    if(!isTextValid(mText)) // Checks for null aswell
-	    	throw new IllegalStateException("Text is not valid");
+	    if(mText != null) {
+	    	if(mCompressedText != null)
+	    		throw new IllegalStateException("Both mText and mCompressedText are set");
+	    	
+	    	if(!isTextValid(mText))
+	    		throw new IllegalStateException("Text is not valid");
+	    } else if(mCompressedText == null)
+	    	throw new NullPointerException("mCompressedText==null");
+	    
+	    // mCompressedText inherits class Persistent and therefore has its own integrity test
 	    
 	    if(mDate == null)
 	    	throw new NullPointerException("mDate==null");
@@ -867,10 +1029,44 @@ public abstract class Message extends Persistent {
 	 * Get the text of the message.
 	 */
 	public final String getText() {
-		checkedActivate(1); // String is a db4o primitive type so 1 is enough
-		assert(mText != null);
-
-		return mText;
+		checkedActivate(1);
+		
+		if(mText != null) // Not upgraded yet, see compressTextWithoutCommit()
+			return mText;
+		
+		assert(mCompressedText != null);
+		mCompressedText.initializeTransient(mFreetalk);
+		return mCompressedText.getText();
+	}
+	
+	/**
+	 * Computes {@link #mParentKey} and {@link #mThreadKey} for a message which was stored with database format version 2 or older.
+	 * Used by {@link Freetalk#upgradeDatabase()}.
+	 * 
+	 * You have to synchronize on the transaction lock when calling this function and commit the transaction afterwards.
+	 */
+	protected final synchronized void computeIndexKeysWithoutCommit() {
+		checkedActivate(1);
+		mParentKey = mParentID != null ? MessageID.getIndexKey(mParentID) : 0;
+		mThreadKey = mThreadID != null ? MessageID.getIndexKey(mThreadID) : 0;
+		checkedStore();
+	}
+	
+	/**
+	 * Moves the text of a message which was stored with database format version 1 from {@link #mText} to {@link #mCompressedText}.
+	 * Used by {@link Freetalk#upgradeDatabase()}. Does nothing if the text was already moved.
+	 * 
+	 * You have to synchronize on the transaction lock when calling this function and commit the transaction afterwards.
+	 */
+	protected final synchronized void compressTextWithoutCommit() {
+		checkedActivate(1);
+		
+		if(mText == null)
+			return;
+		
+		mCompressedText = new CompressedText(mText);
+		mText = null;
+		storeWithoutCommit();
 	}
 
 	/**
@@ -1215,6 +1411,11 @@ public abstract class Message extends Persistent {
 				}
 			}
 			
+			if(mCompressedText != null) {
+				mCompressedText.initializeTransient(mFreetalk);
+				mCompressedText.storeWithoutCommit();
+			}
+			
 			// db.store(mAttachments); /* Not stored because it is a primitive for db4o */
 			
 			checkedStore();
@@ -1254,6 +1455,11 @@ public abstract class Message extends Persistent {
 					a.deleteWithoutCommit();
 				}
 			}
+			
+			if(mCompressedText != null) {
+				mCompressedText.initializeTransient(mFreetalk);
+				mCompressedText.deleteWithoutCommit();
+			}
 		}
 		catch(RuntimeException e) {
 			checkedRollbackAndThrow(e);
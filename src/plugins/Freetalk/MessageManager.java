@@ -4,20 +4,25 @@
 package plugins.Freetalk;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import plugins.Freetalk.IdentityManager.IdentityDeletedCallback;
 import plugins.Freetalk.IdentityManager.NewOwnIdentityCallback;
 import plugins.Freetalk.Message.Attachment;
+import plugins.Freetalk.Message.MessageID;
 import plugins.Freetalk.MessageList.MessageFetchFailedMarker;
 import plugins.Freetalk.MessageList.MessageListFetchFailedMarker;
 import plugins.Freetalk.MessageList.MessageListID;
 import plugins.Freetalk.MessageList.MessageReference;
+import plugins.Freetalk.SubscribedBoard.BoardMessageLink;
 import plugins.Freetalk.exceptions.DuplicateBoardException;
 import plugins.Freetalk.exceptions.DuplicateElementException;
 import plugins.Freetalk.exceptions.DuplicateFetchFailedMarkerException;
@@ -102,6 +107,36 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 	private final TrivialTicker mTicker;
 	private final Random mRandom;
 	
+	/**
+	 * In-memory index of messages whose parent message was not downloaded yet: Maps the ID of the missing parent to the db4o object IDs of
+	 * the messages which are waiting for it. It allows {@link #onMessageReceived(Message)} to link the replies of a new message without
+	 * querying the database.
+	 * Not persistent: It is built lazily and set to null whenever it might be out of sync with the database, i.e. after a rollback or the
+	 * deletion of messages. 
+	 */
+	private HashMap<String, HashSet<Long>> mMessagesWaitingForParent = null;
+	
+	/**
+	 * Same as {@link #mMessagesWaitingForParent} for messages whose thread was not downloaded yet.
+	 */
+	private HashMap<String, HashSet<Long>> mMessagesWaitingForThread = null;
+	
+	/**
+	 * A CopyOnWriteArrayList because the user interfaces register their callbacks after the message fetchers were started: Registration
+	 * must be safe while {@link #doNewBoardMessageCallbacks(SubscribedBoard, BoardMessageLink)} iterates over the list.
+	 */
+	private final CopyOnWriteArrayList<NewBoardMessageCallback> mNewBoardMessageCallbacks = new CopyOnWriteArrayList<NewBoardMessageCallback>();
+	
+	public interface NewBoardMessageCallback {
+		/**
+		 * Called by {@link SubscribedBoard} when the transaction which linked a message into it was committed. Not called if the
+		 * transaction is rolled back. The transaction lock is held during the call, usually the board and this MessageManager are locked
+		 * as well. Implementations must therefore only remember the event and process it later, they must not take any locks except their
+		 * own.
+		 */
+		public void onNewBoardMessage(SubscribedBoard board, BoardMessageLink link);
+	}
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -382,6 +417,14 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 				for(Message threadReply : getAllThreadRepliesToMessage(message)) {
 					threadReply.clearThread();
 				}
+				
+				try {
+					final IdentityStatistics stats = getIdentityStatistics(message.getAuthor());
+					stats.onMessageDeleted(message);
+					stats.storeWithoutCommit();
+				} catch(NoSuchObjectException e) {
+					Logger.error(this, "IdentityStatistics not found for author of " + message);
+				}
 				}
 				
 				message.deleteWithoutCommit();
@@ -391,6 +434,11 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 			catch(RuntimeException e) {
 				Persistent.checkedRollbackAndThrow(db, this, e);
 			}
+			finally {
+				// The replies of the message are waiting for their parent again. We let the index be rebuilt instead of tracking them because
+				// deletion of messages is rare.
+				invalidateWaitingMessagesIndex();
+			}
 		}
 		}
 	}
@@ -620,10 +668,17 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 			wasDownloadedAlready = false;
 		}
 		
+		if(mMessagesWaitingForParent == null)
+			buildWaitingMessagesIndex();
+		
 		synchronized(Persistent.transactionLock(db)) {
 			try {
 				if(!wasDownloadedAlready) {
 					message.storeWithoutCommit();
+					
+					final IdentityStatistics stats = getOrCreateIdentityStatistics(message.getAuthor());
+					stats.onMessageStored(message);
+					stats.storeWithoutCommit();
 				}
 				
 				// We also try to mark the message as downloaded if it was fetched already to ensure that its not being fetched over and over again.
@@ -643,30 +698,65 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 					return;
 				}
 				
+				final String threadID = message.isThread() ? null : message.getThreadIDSafe();
+				String parentID;
 				try {
-					message.setThread(get(message.getThreadID())); // Calls storeWithoutCommit
+					parentID = message.getParentID();
 				} catch(NoSuchMessageException e) {
-					// The message has no thread ID or the parent thread was not downloaded yet
+					parentID = null; // The message is a thread
 				}
+				Message thread = null;
+				Message parent = null;
 				
-				try {
-					message.setParent(get(message.getParentID()));  // Calls storeWithoutCommit
-				} catch(NoSuchMessageException e) {
-					// The message has no parent ID or the parent message was not downloaded yet
+				if(threadID != null) {
+					try {
+						thread = get(threadID);
+						message.setThread(thread); // Calls storeWithoutCommit
+					} catch(NoSuchMessageException e) {
+						// The parent thread was not downloaded yet
+					}
 				}
 				
-				for(Message reply : getAllRepliesToMessage(message.getID())) {
+				if(parentID != null) {
+					if(parentID.equals(threadID)) {
+						// Replies to the thread itself are the common case, we don't need to query the thread again.
+						parent = thread;
+					} else {
+						try {
+							parent = get(parentID);
+						} catch(NoSuchMessageException e) {
+							// The parent message was not downloaded yet
+						}
+					}
+					
+					if(parent != null)
+						message.setParent(parent);  // Calls storeWithoutCommit
+				}
+				
+				for(Message reply : getMessagesWaitingForParent(message.getID())) {
 					reply.setParent(message); // Calls storeWithoutCommit
 				}
 				
-				for(Message threadReply : getAllThreadRepliesToMessage(message.getID())) {
+				for(Message threadReply : getMessagesWaitingForThread(message.getID())) {
 					threadReply.setThread(message); // Calls storeWithoutCommit
 				}
 
 				Persistent.checkedCommit(db, this);
+				
+				if(mMessagesWaitingForParent != null) { // Might have been invalidated by getMessagesWaitingFor*()
+					mMessagesWaitingForParent.remove(message.getID());
+					mMessagesWaitingForThread.remove(message.getID());
+					
+					if(parentID != null && parent == null)
+						addWaitingMessage(mMessagesWaitingForParent, parentID, message);
+					
+					if(threadID != null && thread == null)
+						addWaitingMessage(mMessagesWaitingForThread, threadID, message);
+				}
 			}
 			catch(Exception ex) {
 				Persistent.checkedRollback(db, this, ex);
+				invalidateWaitingMessagesIndex();
 			}
 		}
 		
@@ -822,6 +912,7 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 					
 					final IdentityStatistics stats = getOrCreateIdentityStatistics(list.getAuthor());
 					stats.onMessageListFetched(list);
+					stats.onMessageListIndexTaken(list.getIndex());
 					stats.storeWithoutCommit();
 					
 					list.checkedCommit(this);
@@ -832,7 +923,129 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 		}
 		//}
 	}
-	
+
+	/**
+	 * Batched version of {@link #onMessageListReceived(MessageList)} for the catch-up case where the message list fetchers deliver many lists
+	 * back to back.
+	 *
+	 * All lists are stored in a single transaction. Message references which are contained in multiple lists of the batch are resolved with
+	 * only one query per message ID, and the {@link IdentityStatistics} of each author are only queried and stored once per batch.
+	 * Lists which we already have and lists which are contained twice in the batch are skipped.
+	 *
+	 * If the batch transaction fails, it is rolled back and each list is handed to {@link #onMessageListReceived(MessageList)} on its own
+	 * so that a single broken list does not prevent the others from being stored.
+	 */
+	public synchronized void onMessageListsReceived(final Collection<? extends MessageList> lists) {
+		if(lists.size() == 0)
+			return;
+
+		if(lists.size() == 1) {
+			onMessageListReceived(lists.iterator().next());
+			return;
+		}
+
+		if(logDEBUG) Logger.debug(this, "Storing a batch of " + lists.size() + " message lists...");
+
+		final HashMap<String, Boolean> messageExists = new HashMap<String, Boolean>(lists.size() * 16);
+		final HashMap<String, IdentityStatistics> statistics = new HashMap<String, IdentityStatistics>(lists.size() * 2);
+		final HashSet<String> storedListIDs = new HashSet<String>(lists.size() * 2);
+
+		synchronized(Persistent.transactionLock(db)) {
+			try {
+				for(final MessageList list : lists) {
+					list.initializeTransient(mFreetalk);
+
+					final String listID = list.getID();
+
+					if(!storedListIDs.add(listID)) {
+						if(logDEBUG) Logger.debug(this, "MessageList is contained twice in the batch, ignoring: " + list);
+						continue;
+					}
+
+					MessageListFetchFailedMarker marker;
+					MessageList ghostList;
+
+					try {
+						marker = getMessageListFetchFailedMarker(listID);
+					} catch(NoSuchFetchFailedMarkerException e) {
+						marker = null;
+					}
+
+					try {
+						ghostList = getMessageList(listID);
+
+						if(marker == null) {
+							if(logDEBUG) Logger.debug(this, "Downloaded a MessageList which we already have: " + list);
+							continue;
+						}
+					} catch(NoSuchMessageListException e) {
+						ghostList = null;
+					}
+
+					// The same consistency handling as in onMessageListReceived(), see the comments there
+
+					if(marker != null) {
+						Logger.warning(this, "MessageList was fetched even though a FetchFailedMarker existed for it! Deleting the marker: " + marker);
+						marker.deleteWithoutCommit();
+					}
+
+					if(ghostList != null) {
+						Logger.warning(this, "MessageList was fetched even though a ghost list existed for it! Deleting the ghost list: " + ghostList);
+						ghostList.deleteWithoutCommit();
+					}
+
+					list.storeWithoutCommit();
+
+					for(final MessageReference ref : list) {
+						final String messageID = ref.getMessageID();
+						Boolean exists = messageExists.get(messageID);
+
+						if(exists == null) {
+							try {
+								get(messageID);
+								exists = true;
+							} catch(NoSuchMessageException e) {
+								exists = false;
+							}
+							messageExists.put(messageID, exists);
+						}
+
+						if(exists) {
+							ref.setMessageWasDownloadedFlag();
+							ref.storeWithoutCommit();
+						}
+					}
+
+					final Identity author = list.getAuthor();
+					IdentityStatistics stats = statistics.get(author.getID());
+					if(stats == null) {
+						stats = getOrCreateIdentityStatistics(author);
+						statistics.put(author.getID(), stats);
+					}
+					stats.onMessageListFetched(list);
+					stats.onMessageListIndexTaken(list.getIndex());
+				}
+
+				for(final IdentityStatistics stats : statistics.values())
+					stats.storeWithoutCommit();
+
+				Persistent.checkedCommit(db, this);
+
+				if(logDEBUG) Logger.debug(this, "Stored batch of " + lists.size() + " message lists, resolved " + messageExists.size() + " message IDs.");
+				return;
+			}
+			catch(RuntimeException e) {
+				Persistent.checkedRollback(db, this, e);
+			}
+		}
+
+		Logger.warning(this, "Storing a batch of message lists failed, storing them one by one...");
+
+		for(final MessageList list : lists) {
+			onMessageListReceived(list);
+		}
+	}
+
 	/**
 	 * Abstract because we need to store an object of a child class of MessageList which is chosen dependent on which implementation of the
 	 * messaging system we are using.
@@ -1100,6 +1313,126 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 		Logger.normal(this, "Finished rechecking wanted message");
 	}
 	
+	/**
+	 * Builds {@link #mMessagesWaitingForParent} and {@link #mMessagesWaitingForThread} from the database.
+	 * Called lazily by {@link #onMessageReceived(Message)} after startup and after the index was invalidated.
+	 */
+	private synchronized void buildWaitingMessagesIndex() {
+		if(logDEBUG) Logger.debug(this, "Building index of messages which are waiting for their parent / thread...");
+		
+		final HashMap<String, HashSet<Long>> waitingForParent = new HashMap<String, HashSet<Long>>();
+		final HashMap<String, HashSet<Long>> waitingForThread = new HashMap<String, HashSet<Long>>();
+		
+		Query q = db.query();
+		q.constrain(Message.class);
+		q.constrain(OwnMessage.class).not();
+		q.descend("mParent").constrain(null).identity();
+		for(Message message : new Persistent.InitializingObjectSet<Message>(mFreetalk, q)) {
+			try {
+				addWaitingMessage(waitingForParent, message.getParentID(), message);
+			} catch(NoSuchMessageException e) {
+				// The message is a thread
+			}
+		}
+		
+		q = db.query();
+		q.constrain(Message.class);
+		q.constrain(OwnMessage.class).not();
+		q.descend("mThread").constrain(null).identity();
+		for(Message message : new Persistent.InitializingObjectSet<Message>(mFreetalk, q)) {
+			if(!message.isThread())
+				addWaitingMessage(waitingForThread, message.getThreadIDSafe(), message);
+		}
+		
+		mMessagesWaitingForParent = waitingForParent;
+		mMessagesWaitingForThread = waitingForThread;
+		
+		if(logDEBUG) Logger.debug(this, "Index built: " + waitingForParent.size() + " missing parents, " + waitingForThread.size() + " missing threads.");
+	}
+	
+	/**
+	 * Must be called whenever the index of waiting messages might be out of sync with the database, i.e. after a rollback or the deletion
+	 * of messages. It is rebuilt on the next call to {@link #onMessageReceived(Message)}.
+	 */
+	private synchronized void invalidateWaitingMessagesIndex() {
+		mMessagesWaitingForParent = null;
+		mMessagesWaitingForThread = null;
+	}
+	
+	private void addWaitingMessage(final HashMap<String, HashSet<Long>> index, final String missingMessageID, final Message waitingMessage) {
+		HashSet<Long> waitingMessages = index.get(missingMessageID);
+		
+		if(waitingMessages == null) {
+			waitingMessages = new HashSet<Long>(4);
+			index.put(missingMessageID, waitingMessages);
+		}
+		
+		waitingMessages.add(db.getID(waitingMessage));
+	}
+	
+	/**
+	 * Gets the messages of the given index which are waiting for the given message ID without querying the database.
+	 * Returns null if the index is out of sync with the database, it is invalidated then.
+	 */
+	private ArrayList<Message> getWaitingMessages(final HashMap<String, HashSet<Long>> index, final String missingMessageID) {
+		final HashSet<Long> objectIDs = index.get(missingMessageID);
+		
+		if(objectIDs == null)
+			return new ArrayList<Message>(0);
+		
+		final ArrayList<Message> result = new ArrayList<Message>(objectIDs.size());
+		
+		for(final Long objectID : objectIDs) {
+			Object object;
+			
+			try {
+				object = db.getByID(objectID);
+			} catch(RuntimeException e) {
+				object = null;
+			}
+			
+			if(!(object instanceof Message)) {
+				Logger.error(this, "Index of waiting messages is out of sync with the database, object ID: " + objectID);
+				invalidateWaitingMessagesIndex();
+				return null;
+			}
+			
+			final Message message = (Message)object;
+			message.initializeTransient(mFreetalk);
+			result.add(message);
+		}
+		
+		return result;
+	}
+	
+	/**
+	 * Gets the messages whose parent message is the message with the given ID and which were downloaded before it.
+	 * Uses the in-memory index if it is available and falls back to a database query if it is not.
+	 */
+	private List<Message> getMessagesWaitingForParent(final String parentID) {
+		if(mMessagesWaitingForParent != null) {
+			final ArrayList<Message> result = getWaitingMessages(mMessagesWaitingForParent, parentID);
+			if(result != null)
+				return result;
+		}
+		
+		return getAllRepliesToMessage(parentID);
+	}
+	
+	/**
+	 * Gets the messages whose thread is the message with the given ID and which were downloaded before it.
+	 * Uses the in-memory index if it is available and falls back to a database query if it is not.
+	 */
+	private List<Message> getMessagesWaitingForThread(final String threadID) {
+		if(mMessagesWaitingForThread != null) {
+			final ArrayList<Message> result = getWaitingMessages(mMessagesWaitingForThread, threadID);
+			if(result != null)
+				return result;
+		}
+		
+		return getAllThreadRepliesToMessage(threadID);
+	}
+	
 	/**
 	 * Get a list of all MessageReference objects to the given message ID. References to OwnMessage are not returned.
 	 * Used to mark the references to a message which was downloaded as downloaded.
@@ -1123,6 +1456,7 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 		final Query query = db.query();
 		query.constrain(Message.class);
 		query.constrain(OwnMessage.class).not();
+		query.descend("mParentKey").constrain(MessageID.getIndexKey(messageID));
 		query.descend("mParentID").constrain(messageID);
 		return new Persistent.InitializingObjectSet<Message>(mFreetalk, query);
 	}
@@ -1139,6 +1473,7 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 		final Query query = db.query();
 		query.constrain(Message.class);
 		query.constrain(OwnMessage.class).not();
+		query.descend("mThreadKey").constrain(MessageID.getIndexKey(threadID));
 		query.descend("mThreadID").constrain(threadID);
 		return new Persistent.InitializingObjectSet<Message>(mFreetalk, query);
 	}
@@ -1672,7 +2007,32 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 	 */
 	public abstract void deleteMessageRatingAndRevertEffect(final MessageRating rating);
 
+	/**
+	 * Registers a callback which is called whenever a message is linked into a {@link SubscribedBoard}.
+	 * Can be called at any time, the callback receives the messages which are linked after the registration.
+	 */
+	public final void registerNewBoardMessageCallback(final NewBoardMessageCallback callback) {
+		mNewBoardMessageCallbacks.add(callback);
+	}
+	
+	protected final void doNewBoardMessageCallbacks(final SubscribedBoard board, final BoardMessageLink link) {
+		for(NewBoardMessageCallback callback : mNewBoardMessageCallbacks) {
+			try {
+				callback.onNewBoardMessage(board, link);
+			} catch(RuntimeException e) {
+				Logger.error(this, "NewBoardMessageCallback failed", e);
+			}
+		}
+	}
+	
 	protected final synchronized IdentityStatistics getIdentityStatistics(final Identity identity) throws NoSuchObjectException {
+		return getIdentityStatisticsWithoutLocking(identity);
+	}
+	
+	/**
+	 * Same as {@link #getIdentityStatistics(Identity)} but does not lock the MessageManager.
+	 */
+	private IdentityStatistics getIdentityStatisticsWithoutLocking(final Identity identity) throws NoSuchObjectException {
 		final Query query = db.query();
 		query.constrain(IdentityStatistics.class);
 		query.descend("mIdentity").constrain(identity).identity();
@@ -1685,6 +2045,22 @@ public abstract class MessageManager implements PrioRunnable, NewOwnIdentityCall
 		}
 	}
 	
+	/**
+	 * Get the amount of fetched messages of the given identity. Uses the counter of its {@link IdentityStatistics} instead of querying
+	 * all of its messages, so it is cheap enough to be called for each message which is displayed.
+	 * 
+	 * Does not lock the MessageManager, like {@link #getMessagesBy(Identity)}: The user interface calls it without holding any locks.
+	 * 
+	 * @return The same as getMessagesBy(author).size()
+	 */
+	public final int getMessageCountBy(final Identity author) {
+		try {
+			return getIdentityStatisticsWithoutLocking(author).getMessageCount();
+		} catch(NoSuchObjectException e) {
+			return 0;
+		}
+	}
+	
 	public final ObjectSet<IdentityStatistics> getAllIdentityStatistics() {
 		final Query query = db.query();
 		query.constrain(IdentityStatistics.class);
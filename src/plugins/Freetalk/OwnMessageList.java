@@ -142,6 +142,13 @@ public abstract class OwnMessageList extends MessageList {
 		return true;
 	}
 	
+	/**
+	 * Returns true if no further message can be added to this list. Full lists should be inserted without waiting for more messages.
+	 */
+	public synchronized boolean isFull() {
+		return getMessageCount() >= MAX_MESSAGES_PER_MESSAGELIST;
+	}
+	
 	/**
 	 * Stores this OwnMessageList in the database without committing the transaction.
 	 */
@@ -7,6 +7,7 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
@@ -57,6 +58,12 @@ public abstract class Persistent {
 	 */
 	private static transient final Object mTransactionLock = new Object();
 	
+	/**
+	 * The listeners which want to know the outcome of the current transaction, see {@link #addTransactionListener(ExtObjectContainer, TransactionListener)}.
+	 * Only accessed while holding the {@link #transactionLock(ExtObjectContainer)}.
+	 */
+	private static transient final ArrayList<TransactionListener> mTransactionListeners = new ArrayList<TransactionListener>();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -87,6 +94,25 @@ public abstract class Persistent {
 	 */
 	public @interface IndexedClass { }
 	
+	/**
+	 * Used for keeping in-memory state consistent with the database: Changes of in-memory state which belong to a transaction should only
+	 * be applied when the transaction is committed, see {@link Persistent#addTransactionListener(ExtObjectContainer, TransactionListener)}.
+	 */
+	public interface TransactionListener {
+		
+		/**
+		 * Called by {@link Persistent#checkedCommit(ExtObjectContainer, Object)} after the transaction was committed.
+		 * The transaction lock is still being held, this function must be fast and must not use the database.
+		 */
+		public void onCommit();
+		
+		/**
+		 * Called by {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable)} after the transaction was rolled back.
+		 * The transaction lock is still being held, this function must be fast and must not use the database.
+		 */
+		public void onRollback();
+	}
+	
 	public void databaseModificationHook() {
 		databaseModificationHook(mFreetalk, mDB);
 	}
@@ -124,6 +150,39 @@ public abstract class Persistent {
 	public static final Object transactionLock(ExtObjectContainer db) {
 		return mTransactionLock;
 	}
+	
+	/**
+	 * Registers a listener which is notified once when the current transaction is committed or rolled back.
+	 * You have to hold the {@link #transactionLock(ExtObjectContainer)} when calling this function.
+	 * 
+	 * The db parameter is currently ignored, see {@link #transactionLock(ExtObjectContainer)}.
+	 */
+	public static final void addTransactionListener(final ExtObjectContainer db, final TransactionListener listener) {
+		mTransactionListeners.add(listener);
+	}
+	
+	/**
+	 * Calls {@link TransactionListener#onCommit()} or {@link TransactionListener#onRollback()} of all registered listeners and unregisters them.
+	 */
+	private static final void notifyTransactionListeners(final boolean committed) {
+		if(mTransactionListeners.isEmpty())
+			return;
+		
+		// Listeners may register for the next transaction, so we must not iterate over the list itself.
+		final TransactionListener[] listeners = mTransactionListeners.toArray(new TransactionListener[mTransactionListeners.size()]);
+		mTransactionListeners.clear();
+		
+		for(TransactionListener listener : listeners) {
+			try {
+				if(committed)
+					listener.onCommit();
+				else
+					listener.onRollback();
+			} catch(RuntimeException e) {
+				Logger.error(listener, "TransactionListener failed", e);
+			}
+		}
+	}
 
 	/**
 	 * Only to be used by the extending classes, not to be called from the outside.
@@ -242,6 +301,7 @@ public abstract class Persistent {
 		System.gc(); 
 		Logger.error(loggingObject, "ROLLED BACK!", error);
 		databaseModificationHook(null, db);
+		notifyTransactionListeners(false);
 	}
 
 	/**
@@ -344,6 +404,7 @@ public abstract class Persistent {
 		db.commit();
 		if(logDEBUG) Logger.debug(loggingObject, "COMMITED.");
 		databaseModificationHook(null, db);
+		notifyTransactionListeners(true);
 	}
 	
 	/**
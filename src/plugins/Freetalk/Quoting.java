@@ -1,8 +1,11 @@
 package plugins.Freetalk;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -44,21 +47,33 @@ public class Quoting {
 		private static final String regexpForAllTypes = "(quote|b|i|code|link|url|uri|img|image)";
 	}
 
+	/**
+	 * An element of the tree which is returned by {@link #parseText(String)}. It is immutable because the trees of messages are cached
+	 * and shared by all threads which display the message: The attributes and the children cannot be modified.
+	 */
 	public final static class TextElement {
 		public final TextElementType mType;
-		public final HashMap<String, String> mAttributes;
-		public String mContent;
+		public final Map<String, String> mAttributes;
+		public final String mContent;
 		
 		public final List<TextElement> mChildren;
 		
+		/** The modifiable list behind {@link #mChildren}, it is only filled while the tree is parsed. */
+		private final ArrayList<TextElement> mChildList;
+		
 		private int mConsumedLength;
 	
-		public TextElement(TextElementType myType, HashMap<String, String> attributes) {
+		private TextElement(TextElementType myType, HashMap<String, String> attributes, String content) {
 			mType = myType;
-			mAttributes = attributes;
-			mContent = "";
-			mChildren = new ArrayList<TextElement>();
-			mConsumedLength = 0;
+			mAttributes = Collections.unmodifiableMap(attributes);
+			mContent = content;
+			mChildList = new ArrayList<TextElement>();
+			mChildren = Collections.unmodifiableList(mChildList);
+			mConsumedLength = content.length();
+		}
+		
+		public TextElement(TextElementType myType, HashMap<String, String> attributes) {
+			this(myType, attributes, "");
 		}
 		
 		public TextElement(TextElementType myType) {
@@ -68,6 +83,10 @@ public class Quoting {
 		public TextElement(String tag, HashMap<String,String> attributes) {
 			this(TextElementType.fromString(tag), attributes);
 		}
+		
+		private TextElement(TextElementType myType, String content) {
+			this(myType, new HashMap<String,String>(1), content);
+		}
 	
 		public String getContentText() {
 			// own content + that of our children
@@ -104,6 +123,15 @@ public class Quoting {
 			"\\]",
 			Pattern.MULTILINE|Pattern.DOTALL|Pattern.CASE_INSENSITIVE);
 	
+	/**
+	 * Get a {@link Matcher} for the bbcode tags which are understood by {@link #parseText(String)}, for user interfaces which need to
+	 * transform the text in a different way. Group 2 of a match is "/" for closing tags and empty for opening tags, group 3 is the name
+	 * of the tag and can be passed to {@link TextElementType#fromString(String)}.
+	 */
+	public static Matcher getTagMatcher(final CharSequence text) {
+		return tagPattern.matcher(text);
+	}
+	
 	/**
 	 * After we have matched a tag using {@link tagPattern}, we parse its key=value pairs using the capturing groups of this {@link Pattern}
 	 */
@@ -121,101 +149,164 @@ public class Quoting {
 	private static final Pattern keyPattern = Pattern.compile("(CH|SS|US|KS)K@[%,~" + URLEncoder.getSafeURLCharacters() + "]+", Pattern.MULTILINE|Pattern.DOTALL);
 	
 
-	private static final TextElement parseText(String currentText, String tag, HashMap<String,String> args, int maxRecursion) {
-		if (maxRecursion < 0) {
-			return new TextElement(TextElementType.Error);
-		}
-		final TextElement result = new TextElement(tag, args);
+	/**
+	 * The maximal nesting depth of tags. Deeper tags are shown as {@link TextElementType#Error}.
+	 */
+	private static final int MAX_DEPTH = 20;
+	
+	/**
+	 * The maximal number of trees in {@link #mParsedMessageCache}.
+	 */
+	private static final int PARSED_MESSAGE_CACHE_SIZE = 256;
 	
-		// for tags without closing tag (if we ever want to support those)
-		// just return result here
+	/**
+	 * The results of {@link #parseText(Message)} by message ID. Messages do not change so their tree does not either, and a thread page
+	 * which is displayed again shows the same messages. Least recently used trees are removed when the cache is full.
+	 */
+	private static final LinkedHashMap<String, TextElement> mParsedMessageCache =
+		new LinkedHashMap<String, TextElement>(PARSED_MESSAGE_CACHE_SIZE * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
 	
-		if (currentText.length() > 0) {
-			if (currentText.substring(0,1).equals("\n")) {
-				// skip a starting \n (which is what the user expects to happen)
-				result.mConsumedLength++;
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, TextElement> eldest) {
+				return size() > PARSED_MESSAGE_CACHE_SIZE;
 			}
+		};
+	
+	/**
+	 * An element whose closing tag was not found yet, see {@link #parseText(String)}.
+	 */
+	private static final class OpenElement {
+		final TextElement mElement;
+		
+		/** The name of the tag as it was written in the opening tag */
+		final String mTag;
+		
+		/** The position of the first character after the opening tag */
+		final int mStart;
+		
+		OpenElement(TextElement element, String tag, int start) {
+			mElement = element;
+			mTag = tag;
+			mStart = start;
 		}
-
-		// The source code of .matcher() shows that it is synchronized so we can mess around withoud synchronization
-		final Matcher tagMatcher = tagPattern.matcher(currentText);
-		final Matcher keyMatcher = keyPattern.matcher(currentText);
+	}
+	
+	/**
+	 * Parses the given text into a tree of {@link TextElement}s. The root element is of type {@link TextElementType#PlainText}.
+	 * 
+	 * The text is processed in a single pass: The elements whose closing tag was not found yet are kept on a stack instead of parsing each
+	 * of them recursively with a copy of the remaining text, and the next tag and the next key are only searched again after the
+	 * previous one was consumed.
+	 */
+	public static final TextElement parseText(final String text) {
+		final TextElement root = new TextElement("", new HashMap<String,String>(1));
+		final ArrayList<OpenElement> stack = new ArrayList<OpenElement>(MAX_DEPTH + 1);
+		stack.add(new OpenElement(root, "", 0));
+		
+		final Matcher tagMatcher = tagPattern.matcher(text);
+		final Matcher keyMatcher = keyPattern.matcher(text);
+		int tagPos = -1; // Position of the next tag which was found by tagMatcher, -1 if it has to be searched again
+		int keyPos = -1;
+		
+		int position = 0;
+		
+		// skip a starting \n (which is what the user expects to happen)
+		if (text.startsWith("\n"))
+			++position;
 	
-		while (result.mConsumedLength < currentText.length()) {
+		while (position < text.length()) {
+			final TextElement current = stack.get(stack.size() - 1).mElement;
+			
 			// we look for a tag and for a key
-			final int tagPos = tagMatcher.find(result.mConsumedLength) ? tagMatcher.start() : currentText.length();
-			final int keyPos = keyMatcher.find(result.mConsumedLength) ? keyMatcher.start() : currentText.length();
+			if (tagPos < position)
+				tagPos = tagMatcher.find(position) ? tagMatcher.start() : text.length();
+			if (keyPos < position)
+				keyPos = keyMatcher.find(position) ? keyMatcher.start() : text.length();
 			final int textEndPos = Math.min(tagPos, keyPos);
 	
-			if (textEndPos > result.mConsumedLength)
-			{
-				final TextElement newElement = new TextElement(TextElementType.PlainText);
-				newElement.mContent = currentText.substring(result.mConsumedLength, textEndPos);
-				newElement.mConsumedLength = textEndPos-result.mConsumedLength;
-				result.mChildren.add(newElement);
-				result.mConsumedLength += newElement.mConsumedLength;
+			if (textEndPos > position) {
+				current.mChildList.add(new TextElement(TextElementType.PlainText, text.substring(position, textEndPos)));
+				position = textEndPos;
 			}
-			if (textEndPos == currentText.length()) {
+			if (textEndPos == text.length()) {
 				break;
 			}
 			if (textEndPos == tagPos) {
-				result.mConsumedLength += tagMatcher.group().length();
+				position = tagMatcher.end();
 				final String nextTag = tagMatcher.group(1);
 				
-				// We found a closing tag for result, return it.
-				if (nextTag.equals("/"+tag))
-					return result;
-
+				// We found a closing tag for the current element
+				if (stack.size() > 1 && nextTag.equals("/" + stack.get(stack.size() - 1).mTag)) {
+					final OpenElement closed = stack.remove(stack.size() - 1);
+					closed.mElement.mConsumedLength = position - closed.mStart;
+					continue;
+				}
+				
 				// closing tag which does not match the opening tag type => ERROR.
-				if (nextTag.substring(0,1).equals("/")) {
-
-					TextElement newElement = new TextElement(TextElementType.Error);
-					newElement.mContent = tagMatcher.group();
-					newElement.mConsumedLength = newElement.mContent.length();
-					result.mChildren.add(newElement);
+				if (nextTag.startsWith("/")) {
+					current.mChildList.add(new TextElement(TextElementType.Error, tagMatcher.group()));
+				} else if (stack.size() > MAX_DEPTH) {
+					// Nested too deep, we show the tag as an error and parse the following text as part of the current element
+					final TextElement newElement = new TextElement(TextElementType.Error, tagMatcher.group());
+					newElement.mConsumedLength = 0;
+					current.mChildList.add(newElement);
 				} else { // it's an opening tag
 					final HashMap<String, String> attributes = new HashMap<String,String>();
 					
 					// check whether it has attributes
-					if(tagMatcher.groupCount() > 1) {
-						final String attributesString = tagMatcher.group(4);
-						final Matcher attributeMatcher = attributePattern.matcher(attributesString);
-						
-						while(attributeMatcher.find()) {
-							final String key = attributeMatcher.group(2).trim().toLowerCase();
-							String value = attributeMatcher.group(3).trim();
-							if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
-								value = value.substring(1, value.length()-1);
-							attributes.put(key, value);
-						}
-					}
-
-					String textToParse = currentText.substring(tagMatcher.end());
-					TextElement subElement = parseText(textToParse, nextTag, attributes, maxRecursion-1);
-					if (subElement.mType == TextElementType.Error) {
-						// we show the entire piece of text that was parsed as an error
-						subElement.mContent = currentText.substring(tagMatcher.start(), tagMatcher.end()+subElement.mConsumedLength);
+					final String attributesString = tagMatcher.group(4);
+					final Matcher attributeMatcher = attributePattern.matcher(attributesString);
+					
+					while(attributeMatcher.find()) {
+						final String key = attributeMatcher.group(2).trim().toLowerCase();
+						String value = attributeMatcher.group(3).trim();
+						if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+							value = value.substring(1, value.length()-1);
+						attributes.put(key, value);
 					}
-					result.mChildren.add(subElement);
-					result.mConsumedLength += subElement.mConsumedLength;
+					
+					final TextElement newElement = new TextElement(nextTag, attributes);
+					current.mChildList.add(newElement);
+					stack.add(new OpenElement(newElement, nextTag, position));
+					
+					// skip a starting \n (which is what the user expects to happen)
+					if (position < text.length() && text.charAt(position) == '\n')
+						++position;
 				}
 			} else if (textEndPos == keyPos) {
-				TextElement newElement = new TextElement(TextElementType.Link);
-				newElement.mContent = keyMatcher.group();
-				newElement.mConsumedLength = newElement.mContent.length();
-				result.mChildren.add(newElement);
-				result.mConsumedLength += newElement.mConsumedLength;
+				final TextElement newElement = new TextElement(TextElementType.Link, keyMatcher.group());
+				current.mChildList.add(newElement);
+				position += newElement.mConsumedLength;
 			}
-			
 		}
-		return result;
-	}
-
-	public static final TextElement parseText(String text) {
-		return parseText(text, "", new HashMap<String,String>(1), 20);
+		
+		// Elements whose closing tag is missing extend until the end of the text
+		for (final OpenElement open : stack)
+			open.mElement.mConsumedLength = text.length() - open.mStart;
+		
+		return root;
 	}
 	
+	/**
+	 * Parses the text of the given message, see {@link #parseText(String)}. The tree is cached and shared, which is possible because
+	 * {@link TextElement}s are immutable.
+	 */
 	public static final TextElement parseText(Message message) {
-		return parseText(message.getText());
+		final String id = message.getID();
+		
+		synchronized(mParsedMessageCache) {
+			final TextElement cached = mParsedMessageCache.get(id);
+			if(cached != null)
+				return cached;
+		}
+		
+		final TextElement result = parseText(message.getText());
+		
+		synchronized(mParsedMessageCache) {
+			mParsedMessageCache.put(id, result);
+		}
+		
+		return result;
 	}
 }
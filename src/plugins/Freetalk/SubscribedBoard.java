@@ -1,8 +1,12 @@
 package plugins.Freetalk;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Random;
 
+import plugins.Freetalk.BoardProjection.MessageSummary;
 import plugins.Freetalk.Message.MessageID;
 import plugins.Freetalk.Persistent.IndexedClass;
 import plugins.Freetalk.exceptions.DuplicateMessageException;
@@ -40,6 +44,38 @@ public final class SubscribedBoard extends Board {
 	 */
 	private int	mHighestSynchronizedParentMessageIndex = 0;
 	
+	/**
+	 * The read projection of this board, see {@link #getProjection()}. Null if it was not built yet.
+	 * Not stored in the database because it is transient.
+	 */
+	private transient volatile BoardProjection mProjection = null;
+	
+	/**
+	 * The changes of the links of this board in the current transaction which are applied to {@link #mProjection} when the transaction is
+	 * committed. Null if no link was changed in the current transaction. Only accessed while holding the transaction lock.
+	 */
+	private transient ProjectionUpdate mUncommittedProjectionUpdate = null;
+	
+	/**
+	 * The links of messages which were linked into this board in the current transaction. The {@link MessageManager.NewBoardMessageCallback}s
+	 * are called for them when the transaction is committed. Null if no message was linked in the current transaction. Only accessed while
+	 * holding the transaction lock.
+	 */
+	private transient NewMessageNotification mUncommittedNewMessageNotification = null;
+	
+	/**
+	 * The projections of this board which are being built by {@link #getProjection()}. Null if there are none.
+	 * Protected by {@link #mProjectionLock}.
+	 */
+	private transient ArrayList<ProjectionBuild> mProjectionBuilds = null;
+	
+	/**
+	 * Protects {@link #mProjection} and {@link #mProjectionBuilds} of all boards. It is only held for short in-memory operations, never
+	 * while using the database, so it does not matter that it is shared. It is static because db4o does not initialize transient fields
+	 * of the objects which it loads.
+	 */
+	private static final Object mProjectionLock = new Object();
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -154,6 +190,140 @@ public final class SubscribedBoard extends Board {
         return mDescription != null ? mDescription : super.getDescription(getSubscriber());
     }
     
+    /**
+     * Get an immutable snapshot of the threads, messages and counters of this board. Never locks the board, the returned object can be used
+     * without any locks. Use it instead of the query functions of this class when you only need to display the board.
+     * 
+     * The projection is built from the database by the first call. Afterwards, transactions which change links of this board apply their
+     * changes to it when they are committed so it does not have to be built again.
+     */
+    public BoardProjection getProjection() {
+    	BoardProjection projection = mProjection;
+    	if(projection != null)
+    		return projection;
+    	
+    	// We build the projection without locking the board, so a transaction might change links while we read them. We collect the changes
+    	// which are committed meanwhile and apply them afterwards. If a transaction which changed links is rolled back, we might have seen
+    	// its changes, so the projection is not published then.
+    	final ProjectionBuild build = new ProjectionBuild();
+    	synchronized(mProjectionLock) {
+    		projection = mProjection;
+    		if(projection != null)
+    			return projection;
+    		
+    		if(mProjectionBuilds == null)
+    			mProjectionBuilds = new ArrayList<ProjectionBuild>(1);
+    		mProjectionBuilds.add(build);
+    	}
+    	
+    	try {
+    		projection = new BoardProjection(getAllMessagesWithoutLocking());
+    	} finally {
+    		synchronized(mProjectionLock) {
+    			mProjectionBuilds.remove(build);
+    			if(mProjectionBuilds.isEmpty())
+    				mProjectionBuilds = null;
+    		}
+    	}
+    	
+    	synchronized(mProjectionLock) {
+    		if(!build.mChanges.isEmpty())
+    			projection = new BoardProjection(projection, build.mChanges);
+    		
+    		if(mProjection != null) // Another thread was faster, its projection is kept up to date already.
+    			return mProjection;
+    		
+    		if(!build.mRolledBack)
+    			mProjection = projection;
+    		
+    		return projection;
+    	}
+    }
+    
+    /**
+     * Called by {@link BoardMessageLink} when it is stored or deleted. The change is applied to the projection when the transaction is
+     * committed. You have to lock this board and the transaction lock before calling this function.
+     * 
+     * @param summary The result of {@link BoardProjection#summarize(BoardMessageLink)}, null if the link was deleted.
+     */
+    private void onLinkChangedWithoutCommit(final int index, final MessageSummary summary) {
+    	if(mUncommittedProjectionUpdate == null) {
+    		mUncommittedProjectionUpdate = new ProjectionUpdate();
+    		Persistent.addTransactionListener(mDB, mUncommittedProjectionUpdate);
+    	}
+    	
+    	mUncommittedProjectionUpdate.mChanges.put(index, summary);
+    }
+    
+    /**
+     * A projection which is being built by {@link SubscribedBoard#getProjection()}.
+     */
+    private static final class ProjectionBuild {
+    	/** The changes which were committed while the projection was being built */
+    	private final HashMap<Integer, MessageSummary> mChanges = new HashMap<Integer, MessageSummary>();
+    	
+    	/** True if a transaction which changed links was rolled back while the projection was being built */
+    	private boolean mRolledBack = false;
+    }
+    
+    /**
+     * Applies the link changes of a transaction to the projection once the transaction is committed. This only takes time proportional to
+     * the number of changes, the new projection is built by the first thread which reads it, see
+     * {@link BoardProjection#BoardProjection(BoardProjection, java.util.Map)}.
+     */
+    private final class ProjectionUpdate implements Persistent.TransactionListener {
+    	/** Keyed by {@link BoardMessageLink#getIndex()}, null values are deleted links */
+    	private final HashMap<Integer, MessageSummary> mChanges = new HashMap<Integer, MessageSummary>();
+    	
+    	public void onCommit() {
+    		mUncommittedProjectionUpdate = null;
+    		
+    		synchronized(mProjectionLock) {
+    			if(mProjection != null)
+    				mProjection = new BoardProjection(mProjection, mChanges);
+    			
+    			if(mProjectionBuilds != null) {
+    				for(ProjectionBuild build : mProjectionBuilds)
+    					build.mChanges.putAll(mChanges);
+    			}
+    			
+    			// If there is no projection, the next getProjection() builds it from the database, which contains the changes now.
+    		}
+    	}
+    	
+    	public void onRollback() {
+    		mUncommittedProjectionUpdate = null;
+    		
+    		synchronized(mProjectionLock) {
+    			if(mProjectionBuilds != null) {
+    				for(ProjectionBuild build : mProjectionBuilds)
+    					build.mRolledBack = true;
+    			}
+    		}
+    	}
+    }
+    
+    /**
+     * Passes the links of the messages which were linked in a transaction to the {@link MessageManager.NewBoardMessageCallback}s once
+     * the transaction is committed. They are dropped if it is rolled back: The message index of a rolled back link is reused by another
+     * message.
+     */
+    private final class NewMessageNotification implements Persistent.TransactionListener {
+    	private final ArrayList<BoardMessageLink> mLinks = new ArrayList<BoardMessageLink>();
+    	
+    	public void onCommit() {
+    		mUncommittedNewMessageNotification = null;
+    		
+    		final MessageManager messageManager = mFreetalk.getMessageManager();
+    		for(BoardMessageLink link : mLinks)
+    			messageManager.doNewBoardMessageCallbacks(SubscribedBoard.this, link);
+    	}
+    	
+    	public void onRollback() {
+    		mUncommittedNewMessageNotification = null;
+    	}
+    }
+    
     /**
      * Gets the reference to the latest message. Does not return ghost thread references - therefore, the returned BoardMessageLink will always
      * point to a valid Message object.
@@ -368,15 +538,17 @@ public final class SubscribedBoard extends Board {
     	updateExistingReferencesToNewMessage(newMessage);
     	
     	final String newMessageID = newMessage.getID();
+    	BoardMessageLink newLink;
     
 		// If there was no ghost reference, we must store a BoardThreadLink if the new message is a thread 
 		if(newMessage.isThread()) {
 			try {
-				getThreadLink(newMessageID);
+				newLink = getThreadLink(newMessageID);
 			} catch(NoSuchMessageException e) {
 	    		BoardThreadLink threadRef = new BoardThreadLink(this, newMessage, takeFreeMessageIndexWithoutCommit());
 	    		threadRef.initializeTransient(mFreetalk);
 	    		threadRef.storeWithoutCommit();
+	    		newLink = threadRef;
 			}
 		}
 		else {
@@ -396,7 +568,7 @@ public final class SubscribedBoard extends Board {
     		
     		// 3. Store a BoardReplyLink for the new message
     		try {
-    			getReplyLink(threadID, newMessageID);
+    			newLink = getReplyLink(threadID, newMessageID);
     			// The reply link exists already, either because it was a ghost link or addMessage was called already for this message
     			// In either case it was already updated by updateExistingReferencesToNewMessage so we don't do anything here.
     		}
@@ -404,6 +576,7 @@ public final class SubscribedBoard extends Board {
     			final BoardReplyLink messageRef = new BoardReplyLink(this, newMessage, takeFreeMessageIndexWithoutCommit());
     			messageRef.initializeTransient(mFreetalk);
     			messageRef.storeWithoutCommit();
+    			newLink = messageRef;
     		}
     		
     		// 4. Tell the parent thread that a new message was added. This updates the last reply date and the "was read"-flag of the thread.
@@ -413,6 +586,13 @@ public final class SubscribedBoard extends Board {
     	}
 
     	storeWithoutCommit();
+    	
+    	if(mUncommittedNewMessageNotification == null) {
+    		mUncommittedNewMessageNotification = new NewMessageNotification();
+    		Persistent.addTransactionListener(mDB, mUncommittedNewMessageNotification);
+    	}
+    	
+    	mUncommittedNewMessageNotification.mLinks.add(newLink);
     }
 
     
@@ -630,6 +810,7 @@ public final class SubscribedBoard extends Board {
         final Query q = mDB.query();
         q.constrain(BoardMessageLink.class);
         q.descend("mBoard").constrain(this).identity();
+        q.descend("mMessageKey").constrain(MessageID.getIndexKey(messageID));
         q.descend("mMessageID").constrain(messageID);
         return new Persistent.InitializingObjectSet<BoardMessageLink>(mFreetalk, q);
     }
@@ -638,6 +819,7 @@ public final class SubscribedBoard extends Board {
         final Query q = mDB.query();
         q.constrain(BoardReplyLink.class);
         q.descend("mBoard").constrain(this).identity();
+        q.descend("mMessageKey").constrain(MessageID.getIndexKey(messageID));
         q.descend("mMessageID").constrain(messageID);
         return new Persistent.InitializingObjectSet<SubscribedBoard.BoardReplyLink>(mFreetalk, q);
     }
@@ -646,7 +828,9 @@ public final class SubscribedBoard extends Board {
         final Query q = mDB.query();
         q.constrain(BoardReplyLink.class);
         q.descend("mBoard").constrain(this).identity();
+        q.descend("mThreadKey").constrain(MessageID.getIndexKey(threadID));
         q.descend("mThreadID").constrain(threadID);
+        q.descend("mMessageKey").constrain(MessageID.getIndexKey(messageID));
         q.descend("mMessageID").constrain(messageID);
 
         final ObjectSet<BoardReplyLink> results = new Persistent.InitializingObjectSet<SubscribedBoard.BoardReplyLink>(mFreetalk, q);
@@ -670,6 +854,7 @@ public final class SubscribedBoard extends Board {
     	final Query q = mDB.query();
         q.constrain(BoardThreadLink.class);
         q.descend("mBoard").constrain(this).identity();
+        q.descend("mThreadKey").constrain(MessageID.getIndexKey(threadID));
         q.descend("mThreadID").constrain(threadID);
         ObjectSet<BoardThreadLink> results = q.execute();
         
@@ -794,6 +979,17 @@ public final class SubscribedBoard extends Board {
     	return new Persistent.InitializingObjectSet<BoardThreadLink>(mFreetalk, q);
     }
 
+    /**
+     * Same as getAllMessages(true) but does not lock the board. Only for building the projection, see {@link #getProjection()}.
+     */
+    private ObjectSet<BoardMessageLink> getAllMessagesWithoutLocking() {
+    	final Query q = mDB.query();
+        q.constrain(BoardMessageLink.class);
+        q.descend("mBoard").constrain(this).identity();
+        q.descend("mIndex").orderAscending();
+        return new Persistent.InitializingObjectSet<BoardMessageLink>(mFreetalk, q);
+    }
+    
     public synchronized ObjectSet<BoardMessageLink> getAllMessages(final boolean sortByMessageIndexAscending) {
     	final Query q = mDB.query();
         q.constrain(BoardMessageLink.class);
@@ -984,6 +1180,19 @@ public final class SubscribedBoard extends Board {
         return new Persistent.InitializingObjectSet<BoardMessageLink>(mFreetalk, q);
     }
 
+    /**
+     * Get the messages whose index is between the given minimum and maximum index, inclusive, sorted ascending by index.
+     */
+    public synchronized ObjectSet<BoardMessageLink> getMessagesByIndexRange(final int minimumIndex, final int maximumIndex) {
+        final Query q = mDB.query();
+        q.constrain(BoardMessageLink.class);
+        q.descend("mBoard").constrain(this).identity();
+        q.descend("mIndex").constrain(minimumIndex).smaller().not();
+        q.descend("mIndex").constrain(maximumIndex).greater().not();
+        q.descend("mIndex").orderAscending();
+        return new Persistent.InitializingObjectSet<BoardMessageLink>(mFreetalk, q);
+    }
+
     public synchronized ObjectSet<BoardMessageLink> getMessagesByMinimumDate(
     		Date minimumDate,
             final boolean sortByMessageIndexAscending,
@@ -1003,6 +1212,22 @@ public final class SubscribedBoard extends Board {
         return new Persistent.InitializingObjectSet<BoardMessageLink>(mFreetalk, q);
     }
 
+    /**
+     * Get the fetched messages which were linked into this board at or after the given date, sorted ascending by link date.
+     * 
+     * Other than the message date, which is chosen by the author, the link date tells which messages a client which has seen the board
+     * at a given time has not seen yet, see {@link BoardMessageLink#getLinkDate()}. The query is resolved by the index on the link date.
+     */
+    public synchronized ObjectSet<BoardMessageLink> getMessagesByMinimumLinkDate(final Date minimumLinkDate) {
+        final Query q = mDB.query();
+        q.constrain(BoardMessageLink.class);
+        q.descend("mBoard").constrain(this).identity();
+        q.descend("mLinkDate").constrain(minimumLinkDate).smaller().not();
+        q.descend("mLinkDate").constrain(null).identity().not();
+        q.descend("mLinkDate").orderAscending();
+        return new Persistent.InitializingObjectSet<BoardMessageLink>(mFreetalk, q);
+    }
+
     /**
      * Get the number of messages in this board.
      */
@@ -1020,6 +1245,7 @@ public final class SubscribedBoard extends Board {
     	final Query q = mDB.query();
         q.constrain(BoardReplyLink.class);
         q.descend("mBoard").constrain(this).identity();
+        q.descend("mThreadKey").constrain(MessageID.getIndexKey(threadID));
         q.descend("mThreadID").constrain(threadID);
         return q.execute().size();
     }
@@ -1032,6 +1258,7 @@ public final class SubscribedBoard extends Board {
     	final Query q = mDB.query();
         q.constrain(BoardReplyLink.class);
         q.descend("mBoard").constrain(this).identity();
+        q.descend("mThreadKey").constrain(MessageID.getIndexKey(threadID));
         q.descend("mThreadID").constrain(threadID);
         q.descend("mWasRead").constrain(false);
         
@@ -1045,6 +1272,7 @@ public final class SubscribedBoard extends Board {
     	final Query q = mDB.query();
         q.constrain(BoardReplyLink.class);
         q.descend("mBoard").constrain(this).identity();
+        q.descend("mThreadKey").constrain(MessageID.getIndexKey(threadID));
         q.descend("mThreadID").constrain(threadID);
         
         if (sortByDateAscending) {
@@ -1204,14 +1432,24 @@ public final class SubscribedBoard extends Board {
     	@IndexedField
     	protected final SubscribedBoard mBoard;
     	
-    	protected final String mAuthorID;
-    	
-    	@IndexedField
     	protected final String mThreadID;
     	
+    	/**
+    	 * The {@link MessageID#getIndexKey(String)} of {@link #mThreadID}.
+    	 * Not final because {@link Freetalk#upgradeDatabase()} computes it for links of old databases.
+    	 */
     	@IndexedField
+    	protected long mThreadKey;
+    	
     	protected final String mMessageID;
     	
+    	/**
+    	 * The {@link MessageID#getIndexKey(String)} of {@link #mMessageID}.
+    	 * Not final because {@link Freetalk#upgradeDatabase()} computes it for links of old databases.
+    	 */
+    	@IndexedField
+    	protected long mMessageKey;
+    	
     	protected Message mMessage;
     	
     	protected String mTitle;
@@ -1221,6 +1459,14 @@ public final class SubscribedBoard extends Board {
     	
     	@IndexedField
     	protected final int mIndex;
+    	
+    	/**
+    	 * The date when the message was linked into the board, i.e. when it became readable. Null as long as the message was not fetched.
+    	 * Not final because it is set when the message of a ghost link is fetched and {@link Freetalk#upgradeDatabase()} computes it for
+    	 * links of old databases.
+    	 */
+    	@IndexedField
+    	protected Date mLinkDate;
 
     	private boolean mWasRead = false;
 
@@ -1251,13 +1497,16 @@ public final class SubscribedBoard extends Board {
         	if(myMessageIndex < 0) throw new IllegalArgumentException();
 
     		mBoard = myBoard;
-			mAuthorID = MessageID.construct(myMessageID).getAuthorID().toString(); // TODO: Change this function to eat a MessageID, not String
+			final MessageID messageID = MessageID.construct(myMessageID); // TODO: Change this function to eat a MessageID, not String
     		mThreadID = myThreadID;
+    		mThreadKey = MessageID.getIndexKey(myThreadID);
     		mMessageID = myMessageID;
+    		mMessageKey = messageID.getIndexKey();
     		mMessage = null;
     		mTitle = myMessageTitleGuess;
     		mDate = myMessageDateGuess;
     		mIndex = myMessageIndex;
+    		mLinkDate = null;
     		
     		try {
 				assert(mIndex > mBoard.getLastMessageIndex());
@@ -1311,6 +1560,7 @@ public final class SubscribedBoard extends Board {
     		mMessage = myMessage; // We cannot use setMessage because initializeTransient was not called yet.
     		
     		mLastWantedCheckDate = CurrentTimeUTC.get();
+    		mLinkDate = mLastWantedCheckDate;
     		
 			// When a user creates a fresh Freetalk database, a huge bunch of messages will arrive in a relatively small time span
 			// Therefore, we randomize the first wanted-check date to ensure that they will not be checked all at once
@@ -1322,9 +1572,14 @@ public final class SubscribedBoard extends Board {
 			checkedActivate(1); // Date/String are db4o primitive types so 1 is enough
 			
 			IfNull.thenThrow(mBoard, "mBoard");
-			IfNull.thenThrow(mAuthorID, "mAuthorID");
 			IfNull.thenThrow(mThreadID, "mThreadID");
 	    	IfNull.thenThrow(mMessageID, "mMessageID");
+	    	
+	    	if(mThreadKey != MessageID.getIndexKey(mThreadID))
+	    		throw new IllegalStateException("mThreadKey does not match mThreadID: " + mThreadKey);
+	    	
+	    	if(mMessageKey != MessageID.getIndexKey(mMessageID))
+	    		throw new IllegalStateException("mMessageKey does not match mMessageID: " + mMessageKey);
 	    	IfNull.thenThrow(mTitle, "mTitle");
 	    	IfNull.thenThrow(mDate, "mDate");
 	    	
@@ -1343,7 +1598,7 @@ public final class SubscribedBoard extends Board {
 	        		throw new IllegalStateException("Parent board does not have my message: " + message);
 	        	}
 	    		
-	    		IfNotEquals.thenThrow(mAuthorID, message.getAuthor().getID(), "mAuthorID");
+	    		IfNotEquals.thenThrow(getAuthorID(), message.getAuthor().getID(), "getAuthorID()");
 	    		IfNotEquals.thenThrow(mMessageID, message.getID(), "mMessageID");
 	    		
 		    	try {
@@ -1364,6 +1619,10 @@ public final class SubscribedBoard extends Board {
 	    		IfNotEquals.thenThrow(mTitle, message.getTitle(), "mTitle");
 	    		IfNotEquals.thenThrow(mDate, message.getDate(), "mDate");
 	    		
+	    		IfNull.thenThrow(mLinkDate, "mLinkDate");
+	    		if(mLinkDate.before(message.getFetchDate()))
+	    			throw new IllegalStateException("mLinkDate==" + mLinkDate + " before the fetch date of the message: " + message.getFetchDate());
+	    		
 	        	IfNull.thenThrow(mLastWantedCheckDate, "mLastWantedCheckDate");
 	        	IfNull.thenThrow(mNextWantedCheckDate, "mNextWantedCheckDate");
 	        	
@@ -1383,6 +1642,9 @@ public final class SubscribedBoard extends Board {
 	    		
 	    		IfNotEquals.thenThrow(mNumberOfWantedChecks, 0, "mNumberOfWantedChecks");
 	    		
+	    		if(mLinkDate != null)
+	    			throw new IllegalStateException("mLinkDate==" + mLinkDate);
+	    		
 	    		if(mLastWantedCheckDate != null)
 	    			throw new IllegalStateException("mLastWantedCheckDate==" + mLastWantedCheckDate);
 	    		
@@ -1400,9 +1662,46 @@ public final class SubscribedBoard extends Board {
 			return mBoard;
 		}
 		
+		/**
+		 * Computes {@link #mThreadKey} and {@link #mMessageKey} for a link which was stored with database format version 2 or older.
+		 * Used by {@link Freetalk#upgradeDatabase()}.
+		 * 
+		 * You have to synchronize on the transaction lock when calling this function and commit the transaction afterwards.
+		 */
+		protected final void computeIndexKeysWithoutCommit() {
+			checkedActivate(1);
+			mThreadKey = MessageID.getIndexKey(mThreadID);
+			mMessageKey = MessageID.getIndexKey(mMessageID);
+			checkedStore();
+		}
+		
+		/**
+		 * Computes {@link #mLinkDate} for a link which was stored with database format version 4 or older: The link was created when the
+		 * message was fetched, or the message was fetched after the link was created if it was a ghost link.
+		 * Used by {@link Freetalk#upgradeDatabase()}.
+		 * 
+		 * You have to synchronize on the transaction lock when calling this function and commit the transaction afterwards.
+		 */
+		protected final void computeLinkDateWithoutCommit() {
+			checkedActivate(1);
+			
+			if(mMessage == null) {
+				mLinkDate = null;
+			} else {
+				mMessage.initializeTransient(mFreetalk);
+				final Date fetchDate = mMessage.getFetchDate();
+				mLinkDate = fetchDate.after(getCreationDate()) ? fetchDate : getCreationDate();
+			}
+			
+			checkedStore();
+		}
+		
+        /**
+         * Get the ID of the author of the message. It is not stored separately because it is part of the message ID.
+         */
         public final String getAuthorID() {
 			checkedActivate(1); // String is a db4o primitive type so 1 is enough
-        	return mAuthorID;
+        	return MessageID.construct(mMessageID).getAuthorID().toString();
         }
 		
         public final String getThreadID() {
@@ -1428,6 +1727,14 @@ public final class SubscribedBoard extends Board {
             return mMessage;
         }
         
+        /**
+         * @return False if the message belonging to this reference was not fetched yet, see {@link #getMessage()}.
+         */
+        public final boolean wasFetched() {
+        	checkedActivate(1);
+        	return mMessage != null;
+        }
+        
 		protected void setMessage(Message myMessage) {
 			if(myMessage == null)
 				throw new NullPointerException();
@@ -1453,6 +1760,7 @@ public final class SubscribedBoard extends Board {
 			markAsUnread();
 			
 			mLastWantedCheckDate = CurrentTimeUTC.get();
+			mLinkDate = mLastWantedCheckDate;
 			
 			// When a user creates a fresh Freetalk database, a huge bunch of messages will arrive in a relatively small time span
 			// Therefore, we randomize the first wanted-check date to ensure that they will not be checked all at once
@@ -1463,6 +1771,7 @@ public final class SubscribedBoard extends Board {
 		protected void removeMessage() {
 			checkedActivate(1);
 			mMessage = null;
+			mLinkDate = null;
 			
 			mLastWantedCheckDate = null;
 			mNextWantedCheckDate = null;
@@ -1487,6 +1796,14 @@ public final class SubscribedBoard extends Board {
         	return mDate;
         }
         
+        /**
+         * Get the date when the message was linked into the board, null if it was not fetched yet.
+         */
+        public final Date getLinkDate() {
+			checkedActivate(1); // Date is a db4o primitive type so 1 is enough
+        	return mLinkDate;
+        }
+        
     	protected void setMessageDate(Date date) {
 			checkedActivate(1); // Date is a db4o primitive type so 1 is enough
 			
@@ -1529,6 +1846,7 @@ public final class SubscribedBoard extends Board {
         		if(mMessage != null) throwIfNotStored(mMessage);
 
         		checkedStore();
+        		getBoard().onLinkChangedWithoutCommit(getIndex(), BoardProjection.summarize(this));
         	}
         	catch(RuntimeException e) {
         		checkedRollbackAndThrow(e);
@@ -1554,6 +1872,13 @@ public final class SubscribedBoard extends Board {
     		deleteWithoutCommit(1);
 		}
     	
+    	@Override
+    	protected void deleteWithoutCommit(final int activationDepth) {
+    		final int index = getIndex();
+    		super.deleteWithoutCommit(activationDepth);
+    		getBoard().onLinkChangedWithoutCommit(index, null);
+    	}
+    	
     	@Override
     	public String toString() {
     		Message message;
@@ -1864,6 +2189,46 @@ public final class SubscribedBoard extends Board {
 		public void markThreadAndRepliesAsReadAndCommit() {
 			changeThreadAndRepliesReadStateAndCommit(true);
 		}
+		
+		/**
+		 * Marks some messages of this thread as read, for example the ones which were displayed on a page of the thread. The whole
+		 * thread is marked as read if no unread message remains.
+		 * 
+		 * @param includingThread True if the thread message itself shall be marked as read.
+		 * @param replies Replies of this thread.
+		 */
+		public void markMessagesAsReadAndCommit(final boolean includingThread, final List<BoardReplyLink> replies) {
+			checkedActivate(1);
+			
+			synchronized(mBoard) {
+			synchronized(Persistent.transactionLock(mDB)) {
+				try {
+					if(includingThread)
+						markAsRead();
+					
+					for(BoardReplyLink reply : replies) {
+						if(!reply.getThreadID().equals(mThreadID))
+							throw new IllegalArgumentException("Reply is not from this thread: " + reply);
+						
+						if(!reply.wasRead()) {
+							reply.markAsRead();
+							reply.storeWithoutCommit();
+						}
+					}
+					
+					// The query also sees the replies which were marked above because it is executed in the same transaction.
+					if(wasRead() && getBoard().threadUnreadReplyCount(mThreadID) == 0)
+						markThreadAsRead();
+					
+					storeWithoutCommit();
+					checkedCommit(this);
+				}
+				catch(RuntimeException e) {
+					checkedRollbackAndThrow(e);
+				}
+			}
+			}
+		}
     }
     
     @Override
@@ -90,6 +90,11 @@ public final class WoTIdentityManager extends IdentityManager implements PrioRun
 	
 	private WebOfTrustCache mWoTCache = new WebOfTrustCache();
 	
+	/**
+	 * Stored in the score cache of {@link #mWoTCache} if WoT has reported that the trustee is not in the trust tree of the truster.
+	 */
+	private static final int SCORE_NOT_IN_TRUST_TREE = Integer.MIN_VALUE;
+	
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
@@ -324,13 +329,31 @@ public final class WoTIdentityManager extends IdentityManager implements PrioRun
 		
 		final String score = getProperty(truster, trustee, "Score");
 		
-		if(score.equals("null"))
+		if(score.equals("null")) {
+			mWoTCache.putScore(truster, trustee, SCORE_NOT_IN_TRUST_TREE);
 			throw new NotInTrustTreeException(truster, trustee);
+		}
 		
 		final int value = Integer.parseInt(score);
 		mWoTCache.putScore(truster, trustee, value);
 		return value;
 	}
+	
+	/**
+	 * Get the score of an identity from the scores which were recently received from WoT by {@link #getScore(WoTOwnIdentity, WoTIdentity)}.
+	 * Does not query WoT and does not lock this identity manager, so it can be used for displaying many identities at once.
+	 * 
+	 * @return The score, null if it was not received recently.
+	 * @throws NotInTrustTreeException If WoT has recently reported that the trustee is not in the trust tree of the truster.
+	 */
+	public Integer getCachedScore(final WoTOwnIdentity truster, final String trusteeID) throws NotInTrustTreeException {
+		final Integer score = mWoTCache.getCachedScore(truster, trusteeID);
+		
+		if(score != null && score == SCORE_NOT_IN_TRUST_TREE)
+			throw new NotInTrustTreeException(truster, trusteeID);
+		
+		return score;
+	}
 
 	/**
 	 * Not synchronized, the involved identities might be deleted during the query - which is not really a problem.
@@ -1074,6 +1097,16 @@ public final class WoTIdentityManager extends IdentityManager implements PrioRun
 		return nickname;
 	}
 	
+	/**
+	 * Get the shortest unique name of the identity with the given ID without obtaining the identity from the database.
+	 * Does not lock anything.
+	 * 
+	 * @return The name, null if the identity was not known when the cache of the names was updated the last time.
+	 */
+	public String getCachedShortestUniqueName(String identityID) {
+		return mShortestUniqueNicknameCache.get(identityID);
+	}
+	
 	private final class WebOfTrustCache {
 		public static final long EXPIRATION_DELAY = 5 * 60 * 1000;
 		
@@ -1091,6 +1124,11 @@ public final class WoTIdentityManager extends IdentityManager implements PrioRun
 				mTrusteeID = trustee.getID();
 			}
 			
+			public TrustKey(final WoTIdentity truster, final String trusteeID) {
+				mTrusterID = truster.getID();
+				mTrusteeID = trusteeID;
+			}
+			
 			@Override
 			public boolean equals(final Object o) {
 				final TrustKey other = (TrustKey)o;
@@ -1121,13 +1159,23 @@ public final class WoTIdentityManager extends IdentityManager implements PrioRun
 		public synchronized int getScore(final WoTOwnIdentity truster, final WoTIdentity trustee) throws NotInTrustTreeException, Exception {
 			{
 				final Integer cachedValue = mScoreCache.get(new TrustKey(truster, trustee));
-				if(cachedValue != null)
+				if(cachedValue != null) {
+					if(cachedValue == SCORE_NOT_IN_TRUST_TREE)
+						throw new NotInTrustTreeException(truster, trustee);
 					return cachedValue;
+				}
 			}
 			
 			return WoTIdentityManager.this.getScore(truster, trustee);	// This will update the cache
 		}
 		
+		/**
+		 * @return The cached score, {@link #SCORE_NOT_IN_TRUST_TREE} or null if there is none.
+		 */
+		public synchronized Integer getCachedScore(final WoTOwnIdentity truster, final String trusteeID) {
+			return mScoreCache.get(new TrustKey(truster, trusteeID));
+		}
+		
 		public synchronized void putTrust(final WoTIdentity truster, final WoTIdentity trustee, final byte value) {
 			mTrustCache.put(new TrustKey(truster, trustee), value);
 		}
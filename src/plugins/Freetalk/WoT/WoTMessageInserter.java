@@ -9,7 +9,6 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Random;
 
 import javax.xml.parsers.ParserConfigurationException;
@@ -45,6 +44,10 @@ import freenet.support.io.NativeThread;
  * <code>WoTMessageListInserter</code> will obtain the CHK URIs of the messages from the <code>MessageManager</code> and publish them in
  * a <code>MessageList</code>.
  * 
+ * Inserting is pipelined: {@link #iterate()} only queries the not inserted messages, the XML of each message is encoded by a job on the
+ * node's executor and the job then starts the insert. No more than {@link #MAX_PARALLEL_MESSAGE_INSERT_COUNT} messages are being encoded
+ * or inserted at once, the remaining messages are picked up as soon as inserts finish.
+ * 
  * @author xor
  */
 public final class WoTMessageInserter extends MessageInserter {
@@ -56,6 +59,11 @@ public final class WoTMessageInserter extends MessageInserter {
 	
 	private static final int ESTIMATED_PARALLEL_MESSAGE_INSERT_COUNT = 10;
 	
+	/**
+	 * The maximal number of messages which are being encoded or inserted at once.
+	 */
+	private static final int MAX_PARALLEL_MESSAGE_INSERT_COUNT = 64; // TODO: Make configurable.
+	
 	private final WoTMessageManager mMessageManager;
 	
 	private final Random mRandom;
@@ -67,9 +75,22 @@ public final class WoTMessageInserter extends MessageInserter {
 	private final HashMap<BaseClientPutter, String> mPutterMessageIDs = new HashMap<BaseClientPutter, String>(2*ESTIMATED_PARALLEL_MESSAGE_INSERT_COUNT);
 
 	/**
-	 * Contains the IDs of the message lists which are currently being inserted, used for preventing double inserts.
+	 * Contains the IDs of the messages which are currently being encoded, used for preventing double inserts.
+	 * A message ID is removed from it when its insert is started or when the insert is aborted during encoding.
+	 */
+	private final HashSet<String> mEncodingMessageIDs = new HashSet<String>(2*ESTIMATED_PARALLEL_MESSAGE_INSERT_COUNT);
+	
+	/**
+	 * The reverse of {@link #mPutterMessageIDs}: For the ID of each message which is currently being inserted, the
+	 * <code>BaseClientPutter</code> of the insert. Used for preventing double inserts and for aborting inserts.
 	 */
-	private final HashSet<String> mMessageIDs = new HashSet<String>(2*ESTIMATED_PARALLEL_MESSAGE_INSERT_COUNT);
+	private final HashMap<String, BaseClientPutter> mMessageIDPutters = new HashMap<String, BaseClientPutter>(2*ESTIMATED_PARALLEL_MESSAGE_INSERT_COUNT);
+	
+	/**
+	 * True if the last iteration did not start the insert of all not inserted messages because {@link #MAX_PARALLEL_MESSAGE_INSERT_COUNT}
+	 * was reached. The next iteration is then started as soon as an insert finishes.
+	 */
+	private boolean mMoreMessagesPending = false;
 	
 	private final WoTMessageXML mXML;
 	
@@ -116,8 +137,18 @@ public final class WoTMessageInserter extends MessageInserter {
 		return THREAD_PERIOD/2 + mRandom.nextInt(THREAD_PERIOD);
 	}
 
+	/**
+	 * Get the number of messages which are being encoded or inserted. You have to synchronize on this <code>WoTMessageInserter</code>
+	 * when using this function.
+	 */
+	private int getPendingInsertCount() {
+		return mEncodingMessageIDs.size() + mMessageIDPutters.size();
+	}
+
 	@Override
-	protected synchronized void iterate() {		
+	protected synchronized void iterate() {
+		mMoreMessagesPending = false;
+		
 		synchronized(mMessageManager) {
 			for(WoTOwnMessage message : mMessageManager.getNotInsertedOwnMessages()) {
 				try {
@@ -125,8 +156,19 @@ public final class WoTMessageInserter extends MessageInserter {
 					if(!message.testFreenetURIisNull()) // Logs an error for us
 						continue;
 					
-					if(!mMessageIDs.contains(message.getID()))
-						insertMessage(message);
+					final String messageID = message.getID();
+					
+					if(mEncodingMessageIDs.contains(messageID) || mMessageIDPutters.containsKey(messageID))
+						continue;
+					
+					if(getPendingInsertCount() >= MAX_PARALLEL_MESSAGE_INSERT_COUNT) {
+						if(logDEBUG) Logger.debug(this, "Maximal number of parallel inserts reached, postponing the remaining messages.");
+						mMoreMessagesPending = true;
+						break;
+					}
+					
+					mEncodingMessageIDs.add(messageID);
+					mNode.executor.execute(new EncodeAndInsertJob(message), "Freetalk " + WoTMessageInserter.class.getSimpleName() + " encoder");
 				}
 				catch(Exception e) {
 					Logger.error(this, "Insert of message failed", e);
@@ -136,9 +178,53 @@ public final class WoTMessageInserter extends MessageInserter {
 	}
 	
 	/**
-	 * You have to synchronize on this <code>WoTMessageInserter</code> when using this function.
+	 * Encodes the XML of a message without holding any locks and then starts its insert.
 	 */
-	protected void insertMessage(OwnMessage m) throws InsertException, IOException, TransformerException, ParserConfigurationException {
+	private final class EncodeAndInsertJob implements Runnable {
+		
+		private final OwnMessage mMessage;
+		
+		private final String mMessageID;
+		
+		public EncodeAndInsertJob(OwnMessage message) {
+			mMessage = message;
+			mMessageID = message.getID();
+		}
+
+		public void run() {
+			Bucket bucket = null;
+			
+			try {
+				bucket = encodeMessage(mMessage);
+				
+				synchronized(WoTMessageInserter.this) {
+					if(!mEncodingMessageIDs.remove(mMessageID)) {
+						if(logDEBUG) Logger.debug(this, "Insert was aborted during encoding: " + mMessageID);
+						return;
+					}
+					
+					insertMessage(mMessage, bucket);
+					bucket = null;
+				}
+			}
+			catch(Exception e) {
+				Logger.error(this, "Insert of message failed", e);
+				
+				synchronized(WoTMessageInserter.this) {
+					mEncodingMessageIDs.remove(mMessageID);
+				}
+			}
+			finally {
+				if(bucket != null)
+					bucket.free();
+			}
+		}
+	}
+	
+	/**
+	 * Encodes the XML of the given message into a new read-only bucket. Does not require any synchronization.
+	 */
+	private Bucket encodeMessage(OwnMessage m) throws IOException, TransformerException, ParserConfigurationException {
 		Bucket tempB = mTBF.makeBucket(2048 + m.getText().length()); /* TODO: set to a reasonable value */
 		OutputStream os = null;
 		
@@ -147,18 +233,10 @@ public final class WoTMessageInserter extends MessageInserter {
 			mXML.encode(m, os);
 			os.close(); os = null;
 			tempB.setReadOnly();
-
-			/* We do not specifiy a ClientMetaData with mimetype because that would result in the insertion of an additional CHK */
-			InsertBlock ib = new InsertBlock(tempB, null, m.getInsertURI());
-			InsertContext ictx = mClient.getInsertContext(true);
-
-			ClientPutter pu = mClient.insert(ib, false, null, false, ictx, this, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
-			addInsert(pu);
-			mPutterMessageIDs.put(pu, m.getID());
-			mMessageIDs.add(m.getID());
+			
+			final Bucket result = tempB;
 			tempB = null;
-
-			if(logDEBUG) Logger.debug(this, "Started insert of message from " + m.getAuthor().getNickname());
+			return result;
 		}
 		finally {
 			if(tempB != null)
@@ -167,19 +245,35 @@ public final class WoTMessageInserter extends MessageInserter {
 		}
 	}
 	
+	/**
+	 * You have to synchronize on this <code>WoTMessageInserter</code> when using this function.
+	 * 
+	 * @param bucket The encoded message, see {@link #encodeMessage(OwnMessage)}. It is freed when the insert finishes.
+	 */
+	private void insertMessage(OwnMessage m, Bucket bucket) throws InsertException {
+		/* We do not specifiy a ClientMetaData with mimetype because that would result in the insertion of an additional CHK */
+		InsertBlock ib = new InsertBlock(bucket, null, m.getInsertURI());
+		InsertContext ictx = mClient.getInsertContext(true);
+
+		ClientPutter pu = mClient.insert(ib, false, null, false, ictx, this, RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+		addInsert(pu);
+		mPutterMessageIDs.put(pu, m.getID());
+		mMessageIDPutters.put(m.getID(), pu);
+
+		if(logDEBUG) Logger.debug(this, "Started insert of message from " + m.getAuthor().getNickname());
+	}
+	
 	@Override
 	public synchronized void abortMessageInsert(String messageID) {
-		if(!mMessageIDs.contains(messageID))
+		// If the message is being encoded, the EncodeAndInsertJob will notice that it was removed and not start the insert.
+		if(mEncodingMessageIDs.remove(messageID))
 			return;
 		
-		// TODO: Optimization: If we ever run in public gateway mode and therefore have thousands of pending inserts this needs to be optimized
-		for(Map.Entry<BaseClientPutter, String> entry : mPutterMessageIDs.entrySet()) {
-			if(messageID.equals(entry.getValue())) {
-				// The following will call onFailure which removes the request from mMessageIDs / mPutterMessageIDs
-				entry.getKey().cancel(null, mClientContext);
-				break;
-			}
-		}
+		final BaseClientPutter putter = mMessageIDPutters.get(messageID);
+		
+		// The following will call onFailure which removes the request from mMessageIDPutters / mPutterMessageIDs
+		if(putter != null)
+			putter.cancel(null, mClientContext);
 	}
 
 	@Override
@@ -219,7 +313,8 @@ public final class WoTMessageInserter extends MessageInserter {
 	protected synchronized void abortAllTransfers() {
 		super.abortAllTransfers();
 		mPutterMessageIDs.clear();
-		mMessageIDs.clear();
+		mMessageIDPutters.clear();
+		mEncodingMessageIDs.clear();
 	}
 	
 	/**
@@ -228,7 +323,12 @@ public final class WoTMessageInserter extends MessageInserter {
 	@Override
 	protected void removeInsert(BaseClientPutter p) {
 		super.removeInsert(p);
-		mMessageIDs.remove(mPutterMessageIDs.remove(p));
+		mMessageIDPutters.remove(mPutterMessageIDs.remove(p));
+		
+		if(mMoreMessagesPending && getPendingInsertCount() < MAX_PARALLEL_MESSAGE_INSERT_COUNT) {
+			mMoreMessagesPending = false;
+			nextIteration();
+		}
 	}
 
 	
@@ -8,11 +8,14 @@ import java.io.OutputStream;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Random;
+import java.util.Set;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 
+import plugins.Freetalk.Configuration;
 import plugins.Freetalk.Freetalk;
+import plugins.Freetalk.OwnIdentity;
 import plugins.Freetalk.MessageList.MessageListID;
 import plugins.Freetalk.MessageListInserter;
 import plugins.Freetalk.exceptions.NoSuchMessageException;
@@ -32,12 +35,22 @@ import freenet.client.async.ClientPutter;
 import freenet.keys.FreenetURI;
 import freenet.node.Node;
 import freenet.node.RequestStarter;
+import freenet.support.CurrentTimeUTC;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.io.Closer;
 import freenet.support.io.NativeThread;
 
 /**
+ * Inserts the {@link WoTOwnMessageList}s of the own identities.
+ * 
+ * A message list is not inserted as soon as it exists: It waits for {@link Configuration#MESSAGELIST_INSERT_DELAY} seconds after its
+ * creation so that further messages of the author are put into the same list. Full lists are inserted immediately, and
+ * {@link #insertMessageListsNow(OwnIdentity)} allows the user of an identity to skip the delay, see the "Publish now" button of the
+ * outbox page.
+ * This reduces the number of message lists which are inserted by authors who post many messages in a short time and therefore also
+ * the number of message lists which every reader has to fetch.
+ * 
  * @author xor (xor@freenetproject.org)
  */
 public final class WoTMessageListInserter extends MessageListInserter {
@@ -46,12 +59,38 @@ public final class WoTMessageListInserter extends MessageListInserter {
 	private static final int THREAD_PERIOD = Freetalk.FAST_DEBUG_MODE ? (2 * 60 * 1000) : (10 * 60 * 1000);
 	private static final int MAX_PARALLEL_MESSAGELIST_INSERT_COUNT = 8;
 
+	private final Freetalk mFreetalk;
+	
 	private final WoTMessageManager mMessageManager;
 	
 	private final Random mRandom;
 	
 	private final WoTMessageListXML mXML;
 	
+	/**
+	 * The period in which the inserter checks for new message lists while there are insert-now requests whose messages are still being
+	 * inserted: Their lists are only created once the messages are inserted.
+	 */
+	private static final int INSERT_NOW_PERIOD = 30 * 1000;
+	
+	/**
+	 * The IDs of the own identities whose message lists shall be inserted without waiting for further messages.
+	 * Each ID is removed by the first iteration after all messages which the identity had posted were put into message lists.
+	 * Synchronized on this WoTMessageListInserter.
+	 */
+	private final Set<String> mInsertNowRequests = new HashSet<String>();
+	
+	/**
+	 * True if {@link #mInsertNowRequests} was not empty after the last iteration. Used by {@link #getSleepTime()}.
+	 */
+	private volatile boolean mHasInsertNowRequests = false;
+	
+	/**
+	 * The time at which the next not inserted message list has waited long enough, Long.MAX_VALUE if there is none.
+	 * Computed by {@link #iterate()} and used by {@link #getSleepTime()}.
+	 */
+	private volatile long mNextInsertTime = Long.MAX_VALUE;
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -62,9 +101,10 @@ public final class WoTMessageListInserter extends MessageListInserter {
 	}
 	
 
-	public WoTMessageListInserter(Node myNode, HighLevelSimpleClient myClient, String myName, WoTIdentityManager myIdentityManager,
+	public WoTMessageListInserter(Node myNode, HighLevelSimpleClient myClient, String myName, Freetalk myFreetalk, WoTIdentityManager myIdentityManager,
 			WoTMessageManager myMessageManager, WoTMessageListXML myMessageListXML) {
 		super(myNode, myClient, myName, myIdentityManager, myMessageManager);
+		mFreetalk = myFreetalk;
 		mMessageManager = myMessageManager;
 		mRandom = mNode.fastWeakRandom;
 		mXML = myMessageListXML;
@@ -106,17 +146,49 @@ public final class WoTMessageListInserter extends MessageListInserter {
 	
 	@Override
 	protected long getSleepTime() {
-		return THREAD_PERIOD/2 + mRandom.nextInt(THREAD_PERIOD);
+		final long sleepTime = mHasInsertNowRequests ? INSERT_NOW_PERIOD : THREAD_PERIOD/2 + mRandom.nextInt(THREAD_PERIOD);
+		final long nextInsertTime = mNextInsertTime;
+		
+		if(nextInsertTime == Long.MAX_VALUE)
+			return sleepTime;
+		
+		return Math.max(0, Math.min(sleepTime, nextInsertTime - CurrentTimeUTC.getInMillis()));
+	}
+	
+	/**
+	 * Get the number of milliseconds for which a message list waits for further messages before it is inserted.
+	 */
+	private long getInsertDelay() {
+		return mFreetalk.getConfig().getInt(Configuration.MESSAGELIST_INSERT_DELAY) * 1000L;
+	}
+	
+	/**
+	 * Causes the message lists of the given identity to be inserted as soon as possible, without waiting for further messages.
+	 * Affects the lists which exist now and the lists of the messages which the identity has posted already but which are still
+	 * being inserted. Called when the user clicks "Publish now" on the outbox page.
+	 */
+	public synchronized void insertMessageListsNow(OwnIdentity author) {
+		mInsertNowRequests.add(author.getID());
+		mHasInsertNowRequests = true;
+		nextIteration();
 	}
-
 
 	@Override
 	protected synchronized void iterate() {
+		final long now = CurrentTimeUTC.getInMillis();
+		final long insertDelay = getInsertDelay();
+		long nextInsertTime = Long.MAX_VALUE;
+		
 		synchronized(mMessageManager) {
 			for(WoTOwnMessageList list : mMessageManager.getNotInsertedOwnMessageLists()) {
 				try {
-					/* TODO: Ensure that after creation of a message list we wait for at least a few minutes so that if the author writes 
-					 * more messages they will be put in the same list */
+					final long insertTime = list.getCreationDate().getTime() + insertDelay;
+					
+					if(insertTime > now && !list.isFull() && !mInsertNowRequests.contains(list.getAuthor().getID())) {
+						if(logDEBUG) Logger.debug(this, "Waiting for more messages before inserting " + list);
+						nextInsertTime = Math.min(nextInsertTime, insertTime);
+						continue;
+					}
 					
 					// No dupe check is needed: The MessageManager query only returns lists which have the IsBeingInserted flag set to false.
 					insertMessageList(list);
@@ -126,6 +198,20 @@ public final class WoTMessageListInserter extends MessageListInserter {
 				}
 			}
 		}
+		
+		
+		// Messages which are still being inserted are put into message lists later, the request has to stay for them.
+		if(!mInsertNowRequests.isEmpty()) {
+			final HashSet<String> authorsWithPendingMessages = new HashSet<String>();
+			synchronized(mMessageManager) {
+				for(WoTOwnMessage message : mMessageManager.getNotInsertedOwnMessages())
+					authorsWithPendingMessages.add(message.getAuthor().getID());
+			}
+			mInsertNowRequests.retainAll(authorsWithPendingMessages);
+		}
+		
+		mHasInsertNowRequests = !mInsertNowRequests.isEmpty();
+		mNextInsertTime = nextInsertTime;
 	}
 	
 	/**
@@ -5,10 +5,8 @@ package plugins.Freetalk.WoT;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.TimeZone;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
@@ -27,6 +25,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import plugins.Freetalk.Board;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.Message;
 import plugins.Freetalk.Message.MessageID;
@@ -46,8 +45,6 @@ public final class WoTMessageListXML {
 	private static final int XML_FORMAT_VERSION = 1;
 	
 	
-	private final SimpleDateFormat mDateFormat;
-	
 	private final DocumentBuilder mDocumentBuilder;
 	
 	private final DOMImplementation mDOM;
@@ -68,9 +65,6 @@ public final class WoTMessageListXML {
 			mSerializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
 			mSerializer.setOutputProperty(OutputKeys.INDENT, "no");
 			mSerializer.setOutputProperty(OutputKeys.STANDALONE, "no");
-			
-			mDateFormat = new SimpleDateFormat("yyyy-MM-dd");
-			mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
 		}
 		catch(Exception e) {
 			throw new RuntimeException(e);
@@ -124,9 +118,7 @@ public final class WoTMessageListXML {
 				
 				// Date
 				
-				synchronized(mDateFormat) {
-					messageElement.setAttribute("Date", mDateFormat.format(message.getDate()));
-				}
+				messageElement.setAttribute("Date", DateFormatter.formatXMLDate(message.getDate()));
 				
 				// Boards
 				
@@ -194,10 +186,7 @@ public final class WoTMessageListXML {
 			
 			// Date
 			
-			final Date messageDate;
-			synchronized(mDateFormat) {
-				messageDate = mDateFormat.parse(messageElement.getAttribute("Date"));
-			}
+			final Date messageDate = DateFormatter.parseXMLDate(messageElement.getAttribute("Date"));
 		
 			// Boards
 			
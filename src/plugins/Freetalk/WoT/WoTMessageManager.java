@@ -189,6 +189,9 @@ public final class WoTMessageManager extends MessageManager {
 					
 					final IdentityStatistics stats = getOrCreateIdentityStatistics(author);
 					stats.onMessageListFetched(ghostList);
+					// See getFreeOwnMessageListIndex() for why DataNotFound lists do not take their slot.
+					if(reason != FetchFailedMarker.Reason.DataNotFound)
+						stats.onMessageListIndexTaken(ghostList.getIndex());
 					stats.storeWithoutCommit();
 					
 					if(marker == null) {
@@ -272,6 +275,7 @@ public final class WoTMessageManager extends MessageManager {
 		
 		list.addMessage(message);
 		list.storeWithoutCommit();
+		onOwnMessageListIndexTaken(author, list.getIndex());
 		if(logDEBUG) Logger.debug(this, "Found no list with free space, created the new list " + list.getID() + " for own message " + message.getID());
 	}
 
@@ -359,15 +363,46 @@ public final class WoTMessageManager extends MessageManager {
 	/**
 	 * Get the next free index for an OwnMessageList. You have to synchronize on this MessageManager while creating an OwnMessageList, this
 	 * function does not provide synchronization.
+	 * 
+	 * The index is cached in the {@link IdentityStatistics} of the author, it is only computed from the message lists in the database
+	 * if it is not known yet. Therefore, you have to call {@link #onOwnMessageListIndexTaken(WoTOwnIdentity, long)} when using the index.
+	 * You have to synchronize on Persistent.transactionLock(db) when using this function, the statistics might be stored.
 	 */
 	public long getFreeOwnMessageListIndex(final WoTOwnIdentity messageAuthor)  {
+		final IdentityStatistics stats = getOrCreateIdentityStatistics(messageAuthor);
+		long index = stats.getFreeOwnMessageListIndex();
+		
+		if(index == -1) {
+			index = computeFreeOwnMessageListIndex(messageAuthor);
+			stats.setFreeOwnMessageListIndex(index);
+			stats.storeWithoutCommit();
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * Marks the given index as used by an OwnMessageList so {@link #getFreeOwnMessageListIndex(WoTOwnIdentity)} will not return it anymore.
+	 * You have to synchronize on this MessageManager and on Persistent.transactionLock(db) when using this function.
+	 */
+	protected void onOwnMessageListIndexTaken(final WoTOwnIdentity messageAuthor, final long index) {
+		final IdentityStatistics stats = getOrCreateIdentityStatistics(messageAuthor);
+		stats.onMessageListIndexTaken(index);
+		stats.storeWithoutCommit();
+	}
+
+	/**
+	 * Computes the next free index for an OwnMessageList from the message lists in the database.
+	 * This sorts all message lists of the author so it is only used if the index is not cached in the IdentityStatistics yet.
+	 */
+	private long computeFreeOwnMessageListIndex(final WoTOwnIdentity messageAuthor)  {
 		// We do not use IdentityStatistics since it does not guarantee to return the highest existing list, it just guarantees that
 		// the index after the one which it has returned does not exist. We must of course not re-use own message list indices.
 		final Query q = db.query();
 		// We query for MessageList and not OwnMessageList because the user might have deleted his own messages or lost his database
 		q.constrain(MessageList.class);
 		q.descend("mAuthor").constrain(messageAuthor).identity();
-		q.descend("mIndex").orderDescending(); // TODO: This is inefficient!
+		q.descend("mIndex").orderDescending();
 		final ObjectSet<MessageList> result = new Persistent.InitializingObjectSet<MessageList>(mFreetalk, q);
 		
 		// We must look for the latest message list which was not marked as fetch failed and return its index + 1
@@ -5,12 +5,10 @@ package plugins.Freetalk.WoT;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Set;
-import java.util.TimeZone;
 
 import javax.activation.MimeType;
 import javax.xml.XMLConstants;
@@ -30,6 +28,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NodeList;
 
 import plugins.Freetalk.Board;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.Message;
 import plugins.Freetalk.Message.Attachment;
@@ -52,8 +51,6 @@ public final class WoTMessageXML {
 	private static final int XML_FORMAT_VERSION = 1;
 	
 	
-	private final SimpleDateFormat mDateFormat;	
-	
 	private final DocumentBuilder mDocumentBuilder;
 	
 	private final DOMImplementation mDOM;
@@ -73,9 +70,6 @@ public final class WoTMessageXML {
 			mSerializer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
 			mSerializer.setOutputProperty(OutputKeys.INDENT, "no");
 			mSerializer.setOutputProperty(OutputKeys.STANDALONE, "no");
-			
-			mDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-			mDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
 		}
 		catch(Exception e) {
 			throw new RuntimeException(e);
@@ -108,9 +102,7 @@ public final class WoTMessageXML {
 			
 			// Date
 			
-			synchronized(mDateFormat) {
-				messageElement.setAttribute("Date", mDateFormat.format(m.getDate()));
-			}
+			messageElement.setAttribute("Date", DateFormatter.formatXMLDateTime(m.getDate()));
 			
 			// Boards
 			
@@ -216,10 +208,7 @@ public final class WoTMessageXML {
 		
 		// Date
 		
-		final Date messageDate;
-		synchronized(mDateFormat) {
-			messageDate = mDateFormat.parse(messageElement.getAttribute("Date"));
-		}
+		final Date messageDate = DateFormatter.parseXMLDateTime(messageElement.getAttribute("Date"));
 		
 		// Board list
 		
@@ -6,6 +6,7 @@ package plugins.Freetalk.WoT;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
 import java.util.HashMap;
 
 import plugins.Freetalk.FetchFailedMarker;
@@ -51,6 +52,17 @@ public final class WoTNewMessageListFetcher implements MessageListFetcher, USKRe
 
 	private static final long PROCESS_COMMANDS_DELAY = 60 * 1000;
 	
+	/**
+	 * Fetched message lists are not stored one by one but queued and stored in batches by {@link WoTMessageManager#onMessageListsReceived}.
+	 * This is the delay after which a non-full batch is stored.
+	 */
+	private static final long PROCESS_RECEIVED_LISTS_DELAY = 10 * 1000;
+	
+	/**
+	 * The amount of queued message lists at which the batch is stored immediately instead of waiting for PROCESS_RECEIVED_LISTS_DELAY.
+	 */
+	private static final int MAX_RECEIVED_LISTS_BATCH_SIZE = 64;
+	
 	private final Freetalk mFreetalk;
 	private final WoTIdentityManager mIdentityManager;
 	private final WoTMessageManager mMessageManager;
@@ -72,6 +84,12 @@ public final class WoTNewMessageListFetcher implements MessageListFetcher, USKRe
 	
 	private final WoTMessageListXML mXML;
 	
+	/**
+	 * Decoded message lists which have not been stored yet. They are not persistent: If we are shut down before they are stored, the USK
+	 * subscription will fetch them again after restart because the edition hints are computed from the stored lists.
+	 */
+	private final ArrayList<WoTMessageList> mReceivedLists = new ArrayList<WoTMessageList>(MAX_RECEIVED_LISTS_BATCH_SIZE);
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -293,6 +311,68 @@ public final class WoTNewMessageListFetcher implements MessageListFetcher, USKRe
 		mTicker.queueTimedJob(this, "FT NewMessageListFetcher", PROCESS_COMMANDS_DELAY, false, true);
 	}
 	
+	private final Runnable mReceivedListsProcessor = new PrioRunnable() {
+		public int getPriority() {
+			return NativeThread.NORM_PRIORITY;
+		}
+		
+		public void run() {
+			processReceivedLists();
+		}
+	};
+	
+	/**
+	 * Queues the given list for being stored by {@link #processReceivedLists()}. Stores the queue immediately if it is full.
+	 */
+	private void queueReceivedList(WoTMessageList list) {
+		final boolean full;
+		
+		synchronized(mReceivedLists) {
+			mReceivedLists.add(list);
+			full = mReceivedLists.size() >= MAX_RECEIVED_LISTS_BATCH_SIZE;
+		}
+		
+		if(full)
+			processReceivedLists();
+		else
+			mTicker.queueTimedJob(mReceivedListsProcessor, "FT NewMessageListFetcher", PROCESS_RECEIVED_LISTS_DELAY, false, true);
+	}
+	
+	/**
+	 * Stores all queued message lists with a single call to {@link WoTMessageManager#onMessageListsReceived}.
+	 * Lists of identities which were deleted while the list was queued are dropped.
+	 */
+	private void processReceivedLists() {
+		final ArrayList<WoTMessageList> batch;
+		
+		synchronized(mReceivedLists) {
+			if(mReceivedLists.isEmpty())
+				return;
+			
+			batch = new ArrayList<WoTMessageList>(mReceivedLists);
+			mReceivedLists.clear();
+		}
+		
+		if(logDEBUG) Logger.debug(this, "Storing " + batch.size() + " fetched message lists...");
+		
+		synchronized(mIdentityManager) {
+			final ArrayList<WoTMessageList> existingAuthors = new ArrayList<WoTMessageList>(batch.size());
+			
+			for(WoTMessageList list : batch) {
+				try {
+					mIdentityManager.getIdentity(list.getAuthor().getID());
+					existingAuthors.add(list);
+				} catch(NoSuchIdentityException e) {
+					Logger.normal(this, "Identity was deleted already, ignoring MessageList " + list);
+				}
+			}
+			
+			synchronized(mMessageManager) {
+				mMessageManager.onMessageListsReceived(existingAuthors);
+			}
+		}
+	}
+	
 	public int getPriority() {
 		return NativeThread.LOW_PRIORITY;
 	}
@@ -458,13 +538,16 @@ public final class WoTNewMessageListFetcher implements MessageListFetcher, USKRe
 	}
 
 	/**
-	 * Stops all running requests.
+	 * Stops all running requests and stores the queued fetched message lists.
 	 */
 	public synchronized void stop() {
 		if(logDEBUG) Logger.debug(this, "Trying to stop all requests");
 		
 		mTicker.shutdown();
 		
+		// Store what we have got instead of re-fetching it after restart.
+		processReceivedLists();
+		
 		USKRetriever[] retrievers = mRequests.values().toArray(new USKRetriever[mRequests.size()]);		
 		int counter = 0;		 
 		for(USKRetriever r : retrievers) {
@@ -519,13 +602,14 @@ public final class WoTNewMessageListFetcher implements MessageListFetcher, USKRe
 			bucket = result.asBucket();
 			inputStream = bucket.getInputStream();
 			
+			WoTMessageList list = null;
+			
 			synchronized(mIdentityManager) {
 				final WoTIdentity identity = (WoTIdentity)mIdentityManager.getIdentityByURI(uri);
 				
 				synchronized(mMessageManager) {
 					try {
-						WoTMessageList list = mXML.decode(mFreetalk, identity, uri, inputStream);
-						mMessageManager.onMessageListReceived(list);
+						list = mXML.decode(mFreetalk, identity, uri, inputStream);
 					}
 					catch (Exception e) {
 						Logger.error(this, "Parsing failed for MessageList " + uri, e);
@@ -533,6 +617,10 @@ public final class WoTNewMessageListFetcher implements MessageListFetcher, USKRe
 					}
 				}
 			}
+			
+			// Not within the locks: queueReceivedList() might store the batch, which acquires them on its own.
+			if(list != null)
+				queueReceivedList(list);
 		}
 		catch (NoSuchIdentityException e) {
 			Logger.normal(this, "Identity was deleted already, ignoring MessageList " + uri);
@@ -11,6 +11,11 @@ import freenet.keys.FreenetURI;
 
 //@IndexedField // I can't think of any query which would need to get all WoTOwnMessageList objects.
 public final class WoTOwnMessageList extends OwnMessageList {
+	
+	/**
+	 * The number of messages which fit into a single SSK block, see {@link #fitsIntoContainer()}.
+	 */
+	private static transient final int MAX_MESSAGES_PER_CONTAINER = 5;
 
 	public WoTOwnMessageList(OwnIdentity newAuthor, long newIndex) {
 		super(newAuthor, newIndex);
@@ -39,6 +44,7 @@ public final class WoTOwnMessageList extends OwnMessageList {
 		
 		mIndex = Math.max(mIndex+1, freeIndex);
 		mID = MessageListID.construct(getAuthor(), mIndex).toString();
+		mFreetalk.getMessageManager().onOwnMessageListIndexTaken(getAuthor(), mIndex);
 		
 		// TODO: Optimization: This is debug code which was added on 2011-02-13 for preventing DuplicateMessageListException, it can be removed after some months if they do not happen.
 		try {
@@ -60,11 +66,16 @@ public final class WoTOwnMessageList extends OwnMessageList {
 		if(!super.fitsIntoContainer())
 			return false;
 	
-		if(getMessageCount() > 5)
+		if(getMessageCount() > MAX_MESSAGES_PER_CONTAINER)
 			return false;
 		
 		// TODO: Implement a real fitsIntoContainer which compresses the XML and checks the size. (Bug 4041) 
 		return true;
 	}
+	
+	@Override
+	public synchronized boolean isFull() {
+		return super.isFull() || getMessageCount() >= MAX_MESSAGES_PER_CONTAINER;
+	}
 
 }
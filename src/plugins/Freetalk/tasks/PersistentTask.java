@@ -61,6 +61,19 @@ public abstract class PersistentTask extends Persistent {
 		// Owner may be null.
 	}
 	
+	public String getID() {
+		checkedActivate(1); // String is a db4o primitive type so 1 is enough
+		return mID;
+	}
+	
+	/**
+	 * Get the time after which {@link #process()} shall be called. Long.MAX_VALUE if it shall not be called.
+	 */
+	public long getNextProcessingTime() {
+		checkedActivate(1);
+		return mNextProcessingTime;
+	}
+	
 	public OwnIdentity getOwner() throws NoSuchIdentityException {
 		checkedActivate(1);
 		if(mOwner == null)
@@ -100,6 +113,11 @@ public abstract class PersistentTask extends Persistent {
 			// You have to take care to keep the list of stored objects synchronized with those being deleted in deleteWithoutCommit() !
 			
 			checkedStore();
+			
+			// The task manager is null while it is being constructed, it loads the processing times from the database then.
+			final PersistentTaskManager taskManager = mFreetalk.getTaskManager();
+			if(taskManager != null)
+				taskManager.onTaskStoredWithoutCommit(this);
 		}
 		catch(RuntimeException e) {
 			checkedRollbackAndThrow(e);
@@ -115,6 +133,10 @@ public abstract class PersistentTask extends Persistent {
 	
 	protected void deleteWithoutCommit() {
 		deleteWithoutCommit(1);
+		
+		final PersistentTaskManager taskManager = mFreetalk.getTaskManager();
+		if(taskManager != null)
+			taskManager.onTaskDeletedWithoutCommit(this);
 	}
 
 }
@@ -3,7 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk.tasks;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
 
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.IdentityManager;
@@ -21,21 +26,102 @@ import com.db4o.query.Query;
 
 import freenet.node.PrioRunnable;
 import freenet.support.CurrentTimeUTC;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.TrivialTicker;
 import freenet.support.codeshortification.IfNull;
 import freenet.support.io.NativeThread;
 
+/**
+ * Processes {@link PersistentTask}s when their next processing time has come.
+ * 
+ * The processing times of all tasks are kept in an in-memory deadline queue which is built from the database at startup and updated
+ * whenever a transaction which stored or deleted a task is committed. The manager sleeps until the earliest deadline instead of polling
+ * the database periodically.
+ * 
+ * Due tasks are processed one after another by the thread of the manager. {@link PersistentTask#process()} needs the IdentityManager and
+ * MessageManager locks, so processing tasks of different owners in parallel would only make the threads wait for each other. The locks
+ * are taken for each single task, not for the whole batch, so other threads can run in between.
+ */
 public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCallback {
 	
-	private static final int THREAD_PERIOD = 5 * 60 * 1000; // TODO: Make configurable.
+	/**
+	 * The maximal time the manager sleeps if no task is due, for deleting expired tasks.
+	 */
+	private static final long EXPIRED_TASKS_DELETION_PERIOD = 60 * 60 * 1000; // TODO: Make configurable.
+	
+	/**
+	 * If processing a task did not move its next processing time into the future, for example because it threw, it is retried after this
+	 * delay instead of immediately.
+	 */
+	private static final long PROCESSING_RETRY_DELAY = 5 * 60 * 1000;
 	
 	protected Freetalk mFreetalk;
 	
 	protected ExtObjectContainer mDB;
 	
 	private final TrivialTicker mTicker;
-	private final Random mRandom;
+	
+	/**
+	 * True once {@link #terminate()} was called. Tasks which were not started yet are not processed anymore then.
+	 */
+	private volatile boolean mTerminated = false;
+	
+	/**
+	 * The number of threads which are processing tasks or deleting expired tasks, {@link #terminate()} waits until it is zero.
+	 * Protected by the lock of {@link #mProcessingThreadsLock}.
+	 */
+	private int mProcessingThreads = 0;
+	
+	private final Object mProcessingThreadsLock = new Object();
+	
+	/**
+	 * An entry of the deadline queue.
+	 */
+	private static final class Deadline implements Comparable<Deadline> {
+		final long mTime;
+		final String mTaskID;
+		
+		Deadline(long time, String taskID) {
+			mTime = time;
+			mTaskID = taskID;
+		}
+
+		public int compareTo(Deadline other) {
+			if(mTime != other.mTime)
+				return mTime < other.mTime ? -1 : 1;
+			
+			return mTaskID.compareTo(other.mTaskID);
+		}
+	}
+	
+	/**
+	 * The next processing time of each task which has one, sorted ascending. Synchronize on it when using it or {@link #mDeadlinesByID}.
+	 * This lock must not be held while taking any other lock.
+	 */
+	private final TreeSet<Deadline> mDeadlines = new TreeSet<Deadline>();
+	
+	/**
+	 * The entry of each task in {@link #mDeadlines}, by task ID.
+	 */
+	private final HashMap<String, Deadline> mDeadlinesByID = new HashMap<String, Deadline>();
+	
+	/**
+	 * The time at which {@link #run()} is scheduled to run next. Protected by the lock of {@link #mDeadlines}.
+	 * Long.MAX_VALUE until {@link #start()} was called so that new deadlines do not schedule {@link #run()} before that.
+	 */
+	private long mScheduledWakeUpTime = Long.MAX_VALUE;
+	
+	/**
+	 * True once {@link #start()} was called. Protected by the lock of {@link #mDeadlines}.
+	 */
+	private boolean mStarted = false;
+	
+	/**
+	 * The deadline changes of the tasks which were stored or deleted in the current transaction, they are applied to the queue when the
+	 * transaction is committed. Null if no task was changed in the current transaction. Only accessed while holding the transaction lock.
+	 */
+	private DeadlineUpdate mUncommittedDeadlineUpdate = null;
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
@@ -53,10 +139,148 @@ public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCa
 		mFreetalk = myFreetalk;
 		mDB = myDB;
 		
-		mTicker = mFreetalk.getPluginRespirator() != null ? new TrivialTicker(mFreetalk.getPluginRespirator().getNode().executor) : null;
-		mRandom = mFreetalk.getPluginRespirator() != null ? mFreetalk.getPluginRespirator().getNode().fastWeakRandom : null;
+		final Executor executor = mFreetalk.getPluginRespirator() != null ? mFreetalk.getPluginRespirator().getNode().executor : null;
+		mTicker = executor != null ? new TrivialTicker(executor) : null;
 		
 		mFreetalk.getIdentityManager().registerOwnIdentityDeletedCallback(this);
+		
+		loadDeadlines();
+	}
+	
+	/**
+	 * Fills the deadline queue with the next processing times of all tasks in the database. Does not schedule {@link #run()}, this is
+	 * done by {@link #start()}.
+	 */
+	private synchronized void loadDeadlines() {
+		final Query q = mDB.query();
+		q.constrain(PersistentTask.class);
+		q.descend("mNextProcessingTime").constrain(Long.MAX_VALUE).smaller();
+		
+		int count = 0;
+		for(PersistentTask task : new Persistent.InitializingObjectSet<PersistentTask>(mFreetalk, q)) {
+			putDeadline(getDeadline(task));
+			++count;
+		}
+		
+		if(logDEBUG) Logger.debug(this, "Loaded the processing times of " + count + " tasks.");
+	}
+	
+	/**
+	 * @return The deadline queue entry of the given task, null if it has no next processing time.
+	 */
+	private static Deadline getDeadline(PersistentTask task) {
+		final long time = task.getNextProcessingTime();
+		return time != Long.MAX_VALUE ? new Deadline(time, task.getID()) : null;
+	}
+	
+	/**
+	 * Called by {@link PersistentTask#storeWithoutCommit()}. The next processing time of the task is put into the deadline queue when the
+	 * transaction is committed. You have to hold the transaction lock when calling this function.
+	 */
+	protected void onTaskStoredWithoutCommit(PersistentTask task) {
+		getUncommittedDeadlineUpdate().mDeadlines.put(task.getID(), getDeadline(task));
+	}
+	
+	/**
+	 * Called by {@link PersistentTask#deleteWithoutCommit()}. The task is removed from the deadline queue when the transaction is
+	 * committed. You have to hold the transaction lock when calling this function.
+	 */
+	protected void onTaskDeletedWithoutCommit(PersistentTask task) {
+		getUncommittedDeadlineUpdate().mDeadlines.put(task.getID(), null);
+	}
+	
+	private DeadlineUpdate getUncommittedDeadlineUpdate() {
+		if(mUncommittedDeadlineUpdate == null) {
+			mUncommittedDeadlineUpdate = new DeadlineUpdate();
+			Persistent.addTransactionListener(mDB, mUncommittedDeadlineUpdate);
+		}
+		return mUncommittedDeadlineUpdate;
+	}
+	
+	/**
+	 * Applies the deadline changes of a transaction to the queue once the transaction is committed. If it is rolled back, the queue still
+	 * matches the database.
+	 */
+	private final class DeadlineUpdate implements Persistent.TransactionListener {
+		/** The new deadline of each changed task by task ID, null for tasks which were deleted or have no processing time anymore */
+		private final LinkedHashMap<String, Deadline> mDeadlines = new LinkedHashMap<String, Deadline>();
+		
+		public void onCommit() {
+			mUncommittedDeadlineUpdate = null;
+			
+			for(Map.Entry<String, Deadline> entry : mDeadlines.entrySet()) {
+				if(entry.getValue() != null)
+					putDeadline(entry.getValue());
+				else
+					removeDeadline(entry.getKey());
+			}
+		}
+		
+		public void onRollback() {
+			mUncommittedDeadlineUpdate = null;
+		}
+	}
+	
+	/**
+	 * Puts the given deadline into the queue, replacing the previous one of the task, and wakes up the manager earlier if it is due before
+	 * the scheduled wake up. Does not take any locks except the one of the queue.
+	 */
+	private void putDeadline(Deadline deadline) {
+		if(deadline == null)
+			return;
+		
+		boolean wakeUpEarlier = false;
+		
+		synchronized(mDeadlines) {
+			final Deadline oldDeadline = mDeadlinesByID.remove(deadline.mTaskID);
+			if(oldDeadline != null)
+				mDeadlines.remove(oldDeadline);
+			
+			mDeadlines.add(deadline);
+			mDeadlinesByID.put(deadline.mTaskID, deadline);
+			
+			if(mStarted && deadline.mTime < mScheduledWakeUpTime) {
+				mScheduledWakeUpTime = deadline.mTime;
+				wakeUpEarlier = true;
+			}
+		}
+		
+		if(wakeUpEarlier && mTicker != null) {
+			final long delay = Math.max(0, deadline.mTime - CurrentTimeUTC.getInMillis());
+			mTicker.rescheduleTimedJob(this, "Freetalk " + this.getClass().getSimpleName(), delay);
+		}
+	}
+	
+	private void removeDeadline(String taskID) {
+		synchronized(mDeadlines) {
+			final Deadline oldDeadline = mDeadlinesByID.remove(taskID);
+			if(oldDeadline != null)
+				mDeadlines.remove(oldDeadline);
+		}
+	}
+	
+	/**
+	 * Removes all tasks which are due at the given time from the deadline queue.
+	 * @return The IDs of the due tasks, ordered by their processing time.
+	 */
+	private ArrayList<String> pollDueTasks(long now) {
+		final ArrayList<String> result = new ArrayList<String>();
+		
+		synchronized(mDeadlines) {
+			final Iterator<Deadline> iter = mDeadlines.iterator();
+			
+			while(iter.hasNext()) {
+				final Deadline deadline = iter.next();
+				if(deadline.mTime > now)
+					break;
+				
+				iter.remove();
+				mDeadlinesByID.remove(deadline.mTaskID);
+				result.add(deadline.mTaskID);
+			}
+		}
+		
+		return result;
 	}
 	
 	public int getPriority() {
@@ -65,17 +289,33 @@ public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCa
 	
 	public void run() {
 		if(logDEBUG) Logger.debug(this, "Main loop running...");
+		
+		if(!beginProcessing())
+			return;
 
 		try {
-			long now = CurrentTimeUTC.getInMillis();
-			proccessTasks(getPendingTasks(now), now);
-		
-			// TODO: Its nonsense to sleep for random times and check whether a task has expired, we should rather sleep until the next task will
-			// expire... Implement that!
+			final long now = CurrentTimeUTC.getInMillis();
+			
+			synchronized(mDeadlines) {
+				mScheduledWakeUpTime = Long.MAX_VALUE;
+			}
+			
+			deleteExpiredTasks(now);
+			processTasks(pollDueTasks(now));
 		} finally {
-			if(mTicker != null) {
-				final long sleepTime =  THREAD_PERIOD/2 + mRandom.nextInt(THREAD_PERIOD);
-				if(logDEBUG) Logger.debug(this, "Sleeping for " + (sleepTime / (60*1000)) + " minutes.");
+			endProcessing();
+			
+			if(mTicker != null && !mTerminated) {
+				final long now = CurrentTimeUTC.getInMillis();
+				final long sleepTime;
+				
+				synchronized(mDeadlines) {
+					final long nextDeadline = mDeadlines.isEmpty() ? Long.MAX_VALUE : mDeadlines.first().mTime;
+					mScheduledWakeUpTime = Math.min(nextDeadline, now + EXPIRED_TASKS_DELETION_PERIOD);
+					sleepTime = Math.max(0, mScheduledWakeUpTime - now);
+				}
+				
+				if(logDEBUG) Logger.debug(this, "Sleeping for " + (sleepTime / 1000) + " seconds.");
 				mTicker.queueTimedJob(this, "Freetalk " + this.getClass().getSimpleName(), sleepTime, false, true);
 			}
 		}
@@ -83,19 +323,69 @@ public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCa
 		if(logDEBUG) Logger.debug(this, "Main loop finished.");
 	}
 	
+	/**
+	 * Schedules the first run of the manager. Before this is called, no task is processed even if it is due: The tasks need the other
+	 * managers, which are started before this one.
+	 */
 	public void start() {
 		if(logDEBUG) Logger.debug(this, "Starting...");
 		IfNull.thenThrow(mTicker, "Ticker may only be null in unit tests, otherwise deadlocks can happen");
+		synchronized(mDeadlines) {
+			mStarted = true;
+			mScheduledWakeUpTime = CurrentTimeUTC.getInMillis();
+		}
 		mTicker.queueTimedJob(this, "Freetalk " + this.getClass().getSimpleName(), 0, false, true);
 		if(logDEBUG) Logger.debug(this, "Started.");
 	}
 	
+	/**
+	 * Stops the processing of tasks. Waits until the threads which are processing tasks have finished the current task so that no task is
+	 * processed after the database was closed. Must not be called while holding any locks which task processing needs.
+	 */
 	public void terminate() {
 		if(logDEBUG) Logger.debug(this, "Terminating ...");
+		
+		synchronized(mProcessingThreadsLock) {
+			mTerminated = true;
+		}
+		
 		mTicker.shutdown();
+		
+		synchronized(mProcessingThreadsLock) {
+			while(mProcessingThreads > 0) {
+				try {
+					mProcessingThreadsLock.wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			}
+		}
+		
 		if(logDEBUG) Logger.debug(this, "Terminated.");
 	}
 	
+	/**
+	 * Must be called before a thread starts processing tasks, followed by {@link #endProcessing()} in a finally block.
+	 * @return False if the manager was terminated, the thread must not process any tasks then.
+	 */
+	private boolean beginProcessing() {
+		synchronized(mProcessingThreadsLock) {
+			if(mTerminated)
+				return false;
+			
+			++mProcessingThreads;
+			return true;
+		}
+	}
+	
+	private void endProcessing() {
+		synchronized(mProcessingThreadsLock) {
+			--mProcessingThreads;
+			mProcessingThreadsLock.notifyAll();
+		}
+	}
+	
 	public void processTasksSoon() {
 		if(mTicker != null) {
 			mTicker.rescheduleTimedJob(this, "Freetalk " + this.getClass().getSimpleName(), 0);
@@ -110,6 +400,9 @@ public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCa
 		q.descend("mDeleteTime").constrain(currentTime).smaller();;
 		
 		for(PersistentTask task : new Persistent.InitializingObjectSet<PersistentTask>(mFreetalk, q)) {
+			if(mTerminated)
+				break;
+			
 			synchronized(Persistent.transactionLock(mDB)) {
 				try {
 					task.deleteWithoutCommit();
@@ -124,30 +417,91 @@ public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCa
 	}
 	
 	/**
+	 * Processes the tasks with the given IDs one after another. The locks which are needed for processing are taken for each task
+	 * separately so that other threads can run between the tasks.
+	 * Tasks which were deleted meanwhile are skipped, tasks whose processing time was moved into the future meanwhile are put back into the
+	 * deadline queue instead of being processed. Stops if the manager is terminated.
+	 */
+	private void processTasks(ArrayList<String> taskIDs) {
+		Logger.normal(this, "Processing " + taskIDs.size() + " pending tasks...");
+		
+		for(String taskID : taskIDs) {
+			if(mTerminated) {
+				Logger.normal(this, "Terminated, not processing the remaining tasks.");
+				break;
+			}
+			
+			synchronized(mFreetalk.getIdentityManager()) {
+			synchronized(mFreetalk.getMessageManager()) {
+			synchronized(this) {
+				final PersistentTask task;
+				try {
+					task = getTask(taskID);
+				} catch(NoSuchTaskException e) {
+					if(logDEBUG) Logger.debug(this, "Task was deleted before it was processed: " + taskID);
+					continue;
+				}
+				
+				if(task.getNextProcessingTime() > CurrentTimeUTC.getInMillis()) {
+					putDeadline(getDeadline(task));
+					continue;
+				}
+				
+				processTask(task);
+			}
+			}
+			}
+		}
+		
+		Logger.normal(this, "Processing pending tasks finished.");
+	}
+	
+	/**
+	 * You have to synchronize on the IdentityManager, the MessageManager and this PersistentTaskManager when calling this function.
+	 */
+	private void processTask(PersistentTask task) {
+		try {
+			Logger.normal(this, "Processing task " + task);
+			task.process();
+			Logger.normal(this, "Processing finished.");
+		}
+		catch(RuntimeException e) {
+			Logger.error(this, "Error while processing a task", e);
+		}
+		
+		// process() usually stores the task with a new processing time, which updates the deadline queue. If it did not store it, its old
+		// processing time would make it due again immediately.
+		final long now = CurrentTimeUTC.getInMillis();
+		if(task.getNextProcessingTime() <= now)
+			putDeadline(new Deadline(now + PROCESSING_RETRY_DELAY, task.getID()));
+	}
+	
+	/**
+	 * Processes the tasks of the given query immediately, independent of their processing time.
 	 * @param query A query which must return an resulting ObjectSet of PersistentTask.
-	 * @param time The current UTC time. If the given query is time-dependent, the same time must be used there!
 	 */
-	protected void proccessTasks(Query query, long time) {
-		deleteExpiredTasks(time);
+	protected void proccessTasks(Query query) {
+		if(!beginProcessing())
+			return;
 		
+		try {
 		synchronized(mFreetalk.getIdentityManager()) {
 		synchronized(mFreetalk.getMessageManager()) {
 		synchronized(this) {
-		Logger.normal(this, "Processing pending tasks...");
+		Logger.normal(this, "Processing tasks...");
 		for(PersistentTask task : new Persistent.InitializingObjectSet<PersistentTask>(mFreetalk, query)) {
-			try {
-				Logger.normal(this, "Processing task " + task);
-				task.process();
-				Logger.normal(this, "Processing finished.");
-			}
-			catch(RuntimeException e) {
-				Logger.error(this, "Error while processing a task", e);
-			}
+			if(mTerminated)
+				break;
+			
+			processTask(task);
 		}
-		Logger.normal(this, "Processing pending tasks finished.");
+		Logger.normal(this, "Processing tasks finished.");
 		}
 		}
 		}
+		} finally {
+			endProcessing();
+		}
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -170,14 +524,6 @@ public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCa
 		}
 	}
 	
-	private Query getPendingTasks(long currentTime) {
-		Query q = mDB.query();
-		q.constrain(PersistentTask.class);
-		q.descend("mNextProcessingTime").constrain(currentTime).smaller();
-		q.descend("mNextProcessingTime").orderAscending();
-		return q;
-	}
-	
 	private Query getOwnMessageTasks(OwnIdentity owner) {
 		Query q = mDB.query();
 		q.constrain(OwnMessageTask.class);
@@ -240,7 +586,7 @@ public class PersistentTaskManager implements PrioRunnable, OwnIdentityDeletedCa
 		final Runnable r = new Runnable() {
 			@Override
 			public void run() {
-				proccessTasks(getOwnMessageTasks((OwnIdentity)message.getAuthor()), CurrentTimeUTC.getInMillis());
+				proccessTasks(getOwnMessageTasks((OwnIdentity)message.getAuthor()));
 			}
 		};
 		
@@ -96,8 +96,8 @@ public class IntroduceIdentityTask extends OwnMessageTask {
 			MessageManager messageManager = mFreetalk.getMessageManager();
 	
 			// We must tell the user to solve puzzles if he as written a message ...
-			if(messageManager.getOwnMessagesBy(getOwner()).size() > 0   // TODO: Optimization: Create & use get(Own)MessageCount() ...
-				|| messageManager.getMessagesBy(getOwner()).size() > 0) { // Also check for messages which are not stored as own messages anymore.  
+			if(messageManager.getOwnMessagesBy(getOwner()).size() > 0   // TODO: Optimization: Create & use getOwnMessageCount() ...
+				|| messageManager.getMessageCountBy(getOwner()) > 0) { // Also check for messages which are not stored as own messages anymore.  
 				
 				int minimumTrusterCount = mFreetalk.getConfig().getInt(Configuration.MINIMUM_TRUSTER_COUNT); 
 				
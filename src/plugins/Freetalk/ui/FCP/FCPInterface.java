@@ -6,14 +6,19 @@ package plugins.Freetalk.ui.FCP;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
 import javax.activation.MimeType;
 
 import plugins.Freetalk.Board;
+import plugins.Freetalk.BoardProjection;
+import plugins.Freetalk.BoardProjection.MessageSummary;
+import plugins.Freetalk.BoardProjection.ThreadSummary;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.Identity;
 import plugins.Freetalk.IdentityManager;
@@ -21,8 +26,6 @@ import plugins.Freetalk.Message;
 import plugins.Freetalk.Message.Attachment;
 import plugins.Freetalk.OwnIdentity;
 import plugins.Freetalk.SubscribedBoard;
-import plugins.Freetalk.SubscribedBoard.BoardReplyLink;
-import plugins.Freetalk.SubscribedBoard.BoardThreadLink;
 import plugins.Freetalk.SubscribedBoard.BoardMessageLink;
 import plugins.Freetalk.WoT.WoTIdentity;
 import plugins.Freetalk.WoT.WoTOwnIdentity;
@@ -53,15 +56,19 @@ import freenet.support.api.Bucket;
 public final class FCPInterface implements FredPluginFCP {
 
     private final Freetalk mFreetalk;
+    private final FCPSubscriptionManager mSubscriptionManager;
     private boolean isTerminated;
 
     public FCPInterface(final Freetalk myFreetalk) {
         mFreetalk = myFreetalk;
+        mSubscriptionManager = new FCPSubscriptionManager(mFreetalk.getPluginRespirator().getNode().executor);
+        mFreetalk.getMessageManager().registerNewBoardMessageCallback(mSubscriptionManager);
         isTerminated = false;
     }
 
     public void terminate() {
         isTerminated = true;
+        mSubscriptionManager.terminate();
     }
 
     /**
@@ -103,6 +110,8 @@ public final class FCPInterface implements FredPluginFCP {
 
             } else if (message.equals("GetMessage")) {
                 handleGetMessage(replysender, params);
+            } else if (message.equals("GetMessages")) {
+                handleGetMessages(replysender, params);
             } else if (message.equals("PutMessage")) {
                 handlePutMessage(replysender, params, data);
 
@@ -114,7 +123,11 @@ public final class FCPInterface implements FredPluginFCP {
             	handleSubscribeToBoard(replysender, params);
         	} else if (message.equals("UnsubscribeFromBoard")) {
             	handleUnsubscribeFromBoard(replysender, params);
-        	}
+        	} else if (message.equals("Subscribe")) {
+                handleSubscribe(replysender, params);
+            } else if (message.equals("Unsubscribe")) {
+                handleUnsubscribe(replysender, params);
+            }
             else if (message.equals("Status")) {
                 handleStatus(replysender, params);
             } else if (message.equals("Ping")) {
@@ -242,34 +255,37 @@ public final class FCPInterface implements FredPluginFCP {
         //throws exception when not found
         final SubscribedBoard board = mFreetalk.getMessageManager().getSubscription(mFreetalk.getIdentityManager().getOwnIdentity(ownIdentityID), boardName);
 
-        synchronized(board) {
-            for(BoardThreadLink threadReference : board.getThreads()) {
-                final SimpleFieldSet sfs = new SimpleFieldSet(true);
-                sfs.putOverwrite("Message", "MessageThread");
-                sfs.putOverwrite("ID", threadReference.getThreadID());
-                sfs.put("ReplyCount", board.threadReplyCount(threadReference.getThreadID()));
-                sfs.put("LastReplyDate", threadReference.getLastReplyDate().getTime());
-                
+        // The projection is an immutable snapshot so we do not need to lock the board while sending.
+        for(ThreadSummary threadSummary : board.getProjection().getThreads()) {
+            final SimpleFieldSet sfs = new SimpleFieldSet(true);
+            sfs.putOverwrite("Message", "MessageThread");
+            sfs.putOverwrite("ID", threadSummary.getThreadID());
+            sfs.put("ReplyCount", threadSummary.getReplyCount());
+            sfs.put("LastReplyDate", threadSummary.getLastReplyDate().getTime());
+            
+            if(threadSummary.wasFetched()) {
                 try {
-                final Message thread = threadReference.getMessage();
-	                sfs.putOverwrite("Title", thread.getTitle());
-	                sfs.putOverwrite("Author", thread.getAuthor().getFreetalkAddress());
-	                sfs.put("Date", thread.getDate().getTime());
-	                sfs.put("FetchDate", thread.getFetchDate().getTime());
-	                sfs.put("IsThread", thread.isThread());
+                    final Message thread = mFreetalk.getMessageManager().get(threadSummary.getThreadID());
+                    sfs.putOverwrite("Title", thread.getTitle());
+                    sfs.putOverwrite("Author", thread.getAuthor().getFreetalkAddress());
+                    sfs.put("Date", thread.getDate().getTime());
+                    sfs.put("FetchDate", thread.getFetchDate().getTime());
+                    sfs.put("IsThread", thread.isThread());
                 }
-                catch(MessageNotFetchedException e) {
-                	// The thread was not downloaded yet.
-                	// TODO: Add guesses for title and author ID.
-                	// Title guess = title of first reply. See BoardPage for how to obtain.
-                	// Further, the author can be reconstructed from the thread id because it contains the id of the author. We just need to figure out
-                	// what the proper place for a function "getIdentityIDFromThreadID" is and whether I have already written one which can do that, and if
-                	// yes, where it is.
-                	// IMPORTANT: Those guesses should be marked as guesses in the reply (by using different field names) because it is not guranteed that
-                	// the author of the thread reply did not specify a faked thread ID / thread title.
+                catch(NoSuchMessageException e) {
+                	// The thread was deleted after the projection was built.
                 }
-                replysender.send(sfs);
+            } else {
+            	// The thread was not downloaded yet.
+            	// TODO: Add guesses for title and author ID.
+            	// Title guess = title of first reply. See BoardPage for how to obtain.
+            	// Further, the author can be reconstructed from the thread id because it contains the id of the author. We just need to figure out
+            	// what the proper place for a function "getIdentityIDFromThreadID" is and whether I have already written one which can do that, and if
+            	// yes, where it is.
+            	// IMPORTANT: Those guesses should be marked as guesses in the reply (by using different field names) because it is not guranteed that
+            	// the author of the thread reply did not specify a faked thread ID / thread title.
             }
+            replysender.send(sfs);
         }
 
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
@@ -294,7 +310,16 @@ public final class FCPInterface implements FredPluginFCP {
      *   MinimumMessageDate=utcMillis    (optional, datatype long, default is 0)
      *
      *   IncludeMessageText=true|false   (optional, default is false)
-     * Format of reply: see sendSingleMessage()
+     *
+     *   Limit=123                       (optional, datatype int, maximal number of messages to send, default is no limit)
+     *   ContinuationToken=token         (optional, the ContinuationToken of the previous EndListMessages, the other parameters
+     *                                    must be the same as in the previous request)
+     * Format of reply: see sendSingleMessage(), then:
+     *   Message=EndListMessages
+     *   ContinuationToken=token         (only if the Limit was reached and there are more messages)
+     *
+     * If SortByMessageDateAscending is false, the messages are sent in ascending order of their index.
+     * The messages are taken from the {@link BoardProjection} of the board so the board is not locked while sending them.
      */
     private void handleListMessages(final PluginReplySender replysender, final SimpleFieldSet params)
     throws PluginNotFoundException, InvalidParameterException, NoSuchBoardException, NoSuchMessageException,
@@ -325,34 +350,49 @@ public final class FCPInterface implements FredPluginFCP {
             throw new InvalidParameterException("MinimumMessageIndex and MinimumMessageDate must not be specified together");
         }
         final boolean includeMessageText = Boolean.parseBoolean(params.get("IncludeMessageText"));
+        final int limit = getLimitParameter(params);
+        final ContinuationToken continuationToken = ContinuationToken.parse(params.get("ContinuationToken"));
         
         //throws exception when not found
         final SubscribedBoard board = mFreetalk.getMessageManager().getSubscription(mFreetalk.getIdentityManager().getOwnIdentity(ownIdentityID), boardName);
 
-        synchronized(board) {
-
-            final List<BoardMessageLink> messageRefList;
-            if (minimumMessageIndex > 0) {
-                messageRefList = board.getMessagesByMinimumIndex(minimumMessageIndex, sortByMessageIndexAscending, sortByMessageDateAscending);
-            } else if (minimumMessageDate > 0) {
-                messageRefList = board.getMessagesByMinimumDate(new Date(minimumMessageDate), sortByMessageIndexAscending, sortByMessageDateAscending);
+        final List<MessageSummary> messages;
+        {
+            final List<MessageSummary> allMessages = board.getProjection().getMessages(); // Sorted by index ascending
+            if (sortByMessageDateAscending) {
+                messages = new ArrayList<MessageSummary>(allMessages);
+                Collections.sort(messages, DATE_ASCENDING);
             } else {
-                messageRefList = board.getAllMessages(sortByMessageIndexAscending);
+                messages = allMessages;
             }
+        }
 
-            // send all messages
-            for(final BoardMessageLink reference : messageRefList) {
-            	try {
-                    sendSingleMessage(replysender, reference.getMessage(), reference.getIndex(), includeMessageText);
-                }
-            	catch(MessageNotFetchedException e) {
-            		// Ignore.
-            	}
+        int sentCount = 0;
+        MessageSummary lastSent = null;
+        boolean limitReached = false;
+
+        // send all messages
+        for(int i = getContinuationPosition(messages, continuationToken, sortByMessageDateAscending); i < messages.size(); ++i) {
+            final MessageSummary summary = messages.get(i);
+
+            if (summary.getIndex() < minimumMessageIndex || summary.getDate().getTime() < minimumMessageDate)
+                continue;
+
+            if (sentCount == limit) {
+                limitReached = true;
+                break;
+            }
+
+            if (sendSingleMessage(replysender, summary, includeMessageText)) {
+                ++sentCount;
+                lastSent = summary;
             }
         }
 
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "EndListMessages");
+        if (limitReached)
+            sfs.putOverwrite("ContinuationToken", new ContinuationToken(lastSent).toString());
         replysender.send(sfs);
     }
 
@@ -363,10 +403,15 @@ public final class FCPInterface implements FredPluginFCP {
      *   Message=ListThreadMessages
      *   BoardName=abc
      *   OwnIdentityID=ID
-     *   ThreadID=ID                     (optional, if not specified retrieves all Messages of Board)
+     *   ThreadID=ID
      *   SortByMessageDateAscending=true|false   (Optional, default is false)
      *   IncludeMessageText=true|false   (optional, default is false)
-     * Format of reply: see sendSingleMessage()
+     *   Limit=123                       (optional, datatype int, maximal number of replies to send, default is no limit)
+     *   ContinuationToken=token         (optional, see ListMessages. The thread message is only sent if this is not specified.)
+     * Format of reply: see sendSingleMessage() and ListMessages
+     *
+     * The replies are always sent in ascending order of their date, the SortByMessageDateAscending parameter is only accepted for
+     * compatibility.
      */
     private void handleListThreadMessages(final PluginReplySender replysender, final SimpleFieldSet params)
     throws PluginNotFoundException, InvalidParameterException, NoSuchBoardException, NoSuchMessageException,
@@ -376,41 +421,182 @@ public final class FCPInterface implements FredPluginFCP {
         final String ownIdentityID = getMandatoryParameter(params, "OwnIdentityID");
         
         final String threadID = params.get("ThreadID");
-        final boolean sortByMessageDateAscending = Boolean.parseBoolean(params.get("SortByMessageDateAscending"));
         final boolean includeMessageText = Boolean.parseBoolean(params.get("IncludeMessageText"));
+        final int limit = getLimitParameter(params);
+        final ContinuationToken continuationToken = ContinuationToken.parse(params.get("ContinuationToken"));
 
         //throws exception when not found
         final SubscribedBoard board = mFreetalk.getMessageManager().getSubscription(mFreetalk.getIdentityManager().getOwnIdentity(ownIdentityID), boardName);
 
-        synchronized(board) {
+        final ThreadSummary thread = board.getProjection().getThread(threadID); // throws exception when not found
 
-        	final BoardThreadLink threadLink = board.getThreadLink(threadID);
-            final Iterable<BoardReplyLink> messageRefList;
-            final Message thread = mFreetalk.getMessageManager().get(threadID); // throws exception when not found
-            {
-                // send thread root message
-                sendSingleMessage(replysender, thread, threadLink.getIndex(), includeMessageText);
+        if (continuationToken == null) {
+            // send thread root message
+            final Message threadMessage = mFreetalk.getMessageManager().get(threadID); // throws exception when not found
+            sendSingleMessage(replysender, threadMessage, thread.getIndex(), includeMessageText);
+        }
+
+        final List<MessageSummary> replies = thread.getReplies(); // Sorted by date ascending
+        int sentCount = 0;
+        MessageSummary lastSent = null;
+        boolean limitReached = false;
+
+        // send all messages of thread
+        for(int i = getContinuationPosition(replies, continuationToken, true); i < replies.size(); ++i) {
+            if (sentCount == limit) {
+                limitReached = true;
+                break;
             }
 
-            messageRefList = board.getAllThreadReplies(thread.getID(), sortByMessageDateAscending);
-
-            // send all messages of thread
-            for(final BoardMessageLink reference : messageRefList) {
-            	try {
-                final Message msg = reference.getMessage();
-                sendSingleMessage(replysender, msg, reference.getIndex(), includeMessageText);
-            	}
-            	catch(MessageNotFetchedException e) {
-            		// Ignore
-            	}
+            final MessageSummary reply = replies.get(i);
+            if (sendSingleMessage(replysender, reply, includeMessageText)) {
+                ++sentCount;
+                lastSent = reply;
             }
         }
 
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "EndListMessages");
+        if (limitReached)
+            sfs.putOverwrite("ContinuationToken", new ContinuationToken(lastSent).toString());
         replysender.send(sfs);
     }
 
+    /**
+     * Sorts ascending by date, messages with the same date are sorted ascending by index.
+     * This is the order of {@link ThreadSummary#getReplies()}.
+     */
+    private static final Comparator<MessageSummary> DATE_ASCENDING = new Comparator<MessageSummary>() {
+        public int compare(final MessageSummary a, final MessageSummary b) {
+            return compareToPosition(a, b.getDate().getTime(), b.getIndex(), true);
+        }
+    };
+
+    /**
+     * Compares the given message with the position of a message with the given date and index.
+     *
+     * @param sortedByDate If true, the messages are sorted by date and then by index, otherwise only by index.
+     */
+    private static int compareToPosition(final MessageSummary message, final long date, final int index, final boolean sortedByDate) {
+        if (sortedByDate) {
+            final long messageDate = message.getDate().getTime();
+            if (messageDate != date)
+                return messageDate < date ? -1 : 1;
+        }
+        return message.getIndex() < index ? -1 : (message.getIndex() > index ? 1 : 0);
+    }
+
+    /**
+     * Position of the last message which was sent by a ListMessages or ListThreadMessages request which hit its Limit.
+     *
+     * It consists of the date and index of the message instead of the position in the list of messages so that the next request continues
+     * at the right message even if messages were added to or removed from the board in between.
+     */
+    private static final class ContinuationToken {
+
+        private final long mDate;
+
+        private final int mIndex;
+
+        public ContinuationToken(final MessageSummary lastSentMessage) {
+            mDate = lastSentMessage.getDate().getTime();
+            mIndex = lastSentMessage.getIndex();
+        }
+
+        private ContinuationToken(final long date, final int index) {
+            mDate = date;
+            mIndex = index;
+        }
+
+        /**
+         * @return Null if the given string is null.
+         */
+        public static ContinuationToken parse(final String token) throws InvalidParameterException {
+            if (token == null)
+                return null;
+
+            final int separator = token.indexOf(':');
+            try {
+                return new ContinuationToken(Long.parseLong(token.substring(0, separator)), Integer.parseInt(token.substring(separator + 1)));
+            } catch(final RuntimeException e) { // NumberFormatException, StringIndexOutOfBoundsException
+                throw new InvalidParameterException("Invalid ContinuationToken: " + token);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return mDate + ":" + mIndex;
+        }
+    }
+
+    /**
+     * Get the position of the first message in the given list which is after the position of the given continuation token.
+     *
+     * @param messages Sorted as specified by sortedByDate, see {@link #compareToPosition(MessageSummary, long, int, boolean)}.
+     * @param token The continuation token of the previous request, null if this is the first request.
+     */
+    private static int getContinuationPosition(final List<MessageSummary> messages, final ContinuationToken token, final boolean sortedByDate) {
+        if (token == null)
+            return 0;
+
+        int low = 0;
+        int high = messages.size();
+
+        while(low < high) {
+            final int middle = (low + high) >>> 1;
+
+            if (compareToPosition(messages.get(middle), token.mDate, token.mIndex, sortedByDate) <= 0)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+
+        return low;
+    }
+
+    /**
+     * @return The value of the optional Limit parameter, Integer.MAX_VALUE if it is not specified.
+     */
+    private int getLimitParameter(final SimpleFieldSet params) throws InvalidParameterException {
+        final String limitString = params.get("Limit");
+        if (limitString == null)
+            return Integer.MAX_VALUE;
+
+        final int limit;
+        try {
+            limit = Integer.parseInt(limitString);
+        } catch(final NumberFormatException e) {
+            throw new InvalidParameterException("Limit is not a number");
+        }
+
+        if (limit < 1)
+            throw new InvalidParameterException("Limit must be at least 1");
+
+        return limit;
+    }
+
+    /**
+     * Sends the message of the given projection entry, see {@link #sendSingleMessage(PluginReplySender, Message, int, boolean)}.
+     *
+     * @return False if the message was not sent because it was not fetched yet or was deleted meanwhile.
+     */
+    private boolean sendSingleMessage(final PluginReplySender replysender, final MessageSummary summary, final boolean includeMessageText)
+    throws PluginNotFoundException, UnsupportedEncodingException
+    {
+        if (!summary.wasFetched())
+            return false;
+
+        final Message message;
+        try {
+            message = mFreetalk.getMessageManager().get(summary.getMessageID());
+        } catch(final NoSuchMessageException e) {
+            return false;
+        }
+
+        sendSingleMessage(replysender, message, summary.getIndex(), includeMessageText);
+        return true;
+    }
+
     /**
      * Handle GetMessage command.
      * Send the requested Message.
@@ -465,6 +651,146 @@ public final class FCPInterface implements FredPluginFCP {
         sendSingleMessage(replysender, message, messageIndex, includeMessageText);
     }
 
+    /**
+     * The maximal number of messages which can be requested with a single GetMessages command.
+     */
+    private static final int MAX_GET_MESSAGES_COUNT = 1024;
+
+    /**
+     * Handle GetMessages command.
+     * Send the requested Messages. They are looked up with a single lock of the board and sent after the lock was released.
+     * Format of request:
+     *   Message=GetMessages
+     *   BoardName=abc
+     *   OwnIdentityID=ID
+     *   MessageIDs=id,id,...            (optional, comma separated list of message IDs)
+     *   MessageIndexRanges=1-5,8,...    (optional, comma separated list of message indices or ranges of message indices in board)
+     *   IncludeMessageText=true|false   (optional, default is false)
+     * At most 1024 messages can be requested at once, index ranges count with their full size.
+     * Format of reply: For each requested message ID and each existing message index, in the order of the request, either a Message as
+     * described at sendSingleMessage() or:
+     *   Message=MessageNotAvailable
+     *   ID=id                           (if the message was requested by ID)
+     *   MessageIndex=123                (if the message was requested by index)
+     *   Reason=NotFound|NotFetched
+     * And finally:
+     *   Message=EndGetMessages
+     * Indices within a range which do not exist are skipped silently.
+     */
+    private void handleGetMessages(final PluginReplySender replysender, final SimpleFieldSet params)
+    throws InvalidParameterException, NoSuchBoardException, NoSuchIdentityException, UnsupportedEncodingException, PluginNotFoundException
+    {
+        final String boardName = getMandatoryParameter(params, "BoardName");
+        final String ownIdentityID = getMandatoryParameter(params, "OwnIdentityID");
+        final boolean includeMessageText = Boolean.parseBoolean(params.get("IncludeMessageText"));
+
+        final String[] messageIDs = splitListParameter(params.get("MessageIDs"));
+        final String[] indexRanges = splitListParameter(params.get("MessageIndexRanges"));
+        final int[] minimumIndices = new int[indexRanges.length];
+        final int[] maximumIndices = new int[indexRanges.length];
+
+        long requestedCount = messageIDs.length;
+        for(int i = 0; i < indexRanges.length; ++i) {
+            final int separator = indexRanges[i].indexOf('-', 1);
+            try {
+                if (separator == -1) {
+                    minimumIndices[i] = maximumIndices[i] = Integer.parseInt(indexRanges[i]);
+                } else {
+                    minimumIndices[i] = Integer.parseInt(indexRanges[i].substring(0, separator));
+                    maximumIndices[i] = Integer.parseInt(indexRanges[i].substring(separator + 1));
+                }
+            } catch(final NumberFormatException e) {
+                throw new InvalidParameterException("Invalid message index range: " + indexRanges[i]);
+            }
+            if (minimumIndices[i] > maximumIndices[i])
+                throw new InvalidParameterException("Invalid message index range: " + indexRanges[i]);
+            requestedCount += (long)maximumIndices[i] - minimumIndices[i] + 1;
+        }
+        if (requestedCount > MAX_GET_MESSAGES_COUNT)
+            throw new InvalidParameterException("Too many messages requested, the maximum is " + MAX_GET_MESSAGES_COUNT);
+
+        //throws exception when not found
+        final SubscribedBoard board = mFreetalk.getMessageManager().getSubscription(mFreetalk.getIdentityManager().getOwnIdentity(ownIdentityID), boardName);
+
+        final ArrayList<GetMessagesReply> replies = new ArrayList<GetMessagesReply>((int)requestedCount);
+
+        synchronized(board) {
+            for(final String messageID : messageIDs) {
+                final Iterator<BoardMessageLink> links = board.getMessageLinks(messageID).iterator();
+                if (!links.hasNext()) {
+                    replies.add(new GetMessagesReply("ID", messageID, "NotFound"));
+                    continue;
+                }
+
+                final BoardMessageLink link = links.next();
+                try {
+                    replies.add(new GetMessagesReply(link.getMessage(), link.getIndex()));
+                } catch(final MessageNotFetchedException e) {
+                    replies.add(new GetMessagesReply("ID", messageID, "NotFetched"));
+                }
+            }
+
+            for(int i = 0; i < indexRanges.length; ++i) {
+                for(final BoardMessageLink link : board.getMessagesByIndexRange(minimumIndices[i], maximumIndices[i])) {
+                    try {
+                        replies.add(new GetMessagesReply(link.getMessage(), link.getIndex()));
+                    } catch(final MessageNotFetchedException e) {
+                        replies.add(new GetMessagesReply("MessageIndex", Integer.toString(link.getIndex()), "NotFetched"));
+                    }
+                }
+            }
+        }
+
+        for(final GetMessagesReply reply : replies) {
+            if (reply.mMessage != null)
+                sendSingleMessage(replysender, reply.mMessage, reply.mMessageIndex, includeMessageText);
+            else
+                replysender.send(reply.mNotAvailable);
+        }
+
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "EndGetMessages");
+        replysender.send(sfs);
+    }
+
+    private static String[] splitListParameter(final String value) {
+        if (value == null || value.trim().length() == 0)
+            return new String[0];
+
+        final String[] result = value.split(",");
+        for(int i = 0; i < result.length; ++i)
+            result[i] = result[i].trim();
+        return result;
+    }
+
+    /**
+     * A reply to a GetMessages command which was looked up while the board was locked and is sent after the lock was released:
+     * Either a message or a MessageNotAvailable reply.
+     */
+    private static final class GetMessagesReply {
+
+        private final Message mMessage;
+
+        private final int mMessageIndex;
+
+        private final SimpleFieldSet mNotAvailable;
+
+        public GetMessagesReply(final Message message, final int messageIndex) {
+            mMessage = message;
+            mMessageIndex = messageIndex;
+            mNotAvailable = null;
+        }
+
+        public GetMessagesReply(final String key, final String value, final String reason) {
+            mMessage = null;
+            mMessageIndex = -1;
+            mNotAvailable = new SimpleFieldSet(true);
+            mNotAvailable.putOverwrite("Message", "MessageNotAvailable");
+            mNotAvailable.putOverwrite(key, value);
+            mNotAvailable.putOverwrite("Reason", reason);
+        }
+    }
+
     /**
      * Sends a single message.
      *
@@ -528,6 +854,68 @@ public final class FCPInterface implements FredPluginFCP {
         }
     }
 
+    /**
+     * Handle Subscribe command.
+     * Subscribes the client to NewMessage events of a board, see {@link FCPSubscriptionManager}.
+     * Format of request:
+     *   Message=Subscribe
+     *   OwnIdentityID=ID
+     *   BoardName=abc                   (optional, if not specified the client is subscribed to all boards of the own identity)
+     * Format of reply:
+     *   Message=Subscribed
+     * Format of events:
+     *   Message=NewMessage
+     *   OwnIdentityID=ID
+     *   BoardName=abc
+     *   MessageIndex=123
+     *   ID=id
+     *   ThreadID=id                     (not sent if the message is a thread)
+     *   OR, if too many messages arrived at once:
+     *   Message=NewMessages
+     *   OwnIdentityID=ID
+     *   BoardName=abc
+     *   MinimumMessageIndex=123         (use it for ListMessages)
+     *   Count=456
+     */
+    private void handleSubscribe(final PluginReplySender replysender, final SimpleFieldSet params)
+    throws PluginNotFoundException, InvalidParameterException, NoSuchIdentityException, NoSuchBoardException
+    {
+        final String ownIdentityID = getMandatoryParameter(params, "OwnIdentityID");
+        final String boardName = params.get("BoardName");
+
+        final OwnIdentity ownIdentity = mFreetalk.getIdentityManager().getOwnIdentity(ownIdentityID); // throws exception when not found
+        if (boardName != null)
+            mFreetalk.getMessageManager().getSubscription(ownIdentity, boardName); // throws exception when not found
+
+        mSubscriptionManager.subscribe(replysender, ownIdentityID, boardName);
+
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "Subscribed");
+        replysender.send(sfs);
+    }
+
+    /**
+     * Handle Unsubscribe command.
+     * Format of request:
+     *   Message=Unsubscribe
+     *   OwnIdentityID=ID
+     *   BoardName=abc                   (optional, must be the same as in the Subscribe message)
+     * Format of reply:
+     *   Message=Unsubscribed
+     */
+    private void handleUnsubscribe(final PluginReplySender replysender, final SimpleFieldSet params)
+    throws PluginNotFoundException, InvalidParameterException
+    {
+        final String ownIdentityID = getMandatoryParameter(params, "OwnIdentityID");
+        final String boardName = params.get("BoardName");
+
+        mSubscriptionManager.unsubscribe(replysender, ownIdentityID, boardName);
+
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "Unsubscribed");
+        replysender.send(sfs);
+    }
+
     /**
      * Handle ListKnownIdentities command.
      * Send a number of KnownIdentity messages and finally an EndListKnownIdentities message.
@@ -0,0 +1,278 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk.ui.FCP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+
+import plugins.Freetalk.MessageManager.NewBoardMessageCallback;
+import plugins.Freetalk.SubscribedBoard;
+import plugins.Freetalk.SubscribedBoard.BoardMessageLink;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginReplySender;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.TrivialTicker;
+
+/**
+ * Pushes NewMessage events to FCP clients which have sent a Subscribe command, so they do not have to poll ListMessages.
+ *
+ * Events are not sent immediately: They are collected for {@link #NOTIFICATION_DELAY} and then sent by a job on the node's executor.
+ * Only one job per client is running at once, events which happen while a client is slow to receive are collected meanwhile.
+ * If more than {@link #MAX_EVENTS_PER_SUBSCRIPTION} events of a single subscription are pending, they are coalesced into a single
+ * NewMessages event which tells the client to call ListMessages with the given MinimumMessageIndex.
+ *
+ * Clients are identified by the Identifier of their FCP messages: A client must use the same Identifier for Subscribe and Unsubscribe.
+ * The events are sent through the PluginReplySender of the latest Subscribe message of the client.
+ */
+public final class FCPSubscriptionManager implements NewBoardMessageCallback {
+
+    /**
+     * The time for which events are collected before they are sent.
+     */
+    private static final long NOTIFICATION_DELAY = 1000;
+
+    /**
+     * If more events of a single subscription are pending, they are replaced by a single NewMessages event.
+     */
+    private static final int MAX_EVENTS_PER_SUBSCRIPTION = 32;
+
+    private final TrivialTicker mTicker;
+
+    /**
+     * The subscribed clients by their Identifier. Synchronized on this FCPSubscriptionManager, as are all members of {@link Client}.
+     */
+    private final HashMap<String, Client> mClients = new HashMap<String, Client>();
+
+
+    /**
+     * The events of a single subscription which are waiting to be sent.
+     */
+    private static final class PendingEvents {
+
+        private final String mOwnIdentityID;
+
+        private final String mBoardName;
+
+        /** The NewMessage events, null if they were coalesced because there were too many. */
+        private ArrayList<SimpleFieldSet> mEvents = new ArrayList<SimpleFieldSet>();
+
+        private int mMinimumMessageIndex = Integer.MAX_VALUE;
+
+        private int mCount = 0;
+
+        public PendingEvents(final String ownIdentityID, final String boardName) {
+            mOwnIdentityID = ownIdentityID;
+            mBoardName = boardName;
+        }
+
+        public void add(final SimpleFieldSet event, final int messageIndex) {
+            mMinimumMessageIndex = Math.min(mMinimumMessageIndex, messageIndex);
+            ++mCount;
+
+            if (mEvents != null) {
+                if (mEvents.size() < MAX_EVENTS_PER_SUBSCRIPTION)
+                    mEvents.add(event);
+                else
+                    mEvents = null;
+            }
+        }
+
+        /**
+         * Get the messages which shall be sent for the pending events.
+         */
+        public ArrayList<SimpleFieldSet> getMessages() {
+            if (mEvents != null)
+                return mEvents;
+
+            final SimpleFieldSet sfs = new SimpleFieldSet(true);
+            sfs.putOverwrite("Message", "NewMessages");
+            sfs.putOverwrite("OwnIdentityID", mOwnIdentityID);
+            sfs.putOverwrite("BoardName", mBoardName);
+            sfs.put("MinimumMessageIndex", mMinimumMessageIndex);
+            sfs.put("Count", mCount);
+
+            final ArrayList<SimpleFieldSet> result = new ArrayList<SimpleFieldSet>(1);
+            result.add(sfs);
+            return result;
+        }
+    }
+
+    private final class Client implements Runnable {
+
+        private final String mIdentifier;
+
+        private PluginReplySender mReplySender;
+
+        /**
+         * The subscriptions of the client, see {@link FCPSubscriptionManager#getSubscriptionKey(String, String)}.
+         */
+        private final HashSet<String> mSubscriptions = new HashSet<String>();
+
+        /**
+         * The pending events of each subscription, in the order in which the first event of the subscription happened. The key is
+         * the subscription key of the board, not the one of the subscription which matched - there might be one for all boards.
+         */
+        private LinkedHashMap<String, PendingEvents> mPendingEvents = new LinkedHashMap<String, PendingEvents>();
+
+        /**
+         * True if this Client is queued on the ticker or its run() is being executed.
+         */
+        private boolean mSending = false;
+
+        public Client(final String identifier) {
+            mIdentifier = identifier;
+        }
+
+        public boolean isSubscribed(final String ownIdentityID, final String boardName) {
+            return mSubscriptions.contains(getSubscriptionKey(ownIdentityID, boardName))
+                || mSubscriptions.contains(getSubscriptionKey(ownIdentityID, null));
+        }
+
+        /**
+         * You have to synchronize on the FCPSubscriptionManager when calling this function.
+         */
+        public void addEvent(final String ownIdentityID, final String boardName, final SimpleFieldSet event, final int messageIndex) {
+            final String key = getSubscriptionKey(ownIdentityID, boardName);
+            PendingEvents events = mPendingEvents.get(key);
+            if (events == null) {
+                events = new PendingEvents(ownIdentityID, boardName);
+                mPendingEvents.put(key, events);
+            }
+            events.add(event, messageIndex);
+
+            if (!mSending) {
+                mSending = true;
+                mTicker.queueTimedJob(this, "Freetalk FCPSubscriptionManager", NOTIFICATION_DELAY, false, true);
+            }
+        }
+
+        public void run() {
+            while(true) {
+                final PluginReplySender replySender;
+                final LinkedHashMap<String, PendingEvents> pendingEvents;
+
+                synchronized(FCPSubscriptionManager.this) {
+                    if (mPendingEvents.isEmpty() || mClients.get(mIdentifier) != this) {
+                        mSending = false;
+                        return;
+                    }
+
+                    replySender = mReplySender;
+                    pendingEvents = mPendingEvents;
+                    mPendingEvents = new LinkedHashMap<String, PendingEvents>();
+                }
+
+                // Sending is done without holding the lock so the message manager is never blocked by a slow client.
+                try {
+                    for(final PendingEvents events : pendingEvents.values()) {
+                        for(final SimpleFieldSet sfs : events.getMessages())
+                            replySender.send(sfs);
+                    }
+                } catch(final PluginNotFoundException e) {
+                    Logger.normal(this, "Connection to FCP client lost, removing its subscriptions: " + mIdentifier);
+
+                    synchronized(FCPSubscriptionManager.this) {
+                        if (mClients.get(mIdentifier) == this)
+                            mClients.remove(mIdentifier);
+                        mSending = false;
+                    }
+                    return;
+                } catch(final RuntimeException e) {
+                    Logger.error(this, "Sending events to FCP client failed: " + mIdentifier, e);
+                }
+            }
+        }
+    }
+
+
+    public FCPSubscriptionManager(final Executor executor) {
+        mTicker = new TrivialTicker(executor);
+    }
+
+    private static String getSubscriptionKey(final String ownIdentityID, final String boardName) {
+        return boardName != null ? ownIdentityID + "@" + boardName : ownIdentityID;
+    }
+
+    /**
+     * Subscribes the client which sent the given message to new messages in the given board of the given own identity.
+     *
+     * @param boardName The name of the board, null to subscribe to all boards which the own identity is subscribed to.
+     */
+    public synchronized void subscribe(final PluginReplySender replySender, final String ownIdentityID, final String boardName) {
+        Client client = mClients.get(replySender.getIdentifier());
+        if (client == null) {
+            client = new Client(replySender.getIdentifier());
+            mClients.put(client.mIdentifier, client);
+        }
+
+        client.mReplySender = replySender;
+        client.mSubscriptions.add(getSubscriptionKey(ownIdentityID, boardName));
+    }
+
+    /**
+     * Removes a subscription which was created by {@link #subscribe(PluginReplySender, String, String)}.
+     */
+    public synchronized void unsubscribe(final PluginReplySender replySender, final String ownIdentityID, final String boardName) {
+        final Client client = mClients.get(replySender.getIdentifier());
+        if (client == null)
+            return;
+
+        client.mSubscriptions.remove(getSubscriptionKey(ownIdentityID, boardName));
+
+        if (client.mSubscriptions.isEmpty())
+            mClients.remove(client.mIdentifier);
+    }
+
+    /**
+     * Removes all subscriptions and stops the sending of pending events.
+     */
+    public void terminate() {
+        synchronized(this) {
+            mClients.clear();
+        }
+
+        mTicker.shutdown();
+    }
+
+    /**
+     * Queues a NewMessage event for each client which is subscribed to the board:
+     *   Message=NewMessage
+     *   OwnIdentityID=ID
+     *   BoardName=abc
+     *   MessageIndex=123
+     *   ID=id
+     *   ThreadID=id              (not sent if the message is a thread)
+     */
+    public void onNewBoardMessage(final SubscribedBoard board, final BoardMessageLink link) {
+        final String ownIdentityID = board.getSubscriber().getID();
+        final String boardName = board.getName();
+
+        synchronized(this) {
+            SimpleFieldSet event = null;
+
+            for(final Client client : mClients.values()) {
+                if (!client.isSubscribed(ownIdentityID, boardName))
+                    continue;
+
+                if (event == null) {
+                    event = new SimpleFieldSet(true);
+                    event.putOverwrite("Message", "NewMessage");
+                    event.putOverwrite("OwnIdentityID", ownIdentityID);
+                    event.putOverwrite("BoardName", boardName);
+                    event.put("MessageIndex", link.getIndex());
+                    event.putOverwrite("ID", link.getMessageID());
+                    if (!link.getThreadID().equals(link.getMessageID()))
+                        event.putOverwrite("ThreadID", link.getThreadID());
+                }
+
+                client.addEvent(ownIdentityID, boardName, event, link.getIndex());
+            }
+        }
+    }
+
+}
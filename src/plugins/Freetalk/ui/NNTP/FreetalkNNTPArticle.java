@@ -3,15 +3,21 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk.ui.NNTP;
 
-import java.io.UnsupportedEncodingException;
-import java.text.SimpleDateFormat;
-import java.util.Locale;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import plugins.Freetalk.Board;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.Message;
+import plugins.Freetalk.MessageManager;
+import plugins.Freetalk.Quoting;
 import plugins.Freetalk.exceptions.NoSuchBoardException;
 import plugins.Freetalk.exceptions.NoSuchMessageException;
 import freenet.support.Logger;
@@ -39,14 +45,125 @@ public class FreetalkNNTPArticle {
 		}
 	}
 
-	public static final SimpleDateFormat mDateFormat = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US);
-
 	public static final Pattern mEndOfLinePattern = Pattern.compile("\r\n?|\n");
 
-	private final Message mMessage;
+	private final MessageManager mMessageManager;
+
+	private final String mMessageID;
+
+	/** The message, null if it was not loaded from the database yet. See {@link #getMessage()}. */
+	private Message mMessage;
 
 	private String parsedMessageBody = null;
 
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * The maximal number of articles in {@link #mRenderingCache}.
+	 */
+	private static final int RENDERING_CACHE_SIZE = 128;
+
+	/**
+	 * The results of {@link #getRendering()} by message ID, so a message which is requested by several newsreaders or for HEAD, BODY,
+	 * ARTICLE and the overview is only rendered once. Least recently used articles are removed when the cache is full.
+	 */
+	private static final LinkedHashMap<String, Rendering> mRenderingCache =
+		new LinkedHashMap<String, Rendering>(RENDERING_CACHE_SIZE * 2, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Rendering> eldest) {
+				return size() > RENDERING_CACHE_SIZE;
+			}
+		};
+
+	/**
+	 * An article in the format in which it is sent to the client: The header lines, an empty line and the body lines, each terminated by
+	 * CR+LF, dot-stuffed and encoded as UTF-8. The terminating "." line of the text response is not included.
+	 * Immutable so it can be shared by all connections.
+	 */
+	public static final class Rendering {
+
+		private final byte[] mData;
+
+		/** The number of bytes of the header lines, the empty line follows them. */
+		private final int mHeadLength;
+
+		private final long mByteCount;
+
+		private final long mBodyLineCount;
+
+		private Rendering(final String head, final String body) {
+			final ByteArrayOutputStream output = new ByteArrayOutputStream(head.length() + body.length() + 1024);
+			long byteCount = 2; // The empty line between head and body
+
+			for (final String line : mEndOfLinePattern.split(head))
+				byteCount += writeLine(output, line);
+
+			mHeadLength = output.size();
+			output.write('\r');
+			output.write('\n');
+
+			final String[] bodyLines = mEndOfLinePattern.split(body);
+			for (final String line : bodyLines)
+				byteCount += writeLine(output, line);
+
+			mData = output.toByteArray();
+			mByteCount = byteCount;
+			mBodyLineCount = bodyLines.length;
+		}
+
+		/**
+		 * @return The number of bytes of the line without the dot which was added by dot-stuffing.
+		 */
+		private static int writeLine(final ByteArrayOutputStream output, final String line) {
+			final byte[] bytes = line.getBytes(UTF8);
+			if (bytes.length > 0 && bytes[0] == '.')
+				output.write('.');
+			output.write(bytes, 0, bytes.length);
+			output.write('\r');
+			output.write('\n');
+			return bytes.length + 2;
+		}
+
+		/**
+		 * Write the head and body, as for the ARTICLE command.
+		 */
+		public void writeArticle(final OutputStream output) throws IOException {
+			output.write(mData);
+		}
+
+		/**
+		 * Write the head, as for the HEAD command.
+		 */
+		public void writeHead(final OutputStream output) throws IOException {
+			output.write(mData, 0, mHeadLength);
+		}
+
+		/**
+		 * Write the body, as for the BODY command.
+		 */
+		public void writeBody(final OutputStream output) throws IOException {
+			output.write(mData, mHeadLength + 2, mData.length - mHeadLength - 2);
+		}
+
+		/**
+		 * Get the size of the article as it is stored, i.e. without the dots which were added by dot-stuffing.
+		 */
+		public long getByteCount() {
+			return mByteCount;
+		}
+
+		public long getBodyLineCount() {
+			return mBodyLineCount;
+		}
+	}
+
+	/**
+	 * Matches the empty lines, quoted or not, at the beginning of the result of {@link #parseBBCodeToNNTPQuotes(String)}.
+	 */
+	private static final Pattern mLeadingEmptyLinesPattern = Pattern.compile("^((>\\s*)*\\n)+");
+
 	private final int mMessageIndex;
 	
 	
@@ -61,22 +178,48 @@ public class FreetalkNNTPArticle {
 	
 
 	public FreetalkNNTPArticle(final Message message) {
-		this.mMessage = message;
-		mMessageIndex = 0;
+		this(message, 0);
 	}
 
 	public FreetalkNNTPArticle(final Message message, final int messageNum) {
+		mMessageManager = null;
+		mMessageID = message.getID();
 		this.mMessage = message;
 		this.mMessageIndex = messageNum;
 	}
 
+	/**
+	 * Constructs an article whose message is only loaded from the database when it is needed. Commands such as STAT and cached
+	 * overviews only need the ID and number of an article.
+	 */
+	public FreetalkNNTPArticle(final MessageManager messageManager, final String messageID, final int messageNum) {
+		mMessageManager = messageManager;
+		mMessageID = messageID;
+		mMessage = null;
+		mMessageIndex = messageNum;
+	}
+
 	/**
 	 * Get the FTMessage object associated with this group.
+	 * If it was not loaded yet, it is loaded from the database - you have to synchronize on the board of the article then, as for
+	 * {@link FreetalkNNTPGroup#getMessageIterator(int, int)}.
 	 */
 	public Message getMessage() {
+		if (mMessage == null) {
+			try {
+				mMessage = mMessageManager.get(mMessageID);
+			} catch(NoSuchMessageException e) {
+				// The message was deleted even though the board was locked since the article was created.
+				throw new RuntimeException(e);
+			}
+		}
 		return mMessage;
 	}
 
+	public String getMessageID() {
+		return mMessageID;
+	}
+
 	/**
 	 * Get the message number, or 0 if none was set.
 	 */
@@ -161,13 +304,13 @@ public class FreetalkNNTPArticle {
 	public String getHeader(final Header hdr) {
 		switch (hdr) {
 		case FROM:
-			return mMessage.getAuthor().getFreetalkAddress();
+			return getMessage().getAuthor().getFreetalkAddress();
 
 		case SUBJECT:
-			return mMessage.getTitle();
+			return getMessage().getTitle();
 
 		case NEWSGROUPS:
-			final Board boards[] = mMessage.getBoards();
+			final Board boards[] = getMessage().getBoards();
 			final StringBuilder builder = new StringBuilder(1024);
 
 			builder.append(FreetalkNNTPGroup.boardToGroupName(boards[0].getName()));
@@ -181,30 +324,28 @@ public class FreetalkNNTPArticle {
 
 		case FOLLOWUP_TO:
 			try {
-				final Board board = mMessage.getReplyToBoard();
+				final Board board = getMessage().getReplyToBoard();
 				return FreetalkNNTPGroup.boardToGroupName(board.getName());
 			} catch(NoSuchBoardException e) {
 				return "";
 			}
 
 		case DATE:
-			synchronized(mDateFormat) {
-				return mDateFormat.format(mMessage.getDate());
-			}
+			return DateFormatter.formatRFC5322(getMessage().getDate());
 
 		case MESSAGE_ID:
-			return "<" + mMessage.getID() + ">";
+			return "<" + mMessageID + ">";
 
 		case REFERENCES:
 			// TODO: it would be good for the message to include a
 			// list of earlier messages in the thread, in case the
 			// parent message can't be retrieved.
 
-			if (mMessage.isThread())
+			if (getMessage().isThread())
 				return "";
 			else {
 				try {
-					return "<" + mMessage.getParentID() + ">";
+					return "<" + getMessage().getParentID() + ">";
 				}
 				catch(NoSuchMessageException e) {
 					Logger.error(this, "Should not happen", e);
@@ -229,7 +370,7 @@ public class FreetalkNNTPArticle {
 	public String getHead() {
 		final StringBuilder builder = new StringBuilder();
 
-		synchronized (mMessage) {
+		synchronized (getMessage()) {
 			for (Header hdr : Header.values()) {
 				final String text = getHeader(hdr);
 				if (!text.equals("")) {
@@ -249,73 +390,111 @@ public class FreetalkNNTPArticle {
 	 */
 	public String getBody() {
 		if(this.parsedMessageBody == null) {
-			this.parsedMessageBody = parseBBCodeToNNTPQuotes(mMessage.getText());
+			this.parsedMessageBody = parseBBCodeToNNTPQuotes(getMessage().getText());
 			if(logDEBUG) Logger.debug(this, this.parsedMessageBody);
 		}
 		return this.parsedMessageBody;
 	}
 
 	/**
-	 * Transforms [quote] tags to ">-style" quotes, more appropriate for
-	 * NNTP newsreaders.
+	 * Get the article in the format in which it is sent to the client. Taken from a cache if the article was rendered recently.
 	 */
-	private static String parseBBCodeToNNTPQuotes(String body) {
-		final String pat = "\\[quote( author=\"([^\"]+)\" message=\"([^\"]+)\")?\\](.+)\\[/quote\\]";
-		final Pattern quotePattern = Pattern.compile(pat, Pattern.DOTALL);
-		body = Matcher.quoteReplacement(body);
-		Matcher quoteMatcher = quotePattern.matcher(body);
-		while(quoteMatcher.find()) {			
-			String replacement;
-			//if(quoteMatcher.group(1) != null) {
-			//	replacement = "(" + quoteMatcher.group(3) + ") " + quoteMatcher.group(2) + " wrote:" + quoteMatcher.group(4);
-			//} else {
-				replacement = quoteMatcher.group(4);
-			//}
-			replacement = "> " + replacement.replace("\n", "\n> ");
-			body = quoteMatcher.replaceFirst(replacement);
-			body = Matcher.quoteReplacement(body);
-			quoteMatcher = quotePattern.matcher(body);
-		}		
-		final Pattern trimEmpty = Pattern.compile("^((>\\s*)*\\n)+");
-		return trimEmpty.matcher(body).replaceFirst("");
+	public Rendering getRendering() {
+		synchronized(mRenderingCache) {
+			final Rendering cached = mRenderingCache.get(mMessageID);
+			if(cached != null)
+				return cached;
+		}
+
+		// Rendered without holding the lock, the worst case is that two threads render the same article.
+		final Rendering rendering = new Rendering(getHead(), getBody());
+
+		synchronized(mRenderingCache) {
+			mRenderingCache.put(mMessageID, rendering);
+		}
+
+		return rendering;
 	}
 
 	/**
-	 * Get the number of lines in the article's body.
+	 * Transforms [quote] tags to ">-style" quotes, more appropriate for
+	 * NNTP newsreaders.
+	 * 
+	 * The text is processed in a single pass over the tags which are found by {@link Quoting#getTagMatcher(CharSequence)}, so quotes are
+	 * recognized the same way as by the web interface. Each line gets one "> " per quote which contains it. Other tags and closing
+	 * quote tags without an opening one are not modified. Empty lines, quoted or not, at the beginning of the result are removed.
 	 */
-	public long getBodyLineCount() {
-		final String[] bodyLines = mEndOfLinePattern.split(getBody());
-		return bodyLines.length;
+	static String parseBBCodeToNNTPQuotes(final String body) {
+		final StringBuilder result = new StringBuilder(body.length() + body.length() / 8);
+		final Matcher tagMatcher = Quoting.getTagMatcher(body);
+		
+		int depth = 0;
+		boolean atLineStart = true;
+		int position = 0;
+		
+		while (position < body.length()) {
+			final int tagStart;
+			final boolean isQuoteTag;
+			
+			if (tagMatcher.find(position)) {
+				tagStart = tagMatcher.start();
+				isQuoteTag = Quoting.TextElementType.fromString(tagMatcher.group(3)) == Quoting.TextElementType.Quote
+					&& (tagMatcher.group(2).length() == 0 || depth > 0);
+			} else {
+				tagStart = body.length();
+				isQuoteTag = false;
+			}
+			
+			// Copy the text before the tag, and the tag itself if it is not a quote tag, prefixing each line with the quote marks
+			final int copyEnd = isQuoteTag ? tagStart : (tagStart < body.length() ? tagMatcher.end() : tagStart);
+			for (int i = position; i < copyEnd; ++i) {
+				final char c = body.charAt(i);
+				if (atLineStart) {
+					for (int level = 0; level < depth; ++level)
+						result.append("> ");
+					atLineStart = false;
+				}
+				result.append(c);
+				if (c == '\n')
+					atLineStart = true;
+			}
+			position = copyEnd;
+			
+			if (!isQuoteTag)
+				continue;
+			
+			// A quote starts and ends at a line break
+			if (!atLineStart) {
+				result.append('\n');
+				atLineStart = true;
+			}
+			
+			if (tagMatcher.group(2).length() == 0)
+				++depth;
+			else
+				--depth;
+			
+			position = tagMatcher.end();
+			
+			// The line break which follows a quote tag is part of the tag, see Quoting.getFullQuote()
+			if (position < body.length() && body.charAt(position) == '\n')
+				++position;
+		}
+		
+		return mLeadingEmptyLinesPattern.matcher(result).replaceFirst("");
 	}
 
 	/**
-	 * Get number of bytes to encode string as UTF-8
+	 * Get the number of lines in the article's body.
 	 */
-	private long byteCountUTF8(String s) {
-		// TODO: GAH!  There must be a simpler way to do this
-		try {
-			byte[] b = s.getBytes("UTF-8");
-			return b.length;
-		}
-		catch (UnsupportedEncodingException e) {
-			return 0;
-		}
+	public long getBodyLineCount() {
+		return getRendering().getBodyLineCount();
 	}
 
 	/**
 	 * Get the total size of the article.
 	 */
 	public long getByteCount() {
-		final String[] headLines = mEndOfLinePattern.split(getHead());
-		final String[] bodyLines = mEndOfLinePattern.split(getBody());
-		long count = 2;
-		int i;
-
-		for (i = 0; i < headLines.length; i++)
-			count += byteCountUTF8(headLines[i]) + 2;
-		for (i = 0; i < bodyLines.length; i++)
-			count += byteCountUTF8(bodyLines[i]) + 2;
-
-		return count;
+		return getRendering().getByteCount();
 	}
 }
@@ -4,13 +4,15 @@
 package plugins.Freetalk.ui.NNTP;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.regex.Pattern;
 
-import plugins.Freetalk.Message;
+import plugins.Freetalk.BoardProjection;
+import plugins.Freetalk.BoardProjection.MessageSummary;
+import plugins.Freetalk.MessageManager;
 import plugins.Freetalk.SubscribedBoard;
-import plugins.Freetalk.exceptions.MessageNotFetchedException;
 import plugins.Freetalk.exceptions.NoSuchMessageException;
-import freenet.support.Logger;
 
 /**
  * Object representing a newsgroup, as seen from the NNTP client's
@@ -20,9 +22,11 @@ import freenet.support.Logger;
  */
 public final class FreetalkNNTPGroup {
     private final SubscribedBoard mBoard;
+    private final MessageManager mMessageManager;
 
-    public FreetalkNNTPGroup(final SubscribedBoard board) {
+    public FreetalkNNTPGroup(final SubscribedBoard board, final MessageManager messageManager) {
         mBoard = board;
+        mMessageManager = messageManager;
     }
 
     /**
@@ -42,6 +46,39 @@ public final class FreetalkNNTPGroup {
         return name;
     }
 
+    /**
+     * Check whether a group name matches a wildmat as specified by RFC 3977: A comma separated list of patterns which may contain the
+     * wildcards '*' and '?', patterns which are prefixed with '!' exclude the groups they match. The last matching pattern decides.
+     */
+    public static boolean matchesWildmat(final String groupName, final String wildmat) {
+        boolean result = false;
+
+        for (String pattern : wildmat.split(",")) {
+            final boolean negated = pattern.startsWith("!");
+            if (negated)
+                pattern = pattern.substring(1);
+
+            final StringBuilder regex = new StringBuilder(pattern.length() + 16);
+            int start = 0;
+            for (int i = 0; i < pattern.length(); ++i) {
+                final char c = pattern.charAt(i);
+                if (c == '*' || c == '?') {
+                    if (i > start)
+                        regex.append(Pattern.quote(pattern.substring(start, i)));
+                    regex.append(c == '*' ? ".*" : ".");
+                    start = i + 1;
+                }
+            }
+            if (start < pattern.length())
+                regex.append(Pattern.quote(pattern.substring(start)));
+
+            if (Pattern.matches(regex.toString(), groupName))
+                result = !negated;
+        }
+
+        return result;
+    }
+
     /**
      * Get the FTBoard object associated with this group.
      */
@@ -60,7 +97,7 @@ public final class FreetalkNNTPGroup {
      * Estimate number of messages that have been posted.
      */
     public long messageCount() {
-        return mBoard.getAllMessages(false).size();
+        return mBoard.getProjection().getMessageCount();
     }
 
     /**
@@ -68,7 +105,7 @@ public final class FreetalkNNTPGroup {
      */
     public int firstMessage() {
     	try {
-    		return mBoard.getFirstMessageIndex();
+    		return mBoard.getProjection().getFirstMessageIndex();
     	}
     	catch(NoSuchMessageException e) {
     		return 0; // TODO: Does NNTP expect this if there are no messages??
@@ -80,7 +117,7 @@ public final class FreetalkNNTPGroup {
      */
     public int lastMessage() {
     	try {
-    		return mBoard.getLastMessageIndex();
+    		return mBoard.getProjection().getLastMessageIndex();
     	}
     	catch(NoSuchMessageException e) {
     		return 0; // TODO: Does NNTP expect this if there are no messages??
@@ -88,39 +125,50 @@ public final class FreetalkNNTPGroup {
     }
 
     /**
-     * Get an iterator for articles in the given range.
+     * Get an iterator for articles in the given range. The articles are taken from the {@link BoardProjection} of the board, their
+     * messages are only loaded from the database when they are needed, see {@link FreetalkNNTPArticle#getMessage()}.
+     * Messages which were not fetched yet are skipped.
+     * 
      * You have to embed the call to this function and processing of the returned Iterator in a synchronized(thisGroup.getBoard())!
+     * 
+     * @param end The last article number of the range, -1 for an unbounded range.
+     * @throws NoSuchMessageException If the range does not contain any article.
      */
-    public Iterator<FreetalkNNTPArticle> getMessageIterator(int start, int end) throws NoSuchMessageException {
-            if (start < firstMessage())
-                start = firstMessage();
-
-            if (end == -1 || end > lastMessage())
-                end = lastMessage();
-
-            final int startIndex = start;
-            final int endIndex = end;
+    public Iterator<FreetalkNNTPArticle> getMessageIterator(final int start, final int end) throws NoSuchMessageException {
+            final List<MessageSummary> messages = mBoard.getProjection().getMessages();
+
+            // The messages are sorted ascending by index, search the first one which is in the range.
+            int low = 0;
+            int high = messages.size();
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (messages.get(middle).getIndex() < start)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            final int firstPosition = low;
 
             final Iterator<FreetalkNNTPArticle> iter = new Iterator<FreetalkNNTPArticle>() {
-                private int currentIndex = startIndex;
-                private Message currentMessage = null;
+                private int currentPosition = firstPosition;
+                private MessageSummary currentMessage = null;
 
                 public boolean hasNext() {
                     if (currentMessage != null)
                         return true;
 
-                    while (currentIndex <= endIndex) {
-                        try {
-                            currentMessage = mBoard.getMessageByIndex(currentIndex).getMessage();
+                    while (currentPosition < messages.size()) {
+                        final MessageSummary message = messages.get(currentPosition);
+
+                        if (end != -1 && message.getIndex() > end)
+                            return false;
+
+                        ++currentPosition;
+
+                        if (message.wasFetched()) {
+                            currentMessage = message;
                             return true;
                         }
-                        catch (MessageNotFetchedException e) {
-                        	// Skip this one
-                        }
-                        catch (NoSuchMessageException e) { // Should not happen because endIndex == board.getLastMessageIndex();
-                            Logger.error(this, "NoSuchMessageException for currentIndex (" + currentIndex + ") <= endIndex (" + endIndex + ")", e);
-                        }
-                        currentIndex++;
                     }
                     return false;
                 }
@@ -129,9 +177,9 @@ public final class FreetalkNNTPGroup {
                     if (!hasNext())
                         throw new NoSuchElementException();
                     else {
-                        Message msg = currentMessage;
+                        final MessageSummary msg = currentMessage;
                         currentMessage = null;
-                        return new FreetalkNNTPArticle(msg, currentIndex++);
+                        return new FreetalkNNTPArticle(mMessageManager, msg.getMessageID(), msg.getIndex());
                     }
                 }
 
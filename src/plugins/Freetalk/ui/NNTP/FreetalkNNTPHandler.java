@@ -3,12 +3,13 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk.ui.NNTP;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.lang.reflect.Constructor;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.text.ParsePosition;
@@ -17,12 +18,17 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.SimpleTimeZone;
+import java.util.LinkedHashSet;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import plugins.Freetalk.Board;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.OwnIdentity;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.IdentityManager;
@@ -50,9 +56,27 @@ public final class FreetalkNNTPHandler implements Runnable {
 
     private final IdentityManager mIdentityManager;
     private final MessageManager mMessageManager;
+    private final FreetalkNNTPOverviewCache mOverviewCache;
 
     private final Socket mSocket;
-    private BufferedWriter mOutput;
+
+    /**
+     * The output of the connection. Responses are collected in its buffers and only written to the socket when a command was
+     * processed completely, see {@link #flushOutput()}.
+     */
+    private OutputStream mOutput;
+
+    /** The input of the connection, decompressed if compression was activated by the COMPRESS command. */
+    private FreetalkNNTPInputReader mInput;
+
+    /** The maximal size of an article which is sent with POST, in bytes. */
+    private final int mMaxPostSize;
+
+    /** The compressor of the output, null if the COMPRESS command was not used. */
+    private Deflater mDeflater = null;
+
+    /** The decompressor of the input, null if the COMPRESS command was not used. */
+    private Inflater mInflater = null;
 
     /** Current board (selected by the GROUP command) */
     private FreetalkNNTPGroup mCurrentGroup;
@@ -65,21 +89,64 @@ public final class FreetalkNNTPHandler implements Runnable {
 
     
     /** Line ending required by NNTP **/
-    private static final String CRLF = "\r\n";
-    
-    /** Date format used by the DATE command */
-    private static final SimpleDateFormat serverDateFormat = new SimpleDateFormat("yyyyMMddHHmmss");
-
-    private static final SimpleTimeZone utcTimeZone = new SimpleTimeZone(0, "UTC");
+    private static final byte[] CRLF = { '\r', '\n' };
 
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    
     /** Pattern for matching valid "range" arguments. */
     private static final Pattern rangePattern = Pattern.compile("(\\d+)(-(\\d+)?)?");
 
+    /** Size of the buffer of the socket output stream, large enough for the response to OVER of a typical range of articles. */
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+
+    /** Size of the buffer in which compressed output is collected before it is written to the socket. */
+    private static final int COMPRESSION_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * The constructor DeflaterOutputStream(OutputStream, Deflater, int, boolean) which allows flushing the compressor after each
+     * response, as required by RFC 8054. It was added in Java 7 so it is obtained by reflection, null if it does not exist: COMPRESS is
+     * not offered then.
+     */
+    private static final Constructor<DeflaterOutputStream> syncFlushDeflaterConstructor = getSyncFlushDeflaterConstructor();
+
 
-    public FreetalkNNTPHandler(final Freetalk ft, final Socket socket) throws SocketException {
+    /**
+     * @param idleTimeout Milliseconds after which the connection is closed if the client does not send anything.
+     * @param maxPostSize The maximal size of an article which is sent with POST, in bytes.
+     */
+    public FreetalkNNTPHandler(final Freetalk ft, final Socket socket, final int idleTimeout, final int maxPostSize,
+    		final FreetalkNNTPOverviewCache overviewCache) throws SocketException {
         mIdentityManager = ft.getIdentityManager();
         mMessageManager = ft.getMessageManager();
+        mOverviewCache = overviewCache;
+        mMaxPostSize = maxPostSize;
         this.mSocket = socket;
+        mSocket.setSoTimeout(idleTimeout);
+    }
+
+    private static Constructor<DeflaterOutputStream> getSyncFlushDeflaterConstructor() {
+        try {
+            return DeflaterOutputStream.class.getConstructor(OutputStream.class, Deflater.class, int.class, boolean.class);
+        } catch (NoSuchMethodException e) {
+            Logger.normal(FreetalkNNTPHandler.class, "Java 7 is required for NNTP compression, COMPRESS DEFLATE is disabled.");
+            return null;
+        }
+    }
+
+    static boolean isCompressionSupported() {
+        return syncFlushDeflaterConstructor != null;
+    }
+
+    /**
+     * Get a DeflaterOutputStream whose flush() flushes the compressor so the client can decompress everything which was written.
+     * Only available if {@link #isCompressionSupported()}.
+     */
+    static DeflaterOutputStream newSyncFlushDeflaterOutputStream(final OutputStream output, final Deflater deflater) throws IOException {
+        try {
+            return syncFlushDeflaterConstructor.newInstance(output, deflater, COMPRESSION_BUFFER_SIZE, true);
+        } catch (Exception e) {
+            throw new IOException("Creating DeflaterOutputStream failed", e);
+        }
     }
 
     /**
@@ -106,10 +173,9 @@ public final class FreetalkNNTPHandler implements Runnable {
      * information.)
      */
     private void printStatusLine(final String line) throws IOException {
-        mOutput.write(line);
+        mOutput.write(line.getBytes(UTF8));
         // NNTP spec requires all command and response lines end with CR+LF
         mOutput.write(CRLF);
-        mOutput.flush();
     }
 
     /**
@@ -119,9 +185,9 @@ public final class FreetalkNNTPHandler implements Runnable {
      */
     private void printTextResponseLine(final String line) throws IOException {
         if (line.length() > 0 && line.charAt(0) == '.') {
-            mOutput.write(".");
+            mOutput.write('.');
         }
-        mOutput.write(line);
+        mOutput.write(line.getBytes(UTF8));
         mOutput.write(CRLF);
     }
     
@@ -129,8 +195,15 @@ public final class FreetalkNNTPHandler implements Runnable {
      * Print a single dot to indicate the end of a text response.
      */
     private void endTextResponse() throws IOException {
-        mOutput.write(".");
+        mOutput.write('.');
         mOutput.write(CRLF);
+    }
+
+    /**
+     * Write the buffered responses to the socket. Called once after each command instead of after each line so a response is sent
+     * in as few packets as possible.
+     */
+    private void flushOutput() throws IOException {
         mOutput.flush();
     }
 
@@ -263,24 +336,25 @@ public final class FreetalkNNTPHandler implements Runnable {
             mCurrentMessageNum = article.getMessageNum();
 
         if (printHead && printBody) {
-            printStatusLine("220 " + article.getMessageNum() + " <" + article.getMessage().getID() + ">");
-            printText(article.getHead());
-            printTextResponseLine("");
-            printText(article.getBody());
+            final FreetalkNNTPArticle.Rendering rendering = article.getRendering();
+            printStatusLine("220 " + article.getMessageNum() + " <" + article.getMessageID() + ">");
+            rendering.writeArticle(mOutput);
             endTextResponse();
         }
         else if (printHead) {
-            printStatusLine("221 " + article.getMessageNum() + " <" + article.getMessage().getID() + ">");
-            printText(article.getHead());
+            final FreetalkNNTPArticle.Rendering rendering = article.getRendering();
+            printStatusLine("221 " + article.getMessageNum() + " <" + article.getMessageID() + ">");
+            rendering.writeHead(mOutput);
             endTextResponse();
         }
         else if (printBody) {
-            printStatusLine("222 " + article.getMessageNum() + " <" + article.getMessage().getID() + ">");
-            printText(article.getBody());
+            final FreetalkNNTPArticle.Rendering rendering = article.getRendering();
+            printStatusLine("222 " + article.getMessageNum() + " <" + article.getMessageID() + ">");
+            rendering.writeBody(mOutput);
             endTextResponse();
         }
         else {
-            printStatusLine("223 " + article.getMessageNum() + " <" + article.getMessage().getID() + ">");
+            printStatusLine("223 " + article.getMessageNum() + " <" + article.getMessageID() + ">");
         }
         }
     }
@@ -296,7 +370,7 @@ public final class FreetalkNNTPHandler implements Runnable {
         try {
         	final String boardName = FreetalkNNTPGroup.groupToBoardName(name);
         	final SubscribedBoard board = mMessageManager.getSubscription(mAuthenticatedUser, boardName);
-            mCurrentGroup = new FreetalkNNTPGroup(board);
+            mCurrentGroup = new FreetalkNNTPGroup(board, mMessageManager);
             synchronized (board) {
                 mCurrentMessageNum = mCurrentGroup.firstMessage();
                 printStatusLine("211 " + mCurrentGroup.messageCount()
@@ -350,7 +424,7 @@ public final class FreetalkNNTPHandler implements Runnable {
             try {
             	final String boardName = FreetalkNNTPGroup.groupToBoardName(name);
             	final SubscribedBoard board = mMessageManager.getSubscription(mAuthenticatedUser, boardName);
-                mCurrentGroup = new FreetalkNNTPGroup(board);
+                mCurrentGroup = new FreetalkNNTPGroup(board, mMessageManager);
             }
             catch (NoSuchBoardException e) {
                 printStatusLine("411 No such group");
@@ -399,7 +473,7 @@ public final class FreetalkNNTPHandler implements Runnable {
         synchronized(mMessageManager) {
         // TODO: Optimization: Use a non sorting function
         for (final SubscribedBoard board : mMessageManager.subscribedBoardIteratorSortedByName(mAuthenticatedUser)) {
-        	final FreetalkNNTPGroup group = new FreetalkNNTPGroup(board);
+        	final FreetalkNNTPGroup group = new FreetalkNNTPGroup(board, mMessageManager);
             printTextResponseLine(group.getGroupName()
                     + " " + group.lastMessage()
                     + " " + group.firstMessage()
@@ -428,23 +502,48 @@ public final class FreetalkNNTPHandler implements Runnable {
         endTextResponse();
     }
 
+    /**
+     * Parse the "date time [GMT]" arguments of the NEWGROUPS and NEWNEWS commands.
+     *
+     * @param first The index of the date in the tokens.
+     * @return The date, null if the arguments are invalid.
+     */
+    private static Date parseDateArguments(final String[] tokens, final int first) {
+        boolean gmt = false;
+        if (!((tokens.length == first + 3 && (gmt = tokens[first + 2].equalsIgnoreCase("GMT"))) ||
+                (tokens.length == first + 2)))
+            return null;
+
+        final String datestr = tokens[first] + " " + tokens[first + 1];
+        final SimpleDateFormat df;
+        if (datestr.length() == 15)
+            df = new SimpleDateFormat("yyyyMMdd HHmmss");
+        else if (datestr.length() == 13)
+            df = new SimpleDateFormat("yyMMdd HHmmss");
+        else
+            return null;
+
+        if (gmt)
+            df.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        final ParsePosition position = new ParsePosition(0);
+        final Date date = df.parse(datestr, position);
+        return position.getIndex() == datestr.length() ? date : null;
+    }
+
     /**
      * Handle the NEWGROUPS command.
      */
-    private void listNewGroupsSince(final String datestr, final String format, final boolean gmt) throws IOException {
+    private void listNewGroupsSince(final Date date) throws IOException {
 		if (mAuthenticatedUser == null) {
 			printStatusLine("480 Authentification required");
 			return;
 		}
-		final SimpleDateFormat df = new SimpleDateFormat(format);
-        if (gmt)
-            df.setTimeZone(TimeZone.getTimeZone("UTC"));
 
         printStatusLine("231 List of new newsgroups follows");
-        final Date date = df.parse(datestr, new ParsePosition(0));
         synchronized(mMessageManager) {
         for (SubscribedBoard board : mMessageManager.subscribedBoardIteratorSortedByDate(mAuthenticatedUser, date)) {
-            final FreetalkNNTPGroup group = new FreetalkNNTPGroup(board);
+            final FreetalkNNTPGroup group = new FreetalkNNTPGroup(board, mMessageManager);
             printTextResponseLine(board.getName()
                     + " " + group.lastMessage()
                     + " " + group.firstMessage()
@@ -454,6 +553,38 @@ public final class FreetalkNNTPHandler implements Runnable {
         endTextResponse();
     }
 
+    /**
+     * Handle the NEWNEWS command: List the message IDs of the articles which arrived in the matching groups since the given date.
+     * The arrival date is the link date of the message in the board, so messages which were fetched late are listed even if the date
+     * which their author has chosen is older.
+     */
+    private void listNewArticlesSince(final String wildmat, final Date date) throws IOException {
+		if (mAuthenticatedUser == null) {
+			printStatusLine("480 Authentification required");
+			return;
+		}
+
+        // A message which was posted to several boards is listed once
+        final LinkedHashSet<String> messageIDs = new LinkedHashSet<String>();
+
+        synchronized(mMessageManager) {
+        for (final SubscribedBoard board : mMessageManager.subscribedBoardIteratorSortedByName(mAuthenticatedUser)) {
+            if (!FreetalkNNTPGroup.matchesWildmat(FreetalkNNTPGroup.boardToGroupName(board.getName()), wildmat))
+                continue;
+
+            synchronized(board) {
+                for (final SubscribedBoard.BoardMessageLink link : board.getMessagesByMinimumLinkDate(date))
+                    messageIDs.add(link.getMessageID());
+            }
+        }
+        }
+
+        printStatusLine("230 List of new articles follows");
+        for (final String messageID : messageIDs)
+            printTextResponseLine("<" + messageID + ">");
+        endTextResponse();
+    }
+
     /**
      * Handle the HDR / XHDR command.
      */
@@ -503,26 +634,38 @@ public final class FreetalkNNTPHandler implements Runnable {
             return;
         }
 		
-        synchronized(mCurrentGroup.getBoard()) {
+        final SubscribedBoard board = mCurrentGroup.getBoard();
+        mOverviewCache.computeNewOverviews(board, mMessageManager);
+
+        final ArrayList<FreetalkNNTPArticle> articles = new ArrayList<FreetalkNNTPArticle>();
+        final ArrayList<String> overviews = new ArrayList<String>();
+
+        synchronized(board) {
         	final Iterator<FreetalkNNTPArticle> iter = getArticleRangeIterator(articleDesc, false);
 
         	if (iter == null)
         		return;
-        
-            printStatusLine("224 Overview follows");
+
             while (iter.hasNext()) {
             	final FreetalkNNTPArticle article = iter.next();
+            	final String overview = mOverviewCache.getCachedOverview(board, article.getMessageID());
+
+            	// Load the message while the board is locked so it cannot be deleted, its overview is computed after the board was unlocked.
+            	if (overview == null)
+            		article.getMessage();
 
-                printTextResponseLine(article.getMessageNum() + "\t" + article.getHeader(FreetalkNNTPArticle.Header.SUBJECT)
-                        + "\t" + article.getHeader(FreetalkNNTPArticle.Header.FROM)
-                        + "\t" + article.getHeader(FreetalkNNTPArticle.Header.DATE)
-                        + "\t" + article.getHeader(FreetalkNNTPArticle.Header.MESSAGE_ID)
-                        + "\t" + article.getHeader(FreetalkNNTPArticle.Header.REFERENCES)
-                        + "\t" + article.getByteCount()
-                        + "\t" + article.getBodyLineCount());
+                articles.add(article);
+                overviews.add(overview);
             }
-            endTextResponse();
         }
+
+        printStatusLine("224 Overview follows");
+        for (int i = 0; i < articles.size(); ++i) {
+            final FreetalkNNTPArticle article = articles.get(i);
+            final String overview = overviews.get(i);
+            printTextResponseLine(article.getMessageNum() + (overview != null ? overview : mOverviewCache.computeOverview(board, article)));
+        }
+        endTextResponse();
     }
 
     /**
@@ -603,8 +746,12 @@ public final class FreetalkNNTPHandler implements Runnable {
         printText("READER");
         printText("POST");
         printText("HDR");
+        printText("NEWNEWS");
         printText("OVER MSGID");
         printText("LIST ACTIVE NEWSGROUPS HEADERS OVERVIEW.FMT");
+        if (mDeflater == null && isCompressionSupported()) {
+            printText("COMPRESS DEFLATE");
+        }
         endTextResponse();
     }
     
@@ -612,14 +759,34 @@ public final class FreetalkNNTPHandler implements Runnable {
      * Handle the DATE command.
      */
     private void printDate() throws IOException {
-    	final Date date = CurrentTimeUTC.get();
-        synchronized (serverDateFormat) {
-            serverDateFormat.setTimeZone(utcTimeZone);
-            printTextResponseLine("111 " + serverDateFormat.format(date));
-        }
-        mOutput.flush();
+        printTextResponseLine("111 " + DateFormatter.formatNNTPDate(CurrentTimeUTC.get()));
     }
     
+    /**
+     * Handle the COMPRESS command, see RFC 8054. Everything which is sent after the 206 response is compressed with DEFLATE, in both
+     * directions.
+     */
+    private void startCompression(final String algorithm) throws IOException {
+        if (mDeflater != null) {
+            printStatusLine("502 Command unavailable");
+            return;
+        }
+
+        if (!algorithm.equalsIgnoreCase("DEFLATE") || !isCompressionSupported()) {
+            printStatusLine("503 Compression algorithm not supported");
+            return;
+        }
+
+        printStatusLine("206 Compression active");
+        flushOutput();
+
+        // RFC 8054 uses raw DEFLATE data without the zlib header
+        mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        mInflater = new Inflater(true);
+        mOutput = new BufferedOutputStream(newSyncFlushDeflaterOutputStream(mSocket.getOutputStream(), mDeflater), OUTPUT_BUFFER_SIZE);
+        mInput.setInput(new InflaterInputStream(mInput.getUnreadInput(), mInflater));
+    }
+
     /**
      * Handle a command from the client.  If the command requires a
      * text data section, this function returns true (and
@@ -666,6 +833,14 @@ public final class FreetalkNNTPHandler implements Runnable {
         else if (command.equalsIgnoreCase("CAPABILITIES")) {
             printCapabilities();
         }
+        else if (command.equalsIgnoreCase("COMPRESS")) {
+            if (tokens.length == 2) {
+                startCompression(tokens[1]);
+            }
+            else {
+                printStatusLine("501 Syntax error");
+            }
+        }
         else if (command.equalsIgnoreCase("DATE")) {
             printDate();
         }
@@ -737,20 +912,18 @@ public final class FreetalkNNTPHandler implements Runnable {
             }
         }
         else if (command.equalsIgnoreCase("NEWGROUPS")) {
-            boolean gmt = false;
-            if ((tokens.length == 4 && (gmt = tokens[3].equalsIgnoreCase("GMT"))) ||
-                    (tokens.length == 3))
-            {
-                String date = tokens[1] + " " + tokens[2];
-                if (date.length() == 15) {
-                    listNewGroupsSince(date, "yyyyMMdd HHmmss", gmt);
-                }
-                else if (date.length() == 13) {
-                    listNewGroupsSince(date, "yyMMdd HHmmss", gmt);
-                }
-                else {
-                    printStatusLine("501 Syntax error");
-                }
+            final Date date = parseDateArguments(tokens, 1);
+            if (date != null) {
+                listNewGroupsSince(date);
+            }
+            else {
+                printStatusLine("501 Syntax error");
+            }
+        }
+        else if (command.equalsIgnoreCase("NEWNEWS")) {
+            final Date date = tokens.length > 1 ? parseDateArguments(tokens, 2) : null;
+            if (date != null) {
+                listNewArticlesSince(tokens[1], date);
             }
             else {
                 printStatusLine("501 Syntax error");
@@ -785,6 +958,7 @@ public final class FreetalkNNTPHandler implements Runnable {
         }
         else if (command.equalsIgnoreCase("QUIT")) {
             printStatusLine("205 Have a nice day.");
+            flushOutput();
             mSocket.close();
         }
         else if (command.equalsIgnoreCase("STAT")) {
@@ -859,91 +1033,55 @@ public final class FreetalkNNTPHandler implements Runnable {
     }
 
 
-    /**
-     * Read an input line (terminated by the ASCII LF character) as a
-     * byte sequence.
-     */
-    private ByteBuffer readLineBytes(final InputStream is) throws IOException {
-    	// A minimal size > 0 is needed because is.available() might return 0.
-        ByteBuffer buf = ByteBuffer.allocate(Math.max(4096, Math.min(is.available(), 64*1024)));
-        int b;
-        
-        do {
-            b = is.read();
-            if (b >= 0) {
-                if (!buf.hasRemaining()) {
-                    // resize input buffer
-                    ByteBuffer newbuf = ByteBuffer.allocate(buf.capacity() * 2);
-                    buf.flip();
-                    newbuf.put(buf);
-                    buf = newbuf;
-                }
-                buf.put((byte) b);
-            }
-        } while (b >= 0 && b != '\n');
-
-        buf.flip();
-        return buf;
-    }
-
-    /**
-     * Read a complete text block (terminated by a '.' on a line by
-     * itself).
-     */
-    private ByteBuffer readTextDataBytes(final InputStream is) throws IOException {
-    	// A minimal size > 0 is needed because is.available() might return 0.
-        ByteBuffer buf = ByteBuffer.allocate(Math.max(4096, Math.min(is.available(), 64*1024)));
-        ByteBuffer line;
-
-        while (true) {
-            line = readLineBytes(is);
-
-            if (!line.hasRemaining())
-                return null;	// text block not completed --
-            // consider message aborted.
-
-            if (line.get(0) == '.') {
-                if ((line.remaining() == 2 && line.get(1) == '\n')
-                        || (line.remaining() == 3 && line.get(1) == '\r' && line.get(2) == '\n')) {
-                    buf.flip();
-                    return buf;
-                }
-                else {
-                    // Initial dot must always be skipped (even if the
-                    // second character isn't a dot)
-                    line.get();
-                }
-            }
-
-            // append line to the end of the buffer
-            if (line.remaining() > buf.remaining()) {
-                ByteBuffer newbuf = ByteBuffer.allocate((buf.position() + line.remaining()) * 2);
-                buf.flip();
-                newbuf.put(buf);
-                buf = newbuf;
-            }
-            buf.put(line);
-        }
-    }
-
-
     /**
      * Main command loop
      */
     public void run() {
         try {
-        	final InputStream is = mSocket.getInputStream();
-            mOutput = new BufferedWriter(new OutputStreamWriter(mSocket.getOutputStream(), "UTF-8"), 8192);
-            
-            Charset utf8 = Charset.forName("UTF-8");
+            mInput = new FreetalkNNTPInputReader(mSocket.getInputStream());
+            mOutput = new BufferedOutputStream(mSocket.getOutputStream(), OUTPUT_BUFFER_SIZE);
 
             printStatusLine("200 Welcome to Freetalk");
+            flushOutput();
             while (!mSocket.isClosed()) {
-                final String line = utf8.decode(readLineBytes(is)).toString();
+                final String line = mInput.readCommandLine();
+                if (line == null) { // The client has closed the connection
+                    mSocket.close();
+                    break;
+                }
+                
                 synchronized(this) {
 	                if (beginCommand(line)) {
-	                    finishCommand(line, readTextDataBytes(is));
+	                    flushOutput(); // The client waits for the 340 response before sending the article
+	                    
+	                    try {
+	                        final ByteBuffer text = mInput.readTextBlock(mMaxPostSize);
+	                        if (text == null) { // The client has closed the connection before the article was complete
+	                            mSocket.close();
+	                            break;
+	                        }
+	                        finishCommand(line, text);
+	                    } catch (FreetalkNNTPInputReader.TextBlockTooLargeException e) {
+	                        printStatusLine("441 Posting failed, the article is larger than " + mMaxPostSize + " bytes");
+	                    }
 	                }
+	                
+	                // If the client has sent further commands already, their responses are sent together with this one.
+	                if(!mSocket.isClosed() && !mInput.hasBufferedInput())
+	                	flushOutput();
+                }
+            }
+        }
+        catch (SocketTimeoutException e) {
+            Logger.normal(this, "Closing idle NNTP connection from " + mSocket.getInetAddress());
+            try {
+                printStatusLine("400 Idle timeout, closing connection");
+                flushOutput();
+            } catch (IOException e1) {
+            } finally {
+                try {
+                    mSocket.close();
+                } catch (IOException e1) {
                 }
             }
         }
@@ -954,5 +1092,12 @@ public final class FreetalkNNTPHandler implements Runnable {
             } catch (IOException e1) {
             }
         }
+        finally {
+            // Free the native memory of the compressor immediately, the handler might not be garbage collected for some time.
+            if (mDeflater != null) {
+                mDeflater.end();
+                mInflater.end();
+            }
+        }
     }
 }
@@ -0,0 +1,217 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk.ui.NNTP;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Reads the command lines and text blocks which an NNTP client sends.
+ *
+ * The input is read in blocks into a buffer which is kept for the whole connection, as are the buffers for the current line and text
+ * block, so reading a command does not allocate anything except the returned String. If the client sends several commands without
+ * waiting for the responses (pipelining), they are all read by a single read() from the socket, see {@link #hasBufferedInput()}.
+ */
+final class FreetalkNNTPInputReader {
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * The maximal length of a command line. RFC 3977 allows 512 bytes, longer lines are truncated.
+	 */
+	private static final int MAX_COMMAND_LENGTH = 4 * 1024;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private InputStream mInput;
+
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+
+	/** The position of the first byte in {@link #mBuffer} which was not consumed yet. */
+	private int mPosition = 0;
+
+	/** The number of valid bytes in {@link #mBuffer}. */
+	private int mLimit = 0;
+
+	/** The last line which was read by {@link #readLine(int)}, including its terminating LF. */
+	private byte[] mLine = new byte[256];
+
+	private int mLineLength = 0;
+
+	/** True if the last line which was read by {@link #readLine(int)} was longer than allowed and its end was discarded. */
+	private boolean mLineTruncated = false;
+
+	/** The last text block which was read by {@link #readTextBlock(int)}. */
+	private byte[] mText = new byte[BUFFER_SIZE];
+
+	/**
+	 * Thrown by {@link #readTextBlock(int)} if the text block is larger than allowed. The block was read completely nevertheless so the
+	 * next command can be read.
+	 */
+	public static final class TextBlockTooLargeException extends Exception {
+		private static final long serialVersionUID = 1L;
+	}
+
+
+	public FreetalkNNTPInputReader(final InputStream input) {
+		mInput = input;
+	}
+
+	/**
+	 * Get a stream which returns the bytes which were buffered but not consumed yet, followed by the remaining input. The buffer is
+	 * emptied, the returned stream must be passed to {@link #setInput(InputStream)}, possibly wrapped into a decompressing stream.
+	 */
+	public InputStream getUnreadInput() {
+		final InputStream result;
+
+		if (mPosition < mLimit)
+			result = new SequenceInputStream(new ByteArrayInputStream(mBuffer, mPosition, mLimit - mPosition), mInput);
+		else
+			result = mInput;
+
+		mPosition = 0;
+		mLimit = 0;
+		return result;
+	}
+
+	public void setInput(final InputStream input) {
+		mInput = input;
+	}
+
+	/**
+	 * @return True if the client has sent more data which was read from the socket already. The responses to the commands which
+	 *     were processed do not need to be sent before the next command is processed then.
+	 */
+	public boolean hasBufferedInput() {
+		return mPosition < mLimit;
+	}
+
+	/**
+	 * @return False if the end of the input was reached.
+	 */
+	private boolean fillBuffer() throws IOException {
+		final int read = mInput.read(mBuffer, 0, mBuffer.length);
+		if (read <= 0)
+			return false;
+
+		mPosition = 0;
+		mLimit = read;
+		return true;
+	}
+
+	/**
+	 * Read a line (terminated by the ASCII LF character) into {@link #mLine}.
+	 *
+	 * @param maxLength Bytes after the first maxLength bytes of the line are discarded.
+	 * @return False if the end of the input was reached before any byte was read.
+	 */
+	private boolean readLine(final int maxLength) throws IOException {
+		mLineLength = 0;
+		mLineTruncated = false;
+		boolean readAny = false;
+
+		while (true) {
+			if (mPosition == mLimit && !fillBuffer())
+				return readAny;
+
+			readAny = true;
+
+			// Search the end of the line in the buffer and copy everything up to it at once
+			int end = mPosition;
+			while (end < mLimit && mBuffer[end] != '\n')
+				++end;
+			final boolean foundEnd = end < mLimit;
+			if (foundEnd)
+				++end;
+
+			int count = end - mPosition;
+			if (mLineLength + count > maxLength) {
+				count = Math.max(0, maxLength - mLineLength);
+				mLineTruncated = true;
+			}
+
+			if (mLineLength + count > mLine.length) {
+				final byte[] newLine = new byte[Math.min(Math.max(mLine.length * 2, mLineLength + count), Math.max(maxLength, mLine.length))];
+				System.arraycopy(mLine, 0, newLine, 0, mLineLength);
+				mLine = newLine;
+			}
+
+			System.arraycopy(mBuffer, mPosition, mLine, mLineLength, count);
+			mLineLength += count;
+			mPosition = end;
+
+			if (foundEnd)
+				return true;
+		}
+	}
+
+	/**
+	 * Read a command line.
+	 *
+	 * @return The line including the line terminator, null if the client has closed the connection.
+	 */
+	public String readCommandLine() throws IOException {
+		if (!readLine(MAX_COMMAND_LENGTH))
+			return null;
+
+		return new String(mLine, 0, mLineLength, UTF8);
+	}
+
+	/**
+	 * Read a complete text block (terminated by a '.' on a line by itself) and undo the dot-stuffing. The returned buffer is only valid
+	 * until the next call to this function.
+	 *
+	 * @param maxLength The maximal number of bytes of the text block.
+	 * @return The text block, null if the client has closed the connection before the block was complete.
+	 * @throws TextBlockTooLargeException If the text block is longer than maxLength.
+	 */
+	public ByteBuffer readTextBlock(final int maxLength) throws IOException, TextBlockTooLargeException {
+		int length = 0;
+		boolean tooLarge = false;
+
+		while (true) {
+			// The terminating ".\r\n" must fit even if the block is full, longer lines are noticed by the length check below.
+			if (!readLine(tooLarge ? 3 : maxLength - length + 3))
+				return null;
+
+			int start = 0;
+
+			if (mLine[0] == '.') {
+				if (!mLineTruncated && ((mLineLength == 2 && mLine[1] == '\n') || (mLineLength == 3 && mLine[1] == '\r' && mLine[2] == '\n'))) {
+					if (tooLarge)
+						throw new TextBlockTooLargeException();
+
+					return ByteBuffer.wrap(mText, 0, length);
+				}
+
+				// Initial dot must always be skipped (even if the second character isn't a dot)
+				start = 1;
+			}
+
+			if (tooLarge)
+				continue;
+
+			final int count = mLineLength - start;
+			if (mLineTruncated || length + count > maxLength) {
+				// Read the rest of the block so the client gets the response when it has finished sending
+				tooLarge = true;
+				continue;
+			}
+
+			if (length + count > mText.length) {
+				final byte[] newText = new byte[Math.min(Math.max(mText.length * 2, length + count), maxLength)];
+				System.arraycopy(mText, 0, newText, 0, length);
+				mText = newText;
+			}
+
+			System.arraycopy(mLine, start, mText, length, count);
+			length += count;
+		}
+	}
+
+}
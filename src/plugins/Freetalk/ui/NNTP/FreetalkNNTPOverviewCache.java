@@ -0,0 +1,201 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk.ui.NNTP;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import plugins.Freetalk.Message;
+import plugins.Freetalk.MessageManager;
+import plugins.Freetalk.MessageManager.NewBoardMessageCallback;
+import plugins.Freetalk.SubscribedBoard;
+import plugins.Freetalk.SubscribedBoard.BoardMessageLink;
+import plugins.Freetalk.exceptions.NoSuchMessageException;
+
+/**
+ * Cache of the overview lines which are sent for the OVER and XOVER commands.
+ *
+ * Computing an overview line is expensive: The date has to be formatted and the article has to be converted to NNTP format to count its
+ * bytes and lines. Newsreaders request the overview of thousands of articles whenever a group is entered, so the overview of a message is
+ * computed once when it is requested the first time and then kept in memory.
+ *
+ * Overview lines are only computed by the client threads, never while the board, the MessageManager or the transaction is locked: When a
+ * message is linked into a {@link SubscribedBoard}, the callback only remembers its ID. The overviews of the new messages of a board are
+ * computed in one go by the next OVER command for that board, see {@link #computeNewOverviews(SubscribedBoard, MessageManager)}.
+ *
+ * The lines are cached per board name. The cache of a board holds as many lines as the board has messages, so a newsreader which requests
+ * the overview of the whole group gets all of them from the cache the next time. The cached line does not contain the article number
+ * because a message has a different number in each board, it starts with the tab which follows the number.
+ */
+public final class FreetalkNNTPOverviewCache implements NewBoardMessageCallback {
+
+	/**
+	 * The minimal number of cached overview lines of a board. An overview line is usually about 300 characters long.
+	 */
+	private static final int MIN_BOARD_SIZE = 1024;
+
+	/**
+	 * The maximal number of IDs which are remembered for a board by {@link #onNewBoardMessage(SubscribedBoard, BoardMessageLink)}.
+	 */
+	private static final int MAX_NEW_MESSAGE_IDS = 32 * 1024;
+
+	/**
+	 * The overview lines of a board by message ID, in access order so the least recently used line is removed if the cache is full.
+	 */
+	private static final class BoardOverviews extends LinkedHashMap<String, String> {
+		private static final long serialVersionUID = 1L;
+
+		/** The maximal number of lines, see {@link FreetalkNNTPOverviewCache#updateCapacity(SubscribedBoard)}. */
+		private int mCapacity = MIN_BOARD_SIZE;
+
+		BoardOverviews() {
+			super(1024, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, String> eldest) {
+			return size() > mCapacity;
+		}
+	}
+
+	/**
+	 * The cached overview lines by board name. Synchronized on this HashMap, as are the {@link BoardOverviews} in it.
+	 */
+	private final HashMap<String, BoardOverviews> mOverviews = new HashMap<String, BoardOverviews>();
+
+	/**
+	 * The IDs of the messages which were linked since the last OVER command for their board, by board name. Each set is bounded to
+	 * {@link #MAX_NEW_MESSAGE_IDS}, the oldest IDs are dropped: Their overview is computed when it is requested.
+	 */
+	private final HashMap<String, LinkedHashSet<String>> mNewMessageIDs = new HashMap<String, LinkedHashSet<String>>();
+
+
+	/**
+	 * You have to synchronize on {@link #mOverviews} when calling this function.
+	 */
+	private BoardOverviews getBoardOverviews(final SubscribedBoard board) {
+		BoardOverviews overviews = mOverviews.get(board.getName());
+		if(overviews == null) {
+			overviews = new BoardOverviews();
+			mOverviews.put(board.getName(), overviews);
+		}
+		return overviews;
+	}
+
+	/**
+	 * Grows the cache of the given board to the number of messages in it. The cache does not shrink: The same board name might be
+	 * subscribed by several own identities.
+	 */
+	private void updateCapacity(final SubscribedBoard board) {
+		final int messageCount = board.getProjection().getMessageCount();
+
+		synchronized(mOverviews) {
+			final BoardOverviews overviews = getBoardOverviews(board);
+			overviews.mCapacity = Math.max(overviews.mCapacity, messageCount);
+		}
+	}
+
+	/**
+	 * Get the cached overview line of the given message in the given board without the article number. Does not compute the line, so it
+	 * can be called while the board is locked.
+	 * 
+	 * @return The overview line, null if it is not cached.
+	 */
+	public String getCachedOverview(final SubscribedBoard board, final String messageID) {
+		synchronized(mOverviews) {
+			final BoardOverviews overviews = mOverviews.get(board.getName());
+			return overviews != null ? overviews.get(messageID) : null;
+		}
+	}
+
+	/**
+	 * Computes the overview line of the given article without the article number and stores it in the cache of the given board. The
+	 * message of the article must have been loaded already: This should not be called while the board, the MessageManager or the
+	 * transaction is locked, so the message might be deleted meanwhile.
+	 */
+	public String computeOverview(final SubscribedBoard board, final FreetalkNNTPArticle article) {
+		final String overview = computeOverview(article);
+
+		synchronized(mOverviews) {
+			getBoardOverviews(board).put(article.getMessageID(), overview);
+		}
+
+		return overview;
+	}
+
+	private static String computeOverview(final FreetalkNNTPArticle article) {
+		return "\t" + article.getHeader(FreetalkNNTPArticle.Header.SUBJECT)
+			+ "\t" + article.getHeader(FreetalkNNTPArticle.Header.FROM)
+			+ "\t" + article.getHeader(FreetalkNNTPArticle.Header.DATE)
+			+ "\t" + article.getHeader(FreetalkNNTPArticle.Header.MESSAGE_ID)
+			+ "\t" + article.getHeader(FreetalkNNTPArticle.Header.REFERENCES)
+			+ "\t" + article.getByteCount()
+			+ "\t" + article.getBodyLineCount();
+	}
+
+	/**
+	 * Computes the overview lines of the messages which were linked into the given board since the last call for it. Must not be called
+	 * while the board, the MessageManager or the transaction is locked.
+	 */
+	public void computeNewOverviews(final SubscribedBoard board, final MessageManager messageManager) {
+		updateCapacity(board);
+
+		final LinkedHashSet<String> messageIDs;
+
+		synchronized(mNewMessageIDs) {
+			messageIDs = mNewMessageIDs.remove(board.getName());
+		}
+
+		if(messageIDs == null)
+			return;
+
+		final ArrayList<String> uncachedIDs = new ArrayList<String>(messageIDs.size());
+
+		synchronized(mOverviews) {
+			final BoardOverviews overviews = getBoardOverviews(board);
+			for(String messageID : messageIDs) {
+				if(!overviews.containsKey(messageID)) // The overview might have been requested already
+					uncachedIDs.add(messageID);
+			}
+		}
+
+		for(String messageID : uncachedIDs) {
+			final Message message;
+
+			try {
+				message = messageManager.get(messageID);
+			} catch(NoSuchMessageException e) {
+				continue; // The message was deleted meanwhile.
+			}
+
+			computeOverview(board, new FreetalkNNTPArticle(message));
+		}
+	}
+
+	/**
+	 * Only remembers the ID of the message, the overview is computed by the next OVER command for the board. The ID is skipped if the
+	 * message was deleted meanwhile.
+	 */
+	public void onNewBoardMessage(final SubscribedBoard board, final BoardMessageLink link) {
+		synchronized(mNewMessageIDs) {
+			LinkedHashSet<String> messageIDs = mNewMessageIDs.get(board.getName());
+
+			if(messageIDs == null) {
+				messageIDs = new LinkedHashSet<String>();
+				mNewMessageIDs.put(board.getName(), messageIDs);
+			} else if(messageIDs.size() >= MAX_NEW_MESSAGE_IDS) {
+				final Iterator<String> eldest = messageIDs.iterator();
+				eldest.next();
+				eldest.remove();
+			}
+
+			messageIDs.add(link.getMessageID());
+		}
+	}
+
+}
@@ -4,6 +4,7 @@
 package plugins.Freetalk.ui.NNTP;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
@@ -20,6 +21,10 @@ import freenet.support.Logger;
  * connections from clients.  Each handler runs in its own thread as
  * well.  Use terminate() to shut everything down.
  *
+ * The number of handler threads is limited by refusing connections if
+ * the configured maximal connection count is reached and by
+ * disconnecting clients which have been idle for too long.
+ *
  * @author Benjamin Moody
  * @author xor (xor@freenetproject.org)
  */
@@ -33,6 +38,12 @@ public final class FreetalkNNTPServer implements Runnable {
 	private final int mPort;
 	/** Comma-separated list of hosts to accept connections from. */
 	private final String mAllowedHosts;
+	/** Maximal number of clients which are connected at once. */
+	private final int mMaxConnections;
+	/** Milliseconds after which a client which does not send a command is disconnected. */
+	private final int mIdleTimeout;
+	/** Maximal size of an article which is sent by a client, in bytes. */
+	private final int mMaxPostSize;
 
 	private NetworkInterface mInterface;
 	
@@ -41,6 +52,8 @@ public final class FreetalkNNTPServer implements Runnable {
 
 	private final ArrayList<FreetalkNNTPHandler> clientHandlers;
 	
+	private final FreetalkNNTPOverviewCache mOverviewCache;
+	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
 	private static transient volatile boolean logDEBUG = false;
@@ -51,14 +64,19 @@ public final class FreetalkNNTPServer implements Runnable {
 	}
 	
 
-	public FreetalkNNTPServer(Freetalk ft, int port, String bindTo, String allowedHosts) {
+	public FreetalkNNTPServer(Freetalk ft, int port, String bindTo, String allowedHosts, int maxConnections, int idleTimeout, int maxPostSize) {
 		mFreetalk = ft;
 		mBindTo = bindTo;
 		mPort = port;
 		mAllowedHosts = allowedHosts;
+		mMaxConnections = maxConnections;
+		mIdleTimeout = idleTimeout;
+		mMaxPostSize = maxPostSize;
 		mThread = null;
 		mIsRunning = false;
 		clientHandlers = new ArrayList<FreetalkNNTPHandler>();
+		mOverviewCache = new FreetalkNNTPOverviewCache();
+		mFreetalk.getMessageManager().registerNewBoardMessageCallback(mOverviewCache);
 	}
 	
 	public void start() {
@@ -143,7 +161,18 @@ public final class FreetalkNNTPServer implements Runnable {
 	}
 	
 	private void acceptConnection(Socket clientSocket) throws SocketException {
-		final FreetalkNNTPHandler handler = new FreetalkNNTPHandler(mFreetalk, clientSocket);
+		synchronized(clientHandlers) {
+			if(clientHandlers.size() >= mMaxConnections) {
+				garbageCollectDisconnectedHandlers();
+				
+				if(clientHandlers.size() >= mMaxConnections) {
+					refuseConnection(clientSocket);
+					return;
+				}
+			}
+		}
+		
+		final FreetalkNNTPHandler handler = new FreetalkNNTPHandler(mFreetalk, clientSocket, mIdleTimeout, mMaxPostSize, mOverviewCache);
 
 		synchronized(clientHandlers) {
 			clientHandlers.add(handler);
@@ -153,6 +182,27 @@ public final class FreetalkNNTPServer implements Runnable {
 		if(logDEBUG) Logger.debug(this, "Accepted an NNTP connection from " + clientSocket.getInetAddress());
 	}
 	
+	/**
+	 * Tells the client that the server is busy and closes the connection. Does not use a thread of its own so a flood of connections
+	 * cannot create more threads than the maximal connection count.
+	 */
+	private void refuseConnection(Socket clientSocket) {
+		Logger.normal(this, "Refusing NNTP connection from " + clientSocket.getInetAddress() + ": " + mMaxConnections + " clients are connected.");
+		
+		try {
+			clientSocket.setSoTimeout(1000);
+			final OutputStream output = clientSocket.getOutputStream();
+			output.write("400 Too many connections, try again later\r\n".getBytes("US-ASCII"));
+			output.flush();
+		} catch(IOException e) {
+			// The client might have disconnected already, we are closing the connection anyway.
+		} finally {
+			try {
+				clientSocket.close();
+			} catch(IOException e) { }
+		}
+	}
+	
 	private void garbageCollectDisconnectedHandlers() {
 		synchronized(clientHandlers) {
 			for (final Iterator<FreetalkNNTPHandler> i = clientHandlers.iterator(); i.hasNext(); ) {
@@ -3,9 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk.ui.web;
 
-import java.text.DateFormat;
-
 import plugins.Freetalk.Board;
+import plugins.Freetalk.BoardProjection;
+import plugins.Freetalk.BoardProjection.ThreadSummary;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.Identity;
 import plugins.Freetalk.OwnIdentity;
@@ -96,112 +97,127 @@ public final class BoardPage extends WebPageImpl {
 			row.addChild("th", l10n().getString("BoardPage.ThreadTableHeader.Replies"));
 			row.addChild("th", l10n().getString("BoardPage.ThreadTableHeader.Unread"));
 		
-		DateFormat dateFormat = DateFormat.getInstance();
-		
 		HTMLNode table = threadsTable.addChild("tbody");
 		
-		final WoTIdentityManager identityManager = mFreetalk.getIdentityManager();
-		
-		// TODO: We don't want to lock the identity manager here to make the displaying of the board FAST - it shouldn't wait until the lock
-		// is available: Introduce a non-locking getIdentity() in the identity manager and use it - the locking one will cause deadlocks
-		// if we do not lock the identity manager before the board.
-		synchronized(identityManager) {
-		synchronized(mBoard) {
-		    boolean firstUnread = true;
-		    
-			for(BoardThreadLink threadReference : mBoard.getThreads()) {
-				// TODO: The author in the threadReference is guessed from the ID if the thread was not downloaded...
-				// we should display a warning that the fact "the original thread was written by X" might not be true because 
-				// thread-IDs can be spoofed - dunno how to do that in the table, maybe with colors? 
-				
-				String authorText;
-				String authorScore;
-				
-				// Author related stuff
-				{
-					Identity author = null;
-					
-					// TODO: Use a colored "unknown" if the author/score is unknown
-					// TODO: Use a special color if author == yourself
-					authorText = "?"; // TODO: l10n 
-					authorScore = "?"; 
-					
-					try {
-						author = identityManager.getIdentity(threadReference.getAuthorID());
-						authorText = author.getShortestUniqueName();
-						
-						// TODO: Get rid of the cast somehow, we should maybe call this WoTBoardPage :|
-						final int score = ((WoTOwnIdentity)mOwnIdentity).getScoreFor((WoTIdentity)author);
-						if (score == Integer.MAX_VALUE)
-							authorScore = l10n().getString("Common.WebOfTrust.Score.Infinite");
-						else
-							authorScore = Integer.toString(score);
-					} catch(NoSuchIdentityException e) { 
-					} catch(NotInTrustTreeException e) {
-						authorScore = l10n().getString("Common.WebOfTrust.ScoreNull");
-					} catch(Exception e) {
-						Logger.error(this, "getScoreFor() failed", e);
-					}
+		if(mMarkAllThreadsAsRead || mMarkAllThreadsAsUnread) {
+			synchronized(mBoard) {
+				for(BoardThreadLink threadReference : mBoard.getThreads()) {
+					if(mMarkAllThreadsAsRead)
+						threadReference.markThreadAndRepliesAsReadAndCommit();
+					else
+						threadReference.markThreadAndRepliesAsUnreadAndCommit();
 				}
+			}
+		}
+		
+		// The rows are built from the projection of the board and from the caches of the identity manager so neither the board nor the
+		// identity manager is locked while the page is built: Displaying a busy board must not block the linking of new messages.
+		final BoardProjection projection = mBoard.getProjection();
+		boolean firstUnread = true;
+		
+		for(ThreadSummary thread : projection.getThreads()) {
+			// TODO: The author in the thread summary is guessed from the ID if the thread was not downloaded...
+			// we should display a warning that the fact "the original thread was written by X" might not be true because 
+			// thread-IDs can be spoofed - dunno how to do that in the table, maybe with colors? 
+			
+			final boolean threadWasRead = thread.wasThreadRead();
+			
+			row = table.addChild("tr", "class", "thread-row");
+			
+			if(firstUnread && !threadWasRead) {
+				row.addAttribute("id", "FirstUnreadThread");
+				firstUnread = false;
+			}
+			
+			/* Unread count */
+			int unreadCount = 0;
+			if(!threadWasRead) {
+				if(!thread.wasRead())
+					unreadCount++;
 				
-				
-                // mark thread read if requested ...
-                if (mMarkAllThreadsAsRead) {
-                    threadReference.markThreadAndRepliesAsReadAndCommit();
-                } else if(mMarkAllThreadsAsUnread) {
-                	threadReference.markThreadAndRepliesAsUnreadAndCommit();
-                }
-
-                final boolean threadWasRead = threadReference.wasThreadRead();
-                final String threadTitle = threadReference.getMessageTitle();
-                
-				row = table.addChild("tr", "class", "thread-row");
-				
-				if(firstUnread && !threadReference.wasThreadRead()) {
-					row.addAttribute("id", "FirstUnreadThread");
-					firstUnread = false;
-				}
-				
-				/* Unread count */
-				int unreadCount = 0;
-				if(!threadWasRead) {
-					if(!threadReference.wasRead()) {
-						unreadCount++;
-					}
-					
-					unreadCount += mBoard.threadUnreadReplyCount(threadReference.getThreadID());
-				}
-
-				/* Title */
-				HTMLNode titleCell = row.addChild("td", "class", threadWasRead ? "title-read" : "title-unread");
-				
-				if(unreadCount > 0) {
-					titleCell.addChild(new HTMLNode("a", new String[]{"href", "title"}, new String[]{ThreadPage.getFirstUnreadURI(mBoard, threadReference), l10n().getString("BoardPage.ThreadTableHeader.GoToFirstUnreadMessage")}, "↪"));
-					titleCell.addChild("#", " ");
-				}
+				unreadCount += thread.getUnreadReplyCount();
+			}
+			
+			final String threadURI = ThreadPage.getURI(mBoard.getName(), thread.getThreadID());
+			final String firstUnreadURI = ThreadPage.getFirstUnreadURI(mBoard.getName(), thread.getThreadID());
 
-				titleCell.addChild(new HTMLNode("a", "href", ThreadPage.getURI(mBoard, threadReference), threadTitle));
+			/* Title */
+			HTMLNode titleCell = row.addChild("td", "class", threadWasRead ? "title-read" : "title-unread");
+			
+			if(unreadCount > 0) {
+				titleCell.addChild(new HTMLNode("a", new String[]{"href", "title"}, new String[]{firstUnreadURI, l10n().getString("BoardPage.ThreadTableHeader.GoToFirstUnreadMessage")}, "↪"));
+				titleCell.addChild("#", " ");
+			}
 
-				/* Author */
-				row.addChild("td", "class", "author-name", authorText);
+			titleCell.addChild(new HTMLNode("a", "href", threadURI, thread.getTitle()));
 
-				/* Trust */
-				row.addChild("td", "class", "author-score", authorScore);
+			/* Author and trust */
+			addAuthorCells(row, thread.getAuthorID());
 
-				/* Date of last reply */
-				row.addChild("td", "class", "date", dateFormat.format(threadReference.getLastReplyDate()));
+			/* Date of last reply */
+			row.addChild("td", "class", "date", DateFormatter.formatLocalShortDateTime(thread.getLastReplyDate()));
 
-				/* Reply count */
-				row.addChild("td", "class", "reply-count",  Integer.toString(mBoard.threadReplyCount(threadReference.getThreadID())));
+			/* Reply count */
+			row.addChild("td", "class", "reply-count",  Integer.toString(thread.getReplyCount()));
 
-				if(unreadCount == 0) {
-					row.addChild("td", "class", "unread-count-0", Integer.toString(unreadCount));
-				} else {
-					row.addChild("td", "class", "unread-count").addChild("a", "href", ThreadPage.getFirstUnreadURI(mBoard, threadReference), Integer.toString(unreadCount));
-				}
+			if(unreadCount == 0) {
+				row.addChild("td", "class", "unread-count-0", Integer.toString(unreadCount));
+			} else {
+				row.addChild("td", "class", "unread-count").addChild("a", "href", firstUnreadURI, Integer.toString(unreadCount));
 			}
 		}
+	}
+	
+	/**
+	 * Adds the author name and trust cells of a thread row.
+	 * 
+	 * The name and score are taken from the caches of the identity manager. Only if they are not cached, the identity is obtained from
+	 * the database and its score is queried from WoT, which fills the caches for the next time the board is displayed.
+	 */
+	private void addAuthorCells(final HTMLNode row, final String authorID) {
+		final WoTIdentityManager identityManager = mFreetalk.getIdentityManager();
+		
+		// TODO: Use a colored "unknown" if the author/score is unknown
+		// TODO: Use a special color if author == yourself
+		String authorText = identityManager.getCachedShortestUniqueName(authorID);
+		String authorScore = null;
+		
+		try {
+			// TODO: Get rid of the cast somehow, we should maybe call this WoTBoardPage :|
+			final Integer score = identityManager.getCachedScore((WoTOwnIdentity)mOwnIdentity, authorID);
+			if(score != null)
+				authorScore = formatScore(score);
+		} catch(NotInTrustTreeException e) {
+			authorScore = l10n().getString("Common.WebOfTrust.ScoreNull");
+		}
+		
+		if(authorText == null || authorScore == null) {
+			try {
+				final Identity author = identityManager.getIdentity(authorID);
+				authorText = author.getShortestUniqueName();
+				
+				if(authorScore == null)
+					authorScore = formatScore(((WoTOwnIdentity)mOwnIdentity).getScoreFor((WoTIdentity)author));
+			} catch(NoSuchIdentityException e) {
+			} catch(NotInTrustTreeException e) {
+				authorScore = l10n().getString("Common.WebOfTrust.ScoreNull");
+			} catch(Exception e) {
+				Logger.error(this, "getScoreFor() failed", e);
+			}
 		}
+		
+		/* Author */
+		row.addChild("td", "class", "author-name", authorText != null ? authorText : "?"); // TODO: l10n
+
+		/* Trust */
+		row.addChild("td", "class", "author-score", authorScore != null ? authorScore : "?");
+	}
+	
+	private String formatScore(final int score) {
+		if(score == Integer.MAX_VALUE)
+			return l10n().getString("Common.WebOfTrust.Score.Infinite");
+		else
+			return Integer.toString(score);
 	}
 
 	private void makeBreadcrumbs() {
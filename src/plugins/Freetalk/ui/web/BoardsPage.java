@@ -3,12 +3,12 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk.ui.web;
 
-import java.text.DateFormat;
-
+import plugins.Freetalk.BoardProjection;
+import plugins.Freetalk.BoardProjection.MessageSummary;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.OwnIdentity;
 import plugins.Freetalk.SubscribedBoard;
-import plugins.Freetalk.SubscribedBoard.BoardMessageLink;
 import plugins.Freetalk.exceptions.NoSuchMessageException;
 import freenet.clients.http.RedirectException;
 import freenet.l10n.BaseL10n;
@@ -51,15 +51,14 @@ public final class BoardsPage extends WebPageImpl {
         row.addChild("th", l10n().getString("BoardsPage.BoardTableHeader.UnreadMessages"));
 		row.addChild("th", l10n().getString("BoardsPage.BoardTableHeader.LatestMessage"));
 		
-		final DateFormat dateFormat = DateFormat.getDateTimeInstance();
-		
 		int boardCount = 0;
 		
 		synchronized(mFreetalk.getMessageManager()) {
 			for(final SubscribedBoard board : mFreetalk.getMessageManager().subscribedBoardIteratorSortedByName(mOwnIdentity)) { 
 				++boardCount;
 				
-				final int unreadMessageCount = board.getUnreadMessageCount();
+				final BoardProjection projection = board.getProjection();
+				final int unreadMessageCount = projection.getUnreadMessageCount();
 				
 				row = boardsTable.addChild("tr");
 				
@@ -75,16 +74,16 @@ public final class BoardsPage extends WebPageImpl {
 				// row.addChild("td", new String[] { "align" }, new String[] { "center" },  board.getDescription());
 
 				/* Message count */
-				row.addChild("td", "class", "message-count-cell", Integer.toString(board.messageCount()));
+				row.addChild("td", "class", "message-count-cell", Integer.toString(projection.getMessageCount()));
 				
 
 				// Find latest message date
-				BoardMessageLink latestMessage;
+				MessageSummary latestMessage;
 				String latestMessageDateString;
 				
 				try {
-					latestMessage = board.getLatestMessage();
-					latestMessageDateString = dateFormat.format(latestMessage.getMessageDate());
+					latestMessage = projection.getLatestMessage();
+					latestMessageDateString = DateFormatter.formatLocalDateTime(latestMessage.getDate());
 				} catch (NoSuchMessageException e) {
 					latestMessage = null;
 			        latestMessageDateString = "-";
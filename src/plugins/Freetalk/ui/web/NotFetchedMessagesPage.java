@@ -1,8 +1,7 @@
 package plugins.Freetalk.ui.web;
 
-import java.text.DateFormat;
-
 import plugins.Freetalk.Board;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.Identity;
 import plugins.Freetalk.MessageList;
@@ -65,8 +64,6 @@ public class NotFetchedMessagesPage extends WebPageImpl {
 			row.addChild("th", l10n().getString("NotFetchedMessagesPage.MessageTableHeader.FailedFetches"));
 			row.addChild("th", l10n().getString("NotFetchedMessagesPage.MessageTableHeader.LatestFailureReason"));
 		
-		DateFormat dateFormat = DateFormat.getInstance();
-		
 		HTMLNode table = messagesTable.addChild("tbody");
 		
 		final WoTMessageManager messageManager = mFreetalk.getMessageManager();
@@ -127,7 +124,7 @@ public class NotFetchedMessagesPage extends WebPageImpl {
 				row.addChild("td", "class", "author-score", authorScore);
 
 				/* Date */
-				row.addChild("td", "class", "date", dateFormat.format(ref.getCreationDate()));
+				row.addChild("td", "class", "date", DateFormatter.formatLocalShortDateTime(ref.getCreationDate()));
 				
 				/* Fetched fail count */
 				row.addChild("td", "class", "failed-fetches", Integer.toString(failedFetches));
@@ -3,9 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.Freetalk.ui.web;
 
-import java.text.DateFormat;
-
 import plugins.Freetalk.Board;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.OwnIdentity;
 import plugins.Freetalk.WoT.WoTMessageManager;
@@ -34,7 +33,31 @@ public final class OutboxPage extends WebPageImpl {
 	@Override
 	public void make() throws RedirectException {
 		maybeDeleteMessages();
+		maybePublishNow();
 		makeOutbox();
+		makePublishNowBox();
+	}
+	
+	private void maybePublishNow() {
+		if(!mRequest.isPartSet("PublishNow"))
+			return;
+		
+		mFreetalk.getMessageListInserter().insertMessageListsNow(mOwnIdentity);
+		
+		final HTMLNode publishedBox = addContentBox(l10n().getString("OutboxPage.PublishedNow.Header"));
+		publishedBox.addChild("#", l10n().getString("OutboxPage.PublishedNow.Text"));
+	}
+	
+	/**
+	 * Message lists wait for further messages before they are inserted, see {@link plugins.Freetalk.WoT.WoTMessageListInserter}.
+	 * This box allows the user to publish the messages of the current identity without waiting.
+	 */
+	private void makePublishNowBox() {
+		final HTMLNode box = addContentBox(l10n().getString("OutboxPage.PublishNow.Header"));
+		box.addChild("p", l10n().getString("OutboxPage.PublishNow.Text"));
+		
+		final HTMLNode form = addFormChild(box, getURI(), "PublishNow");
+		form.addChild("input", new String[] { "type", "name", "value" }, new String[] {"submit", "PublishNow", l10n().getString("OutboxPage.PublishNow.Button") });
 	}
 	
 	private void maybeDeleteMessages() throws RedirectException {
@@ -71,8 +94,6 @@ public final class OutboxPage extends WebPageImpl {
 			row.addChild("th", l10n().getString("OutboxPage.Outbox.Table.Delete"));
 
 		final HTMLNode table = threadsTable.addChild("tbody");
-		
-		final DateFormat dateFormat = DateFormat.getInstance();
 
 		final WoTMessageManager messageManager = mFreetalk.getMessageManager();
 		
@@ -97,7 +118,7 @@ public final class OutboxPage extends WebPageImpl {
 				row.addChild("td", "class", "title", message.getTitle());
 				
 				// Date
-				row.addChild("td", "class", "date", dateFormat.format(message.getDate()));
+				row.addChild("td", "class", "date", DateFormatter.formatLocalShortDateTime(message.getDate()));
 
 				// Delete button
 				final HTMLNode form = addFormChild(row.addChild("td", "class", "delete"), getURI(), "DeleteMessage");
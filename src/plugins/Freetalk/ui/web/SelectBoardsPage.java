@@ -1,8 +1,7 @@
 package plugins.Freetalk.ui.web;
 
-import java.text.DateFormat;
-
 import plugins.Freetalk.Board;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.MessageManager;
 import plugins.Freetalk.OwnIdentity;
@@ -111,8 +110,6 @@ public class SelectBoardsPage extends WebPageImpl {
 		row.addChild("th", l10n().getString("SelectBoardsPage.BoardTableHeader.Subscribe"));
 		row.addChild("th", l10n().getString("SelectBoardsPage.BoardTableHeader.Unsubscribe"));
 		
-		DateFormat dateFormat = DateFormat.getInstance();
-		
 		MessageManager messageManager = mFreetalk.getMessageManager(); 
 		
 		final boolean languageFiltered = mRequest.isPartSet("BoardLanguage");		
@@ -141,7 +138,7 @@ public class SelectBoardsPage extends WebPageImpl {
 				row.addChild("td", "class", "description-cell",  board.getDescription(mOwnIdentity));
 
 				// First seen
-				row.addChild("td", "class", "first-seen-cell", dateFormat.format(board.getFirstSeenDate()));
+				row.addChild("td", "class", "first-seen-cell", DateFormatter.formatLocalShortDateTime(board.getFirstSeenDate()));
 				
 				// Latest message
 				HTMLNode latestMessageCell = row.addChild("td", "class", "latest-message-cell");
@@ -160,12 +157,12 @@ public class SelectBoardsPage extends WebPageImpl {
 					nameCell.addChild(new HTMLNode("a", "href", BoardPage.getURI(board), board.getName()));
 					
 					try {
-						latestMessageCell.addChild("#", dateFormat.format(subscribedBoard.getLatestMessage().getMessageDate()));
+						latestMessageCell.addChild("#", DateFormatter.formatLocalShortDateTime(subscribedBoard.getProjection().getLatestMessage().getDate()));
 					} catch(NoSuchMessageException e) {
 						latestMessageCell.addChild("#", "-");
 					}
 					
-					messageCountCell.addChild("#", Integer.toString(subscribedBoard.messageCount()));
+					messageCountCell.addChild("#", Integer.toString(subscribedBoard.getProjection().getMessageCount()));
 					
 					HTMLNode unsubscribeForm = addFormChild(unsubscribeCell, Freetalk.PLUGIN_URI + "/SelectBoards" + "#" + board.getName(), "Unsubscribe");
 					unsubscribeForm.addChild("input", new String[] {"type", "name", "value"}, new String[] { "hidden", "OwnIdentityID", mOwnIdentity.getID()});
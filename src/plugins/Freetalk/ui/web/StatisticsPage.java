@@ -101,7 +101,7 @@ public final class StatisticsPage extends WebPageImpl {
 		long messageCount = 0;
 		
 		for(SubscribedBoard board : mFreetalk.getMessageManager().subscribedBoardIterator()) {
-			messageCount += board.messageCount();
+			messageCount += board.getProjection().getMessageCount();
 		}
 		
 		return messageCount;
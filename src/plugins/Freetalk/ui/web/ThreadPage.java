@@ -6,7 +6,7 @@ package plugins.Freetalk.ui.web;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.text.DateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.NoSuchElementException;
@@ -14,7 +14,10 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import plugins.Freetalk.Board;
+import plugins.Freetalk.BoardProjection.MessageSummary;
+import plugins.Freetalk.BoardProjection.ThreadSummary;
 import plugins.Freetalk.Configuration;
+import plugins.Freetalk.DateFormatter;
 import plugins.Freetalk.Freetalk;
 import plugins.Freetalk.Identity;
 import plugins.Freetalk.Message;
@@ -53,8 +56,31 @@ public final class ThreadPage extends WebPageImpl {
 	private final boolean mMarktThreadAsUnread;
 	
 	private boolean mFirstUnread = true;
-
-	private static final DateFormat mLocalDateFormat = DateFormat.getDateTimeInstance();
+	
+	/**
+	 * The number of messages which are shown per page if the request does not specify it. The thread counts as a message.
+	 */
+	public static final int DEFAULT_PAGE_SIZE = 25;
+	
+	public static final int MAX_PAGE_SIZE = 500;
+	
+	/**
+	 * The position of the first shown message in the thread, -1 if the request did not specify it. The thread has position 0, its
+	 * replies follow in the order of their date.
+	 */
+	private final int mOffset;
+	
+	private final int mPageSize;
+	
+	/**
+	 * True if the page which contains the first unread message shall be shown.
+	 */
+	private final boolean mShowFirstUnread;
+	
+	/**
+	 * The ID of a message whose page shall be shown, null if the request did not specify it.
+	 */
+	private final String mShowMessageID;
 
 	public ThreadPage(WebInterface myWebInterface, OwnIdentity viewer, HTTPRequest request, BaseL10n _baseL10n)
 	throws NoSuchMessageException, NoSuchBoardException, NoSuchElementException {
@@ -69,6 +95,11 @@ public final class ThreadPage extends WebPageImpl {
 			threadID = request.getPartAsStringFailsafe("ThreadID", 256); // TODO: Use a constant for max thread ID length
 
 		mMarktThreadAsUnread = mRequest.isPartSet("MarkThreadAsUnread");
+		
+		mOffset = Math.max(-1, request.getIntParam("Offset", -1));
+		mPageSize = Math.max(1, Math.min(MAX_PAGE_SIZE, request.getIntParam("PageSize", DEFAULT_PAGE_SIZE)));
+		mShowFirstUnread = request.isParameterSet("FirstUnread");
+		mShowMessageID = request.isParameterSet("MessageID") ? request.getParam("MessageID") : null;
 
 		mBoard = mFreetalk.getMessageManager().getSubscription(mOwnIdentity, boardName);
 		mThreadID = threadID;
@@ -76,61 +107,77 @@ public final class ThreadPage extends WebPageImpl {
 
 	public final void make() {
 		try {
-			synchronized (mLocalDateFormat) {
-
-			// TODO: Optimization: We do NOT want to lock the identity manager here. We have to do it to prevent deadlocks because there is
-			// no non-locking getIdentity() which could be used in addThreadNotDownloadedWarning/addReplyNotDownloadedWarning
-			synchronized(mFreetalk.getIdentityManager()) {
-        	
-        	// Normally, we would have to lock the MessageManager because we call storeAndCommit() on BoardMessageLink objects:
-        	// The board might be deleted between getSubscription() and the synchronized(mBoard) - the storeAndCommit() would result in orphan objects.
-        	// BUT BoardMessageLink.storeAndCommit() does a db.isStored() check and throws if the BoardMessageLink is not stored anymore.
-        	
-        	synchronized(mBoard) {
-            	mThread = mBoard.getThreadLink(mThreadID);
-            	
-            	makeBreadcrumbs();
-            	
-            	// Mark as unread first, then display
-            	if(mMarktThreadAsUnread)
-        			mThread.markThreadAndRepliesAsUnreadAndCommit();
-           
-            	try {
-            		Message threadMessage = mThread.getMessage();
-            		
-            		if(threadMessage.isThread() == false)
-            			addThreadIsNoThreadWarning(threadMessage);
-            		else if(mBoard.contains(threadMessage) == false) // Do "else", one link to the original thread is enough.
-            			addThreadBelongsToDifferentBoardWarning(threadMessage);
-
-            		addMessageBox(threadMessage, mThread);
-            	}
-            	catch(MessageNotFetchedException e) {
-            		addThreadNotDownloadedWarning(mThread);
-            	}
-
-                for(BoardReplyLink reference : mBoard.getAllThreadReplies(mThread.getThreadID(), true)) {
-                	try {
-                		addMessageBox(reference.getMessage(), reference);
-                	} catch(MessageNotFetchedException e) {
-                		addReplyNotDownloadedWarning(reference);
-                		// TODO: Ensure that the warning is not displayed before a message whose parent is present:
-                		// An attacker whose is trying to attack a message X might post a message A with an invalid parent ID and set the date 
-                		// of A to the date of X. The SubscribedBoard code will then guess the date of A's parent as its date minus 1
-                		// millisecond,  resulting in the construction of a ghost BoardReplyLink for A's parent with date == date of X - 1ms.
-                		// Therefore, the "Reply not downloaded" warning will be displayed before X even though X's parent might be available
-                		// This problem is inherent to flat (i.e. non-treeview) thread display and therefore not fixed in SubscribedBoard...
-                		// Right now this is only a TO-DO and not FIX-ME because the l10n of the not-downloaded-warning has been chosen carefully
-                		// so it does not state that the not-downloaded message is parent of the next message, it just says "a message is missing here"
-                	}
-                }
-                
-                // After most of the displaying-code has not failed we mark as read
-                if(!mMarktThreadAsUnread)
-            		mThread.markThreadAndRepliesAsReadAndCommit();
-        	}
+			// Mark as unread first, then display
+			if(mMarktThreadAsUnread) {
+				synchronized(mBoard) {
+					mBoard.getThreadLink(mThreadID).markThreadAndRepliesAsUnreadAndCommit();
+				}
+			}
+			
+			// The page is chosen from the projection of the board so only the links of the shown messages are obtained from the database.
+			final ThreadSummary thread = mBoard.getProjection().getThread(mThreadID);
+			final List<MessageSummary> replies = thread.getReplies();
+			final int messageCount = replies.size() + 1;
+			final int offset = getOffset(thread);
+			final int end = Math.min(offset + mPageSize, messageCount);
+			
+			final ArrayList<BoardReplyLink> replyLinks = new ArrayList<BoardReplyLink>(end - offset);
+			
+			// The board is only locked while the links are obtained, not while the page is built: Messages must be linked into the board
+			// meanwhile. Not holding the board lock also allows us to call the identity manager without deadlocks.
+			synchronized(mBoard) {
+				mThread = mBoard.getThreadLink(mThreadID);
+				
+				for(int i = Math.max(offset, 1); i < end; ++i) {
+					try {
+						replyLinks.add(mBoard.getReplyLink(mThreadID, replies.get(i - 1).getMessageID()));
+					} catch(NoSuchMessageException e) {
+						// The reply was deleted after the projection was obtained.
+					}
+				}
+			}
+			
+			makeBreadcrumbs();
+			
+			addPageNavigation(thread, offset, messageCount);
+			
+			if(offset == 0) {
+				try {
+					Message threadMessage = mThread.getMessage();
+					
+					if(threadMessage.isThread() == false)
+						addThreadIsNoThreadWarning(threadMessage);
+					else if(mBoard.contains(threadMessage) == false) // Do "else", one link to the original thread is enough.
+						addThreadBelongsToDifferentBoardWarning(threadMessage);
+					
+					addMessageBox(threadMessage, mThread);
+				}
+				catch(MessageNotFetchedException e) {
+					addThreadNotDownloadedWarning(mThread);
+				}
 			}
+			
+			for(BoardReplyLink reference : replyLinks) {
+				try {
+					addMessageBox(reference.getMessage(), reference);
+				} catch(MessageNotFetchedException e) {
+					addReplyNotDownloadedWarning(reference);
+					// TODO: Ensure that the warning is not displayed before a message whose parent is present:
+					// An attacker whose is trying to attack a message X might post a message A with an invalid parent ID and set the date 
+					// of A to the date of X. The SubscribedBoard code will then guess the date of A's parent as its date minus 1
+					// millisecond,  resulting in the construction of a ghost BoardReplyLink for A's parent with date == date of X - 1ms.
+					// Therefore, the "Reply not downloaded" warning will be displayed before X even though X's parent might be available
+					// This problem is inherent to flat (i.e. non-treeview) thread display and therefore not fixed in SubscribedBoard...
+					// Right now this is only a TO-DO and not FIX-ME because the l10n of the not-downloaded-warning has been chosen carefully
+					// so it does not state that the not-downloaded message is parent of the next message, it just says "a message is missing here"
+				}
 			}
+			
+			addPageNavigation(thread, offset, messageCount);
+			
+			// After most of the displaying-code has not failed we mark the shown messages as read
+			if(!mMarktThreadAsUnread)
+				mThread.markMessagesAsReadAndCommit(offset == 0, replyLinks);
 		} catch(NoSuchMessageException e) {
 			mThread = null;
 			makeBreadcrumbs();
@@ -146,6 +193,84 @@ public final class ThreadPage extends WebPageImpl {
 		}
 	}
 
+	/**
+	 * Get the position of the first message of the page which was requested, see {@link #mOffset}. If the request asks for the first unread
+	 * message or for a certain message, the page which contains it is chosen.
+	 */
+	private int getOffset(final ThreadSummary thread) {
+		final List<MessageSummary> replies = thread.getReplies();
+		int position = -1;
+		
+		if(mShowFirstUnread) {
+			if(!thread.wasRead())
+				position = 0;
+			else {
+				for(int i = 0; i < replies.size(); ++i) {
+					if(!replies.get(i).wasRead()) {
+						position = i + 1;
+						break;
+					}
+				}
+			}
+		} else if(mShowMessageID != null) {
+			if(mShowMessageID.equals(thread.getMessageID()))
+				position = 0;
+			else {
+				for(int i = 0; i < replies.size(); ++i) {
+					if(mShowMessageID.equals(replies.get(i).getMessageID())) {
+						position = i + 1;
+						break;
+					}
+				}
+			}
+		}
+		
+		if(position != -1)
+			return position / mPageSize * mPageSize;
+		
+		if(mOffset != -1 && mOffset <= replies.size())
+			return mOffset;
+		
+		return 0;
+	}
+	
+	/**
+	 * Adds the links to the other pages of the thread if it has more than one page.
+	 */
+	private void addPageNavigation(final ThreadSummary thread, final int offset, final int messageCount) {
+		if(messageCount <= mPageSize)
+			return;
+		
+		final int pageCount = (messageCount + mPageSize - 1) / mPageSize;
+		final int lastOffset = (pageCount - 1) * mPageSize;
+		
+		final HTMLNode navigation = mContentNode.addChild("div", "class", "page-navigation");
+		
+		if(offset > 0) {
+			navigation.addChild("a", "href", getURI(mBoard.getName(), mThreadID, 0, mPageSize), l10n().getString("ThreadPage.Navigation.First"));
+			navigation.addChild("#", " ");
+			navigation.addChild("a", "href", getURI(mBoard.getName(), mThreadID, Math.max(0, offset - mPageSize), mPageSize),
+					l10n().getString("ThreadPage.Navigation.Previous"));
+			navigation.addChild("#", " ");
+		}
+		
+		navigation.addChild("span", "class", "page-number", l10n().getString("ThreadPage.Navigation.Page", new String[] { "page", "pages" },
+				new String[] { Integer.toString(offset / mPageSize + 1), Integer.toString(pageCount) }));
+		
+		if(offset < lastOffset) {
+			navigation.addChild("#", " ");
+			navigation.addChild("a", "href", getURI(mBoard.getName(), mThreadID, offset + mPageSize, mPageSize),
+					l10n().getString("ThreadPage.Navigation.Next"));
+			navigation.addChild("#", " ");
+			navigation.addChild("a", "href", getURI(mBoard.getName(), mThreadID, lastOffset, mPageSize), l10n().getString("ThreadPage.Navigation.Last"));
+		}
+		
+		if(!thread.wasThreadRead()) {
+			navigation.addChild("#", " ");
+			navigation.addChild("a", "href", getFirstUnreadURI(mBoard.getName(), mThreadID), l10n().getString("ThreadPage.Navigation.FirstUnread"));
+		}
+	}
+
 	private void addThreadNotDownloadedWarning(BoardThreadLink ref) {
 		HTMLNode table = mContentNode.addChild("table", new String[] { "border", "width", "class", "id" },
 				new String[] { "0", "100%", "message", ref.getMessageID()});
@@ -162,7 +287,7 @@ public final class ThreadPage extends WebPageImpl {
 
 		HTMLNode title = row.addChild("td", new String[] { "align", "class" },
 				new String[] { "left", "title " + ((ref == null || ref.wasRead()) ? "read" : "unread") });
-		title.addChild("div", "class", "date", mLocalDateFormat.format(ref.getMessageDate()));
+		title.addChild("div", "class", "date", DateFormatter.formatLocalDateTime(ref.getMessageDate()));
 
 		addMarkThreadAsUnreadButton(title, ref);
 
@@ -190,7 +315,7 @@ public final class ThreadPage extends WebPageImpl {
 
 		HTMLNode title = row.addChild("td", new String[] { "align", "class" },
 				new String[] { "left", "title " + ((ref == null || ref.wasRead()) ? "read" : "unread") });
-		title.addChild("div", "class", "date", mLocalDateFormat.format(ref.getMessageDate()));
+		title.addChild("div", "class", "date", DateFormatter.formatLocalDateTime(ref.getMessageDate()));
 
 
 		title.addChild("div", "class", "text", l10n().getString("ThreadPage.ReplyNotDownloadedWarning.Title"));
@@ -256,7 +381,7 @@ public final class ThreadPage extends WebPageImpl {
 				.addChild("span", "class", "name", author.getShortestUniqueName());
 		
         authorNode.addChild("br");
-        authorNode.addChild("#", l10n().getString("ThreadPage.Author.Posts") + ": " + mFreetalk.getMessageManager().getMessagesBy(author).size());
+        authorNode.addChild("#", l10n().getString("ThreadPage.Author.Posts") + ": " + mFreetalk.getMessageManager().getMessageCountBy(author));
         authorNode.addChild("br");
         authorNode.addChild("#", l10n().getString("ThreadPage.Author.TrustersCount") + ": ");
         try {
@@ -326,8 +451,6 @@ public final class ThreadPage extends WebPageImpl {
     /**
      * Shows the given message.
      * 
-     * You have to synchronize on mLocalDateFormat when using this function
-     * 
      * @param message The message which shall be shown. Must not be null.
      * @param ref A reference to the message which is to be displayed. Can be null, then the "message was read?" information will be unavailable. 
      */
@@ -349,7 +472,7 @@ public final class ThreadPage extends WebPageImpl {
 
 		// Title of the message
 		HTMLNode title = row.addChild("td", new String[] { "align", "class" }, new String[] { "left", "title " + ((ref == null || ref.wasRead()) ? "read" : "unread") });
-		title.addChild("div", "class", "date", mLocalDateFormat.format(message.getDate()));
+		title.addChild("div", "class", "date", DateFormatter.formatLocalDateTime(message.getDate()));
 
 
 		if(ref != null && ref instanceof BoardThreadLink)
@@ -633,7 +756,14 @@ public final class ThreadPage extends WebPageImpl {
 	}
 	
 	public static String getFirstUnreadURI(final SubscribedBoard board, final BoardThreadLink thread) {
-		return getURI(board, thread) + "#FirstUnreadMessage";
+		return getFirstUnreadURI(board.getName(), thread.getThreadID());
+	}
+
+	/**
+	 * Get the URI of the page of the thread which contains its first unread message.
+	 */
+	public static String getFirstUnreadURI(final String boardName, final String threadID) {
+		return getURI(boardName, threadID) + "&FirstUnread=true#FirstUnreadMessage";
 	}
 
 	public static String getURI(final SubscribedBoard board, final BoardThreadLink thread) {
@@ -644,9 +774,21 @@ public final class ThreadPage extends WebPageImpl {
 		return Freetalk.PLUGIN_URI + "/showThread?BoardName=" + boardName + "&ThreadID=" + threadID;
 	}
 
+	/**
+	 * Get the URI of the page of the thread which starts at the given position, see {@link #mOffset}.
+	 */
+	public static String getURI(final String boardName, final String threadID, final int offset, final int pageSize) {
+		final String uri = getURI(boardName, threadID) + "&Offset=" + offset;
+		return pageSize != DEFAULT_PAGE_SIZE ? uri + "&PageSize=" + pageSize : uri;
+	}
+
+	/**
+	 * Get the URI of the page of the thread which contains the given message.
+	 */
 	public static URI getURI(final String boardName, final String threadID, final String messageID) {
 		try {
-			return new URI(Freetalk.PLUGIN_URI + "/showThread?BoardName=" + boardName + "&ThreadID=" + threadID + "#" + messageID);
+			return new URI(Freetalk.PLUGIN_URI + "/showThread?BoardName=" + boardName + "&ThreadID=" + threadID + "&MessageID=" + messageID
+					+ "#" + messageID);
 		} catch (URISyntaxException e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares the output of {@link DateFormatter} with SimpleDateFormat, which it replaces.
+ */
+public class DateFormatterTest extends TestCase {
+
+	private static final long MAX_DATE = 200L * 365 * 24 * 60 * 60 * 1000;
+
+	public void testFormat() {
+		final SimpleDateFormat rfc5322 = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss Z", Locale.US);
+		final SimpleDateFormat nntp = new SimpleDateFormat("yyyyMMddHHmmss");
+		nntp.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final SimpleDateFormat xmlDateTime = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+		xmlDateTime.setTimeZone(TimeZone.getTimeZone("UTC"));
+		final SimpleDateFormat xmlDate = new SimpleDateFormat("yyyy-MM-dd");
+		xmlDate.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+		final Random random = new Random(0);
+		for(int i = 0; i < 10000; ++i) {
+			final Date date = new Date(random.nextLong() % MAX_DATE);
+
+			assertEquals(rfc5322.format(date), DateFormatter.formatRFC5322(date));
+			assertEquals(rfc5322.format(date), DateFormatter.formatRFC5322(date)); // Cached
+			assertEquals(nntp.format(date), DateFormatter.formatNNTPDate(date));
+			assertEquals(xmlDateTime.format(date), DateFormatter.formatXMLDateTime(date));
+			assertEquals(xmlDate.format(date), DateFormatter.formatXMLDate(date));
+		}
+	}
+
+	public void testParse() throws ParseException {
+		final Random random = new Random(0);
+		for(int i = 0; i < 10000; ++i) {
+			final Date date = new Date((random.nextLong() % MAX_DATE) / 1000 * 1000);
+
+			assertEquals(date, DateFormatter.parseXMLDateTime(DateFormatter.formatXMLDateTime(date)));
+		}
+
+		assertEquals(new Date(0), DateFormatter.parseXMLDate("1970-01-01"));
+
+		for(String invalid : new String[] { "", "2010-01-01", "2010-13-01 00:00:00", "2010-01-01 24:00:00", "2010-01-01 00:00:00 x" }) {
+			try {
+				DateFormatter.parseXMLDateTime(invalid);
+				fail("Invalid date was accepted: " + invalid);
+			} catch(ParseException e) {}
+		}
+	}
+
+}
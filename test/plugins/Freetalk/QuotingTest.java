@@ -0,0 +1,244 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+import plugins.Freetalk.Quoting.TextElement;
+import plugins.Freetalk.Quoting.TextElementType;
+import freenet.support.URLEncoder;
+
+/**
+ * Compares the trees of {@link Quoting#parseText(String)} with the recursive parser which it replaces.
+ */
+public class QuotingTest extends TestCase {
+
+	private static final Pattern attributePattern = Pattern.compile(
+			"(" +
+				" (\\w+)=((\\S+)|(\"([^\"]*)\"))" +
+			")"
+			, Pattern.MULTILINE|Pattern.DOTALL|Pattern.CASE_INSENSITIVE);
+
+	private static final Pattern keyPattern = Pattern.compile("(CH|SS|US|KS)K@[%,~" + URLEncoder.getSafeURLCharacters() + "]+", Pattern.MULTILINE|Pattern.DOTALL);
+
+	/**
+	 * An element of the tree of the previous parser.
+	 */
+	private static final class OldElement {
+		final TextElementType mType;
+		final HashMap<String, String> mAttributes;
+		String mContent = "";
+		final ArrayList<OldElement> mChildren = new ArrayList<OldElement>();
+		int mConsumedLength = 0;
+
+		OldElement(TextElementType type, HashMap<String, String> attributes) {
+			mType = type;
+			mAttributes = attributes;
+		}
+
+		OldElement(TextElementType type) {
+			this(type, new HashMap<String, String>(1));
+		}
+	}
+
+	/**
+	 * The previous, recursive implementation of parseText().
+	 */
+	private static OldElement oldParseText(String currentText, String tag, HashMap<String,String> args, int maxRecursion) {
+		if (maxRecursion < 0) {
+			return new OldElement(TextElementType.Error);
+		}
+		final OldElement result = new OldElement(TextElementType.fromString(tag), args);
+
+		if (currentText.length() > 0) {
+			if (currentText.substring(0,1).equals("\n")) {
+				result.mConsumedLength++;
+			}
+		}
+
+		final Matcher tagMatcher = Quoting.getTagMatcher(currentText);
+		final Matcher keyMatcher = keyPattern.matcher(currentText);
+
+		while (result.mConsumedLength < currentText.length()) {
+			final int tagPos = tagMatcher.find(result.mConsumedLength) ? tagMatcher.start() : currentText.length();
+			final int keyPos = keyMatcher.find(result.mConsumedLength) ? keyMatcher.start() : currentText.length();
+			final int textEndPos = Math.min(tagPos, keyPos);
+
+			if (textEndPos > result.mConsumedLength) {
+				final OldElement newElement = new OldElement(TextElementType.PlainText);
+				newElement.mContent = currentText.substring(result.mConsumedLength, textEndPos);
+				newElement.mConsumedLength = textEndPos-result.mConsumedLength;
+				result.mChildren.add(newElement);
+				result.mConsumedLength += newElement.mConsumedLength;
+			}
+			if (textEndPos == currentText.length()) {
+				break;
+			}
+			if (textEndPos == tagPos) {
+				result.mConsumedLength += tagMatcher.group().length();
+				final String nextTag = tagMatcher.group(1);
+
+				if (nextTag.equals("/"+tag))
+					return result;
+
+				if (nextTag.substring(0,1).equals("/")) {
+					final OldElement newElement = new OldElement(TextElementType.Error);
+					newElement.mContent = tagMatcher.group();
+					newElement.mConsumedLength = newElement.mContent.length();
+					result.mChildren.add(newElement);
+				} else {
+					final HashMap<String, String> attributes = new HashMap<String,String>();
+					final Matcher attributeMatcher = attributePattern.matcher(tagMatcher.group(4));
+
+					while(attributeMatcher.find()) {
+						final String key = attributeMatcher.group(2).trim().toLowerCase();
+						String value = attributeMatcher.group(3).trim();
+						if(value.length() >= 2 && value.startsWith("\"") && value.endsWith("\""))
+							value = value.substring(1, value.length()-1);
+						attributes.put(key, value);
+					}
+
+					final String textToParse = currentText.substring(tagMatcher.end());
+					final OldElement subElement = oldParseText(textToParse, nextTag, attributes, maxRecursion-1);
+					if (subElement.mType == TextElementType.Error) {
+						subElement.mContent = currentText.substring(tagMatcher.start(), tagMatcher.end()+subElement.mConsumedLength);
+					}
+					result.mChildren.add(subElement);
+					result.mConsumedLength += subElement.mConsumedLength;
+				}
+			} else if (textEndPos == keyPos) {
+				final OldElement newElement = new OldElement(TextElementType.Link);
+				newElement.mContent = keyMatcher.group();
+				newElement.mConsumedLength = newElement.mContent.length();
+				result.mChildren.add(newElement);
+				result.mConsumedLength += newElement.mConsumedLength;
+			}
+		}
+		return result;
+	}
+
+	private static String oldParseText(String text) {
+		return toString(oldParseText(text, "", new HashMap<String,String>(1), 20));
+	}
+
+	private static String toString(OldElement element) {
+		final StringBuilder result = new StringBuilder();
+		result.append(element.mType).append(new TreeMap<String, String>(element.mAttributes)).append('"').append(element.mContent).append('"');
+		result.append('(');
+		for(OldElement child : element.mChildren)
+			result.append(toString(child));
+		result.append(')');
+		return result.toString();
+	}
+
+	private static String toString(TextElement element) {
+		final StringBuilder result = new StringBuilder();
+		result.append(element.mType).append(new TreeMap<String, String>(element.mAttributes)).append('"').append(element.mContent).append('"');
+		result.append('(');
+		for(TextElement child : element.mChildren)
+			result.append(toString(child));
+		result.append(')');
+		return result.toString();
+	}
+
+	private static String parseText(String text) {
+		return toString(Quoting.parseText(text));
+	}
+
+	private static void assertSameTree(String text) {
+		assertEquals(text, oldParseText(text), parseText(text));
+	}
+
+	public void testNesting() {
+		assertSameTree("a[quote]b[b]c[/b]d[/quote]e");
+		assertSameTree("[quote author=\"x@y.freetalk\" message=\"id@y\"]\na\n[quote author=z]\nb[/quote]\n[/quote]\nc");
+		assertSameTree("[i][b]x[/b][/i][code]y[/code]");
+
+		final TextElement root = Quoting.parseText("a[quote author=\"x\"] b[b]c[/b][/quote]");
+		assertEquals(TextElementType.PlainText, root.mType);
+		assertEquals(2, root.mChildren.size());
+		final TextElement quote = root.mChildren.get(1);
+		assertEquals(TextElementType.Quote, quote.mType);
+		assertEquals("x", quote.mAttributes.get("author"));
+		assertEquals(TextElementType.Bold, quote.mChildren.get(1).mType);
+		assertEquals("c", quote.mChildren.get(1).mChildren.get(0).mContent);
+	}
+
+	public void testStrayAndUnclosedTags() {
+		assertSameTree("a[/quote]b");
+		assertSameTree("[b]a[/i]b[/b]");
+		assertSameTree("[quote]a[b]b");
+		assertSameTree("[b]a[/B]b[/b]");
+
+		final TextElement root = Quoting.parseText("a[/quote]b");
+		assertEquals(TextElementType.Error, root.mChildren.get(1).mType);
+		assertEquals("[/quote]", root.mChildren.get(1).mContent);
+	}
+
+	public void testDepthLimit() {
+		final StringBuilder allowed = new StringBuilder();
+		for(int i = 0; i < 20; ++i)
+			allowed.append("[b]");
+		allowed.append("x");
+
+		TextElement element = Quoting.parseText(allowed.toString());
+		for(int i = 0; i < 20; ++i) {
+			element = element.mChildren.get(0);
+			assertEquals(TextElementType.Bold, element.mType);
+		}
+		assertEquals("x", element.mChildren.get(0).mContent);
+		assertSameTree(allowed.toString());
+
+		final String tooDeep = allowed.toString().replace("x", "[i]y[/i]z");
+		assertSameTree(tooDeep);
+		assertSameTree(tooDeep + "[/b][/b]w");
+	}
+
+	public void testLeadingNewlines() {
+		assertSameTree("\na");
+		assertSameTree("\n\na");
+		assertSameTree("[quote]\na[/quote]\n[b]\n\nb[/b]");
+		assertEquals("a", Quoting.parseText("\na").mChildren.get(0).mContent);
+	}
+
+	public void testKeys() {
+		assertSameTree("see CHK@abc,def,AAIC--8/file and [b]KSK@test[/b]");
+	}
+
+	public void testRandomTagSequences() {
+		final String[] tokens = { "[quote]", "[/quote]", "[b]", "[/b]", "[i]", "[/i]", "[code]", "[/code]", "[quote author=x]",
+			"[img]", "[/img]", "\n", "text", " ", "KSK@key", "[unknown]" };
+		final Random random = new Random(0);
+
+		for(int i = 0; i < 10000; ++i) {
+			final StringBuilder text = new StringBuilder();
+			final int length = random.nextInt(40);
+			for(int j = 0; j < length; ++j)
+				text.append(tokens[random.nextInt(tokens.length)]);
+			assertSameTree(text.toString());
+		}
+	}
+
+	public void testImmutable() {
+		final TextElement root = Quoting.parseText("[quote author=x]a[/quote]");
+		try {
+			root.mChildren.clear();
+			fail("Children must not be modifiable");
+		} catch(UnsupportedOperationException e) { }
+
+		final Map<String, String> attributes = root.mChildren.get(0).mAttributes;
+		try {
+			attributes.put("author", "y");
+			fail("Attributes must not be modifiable");
+		} catch(UnsupportedOperationException e) { }
+	}
+
+}
@@ -5,17 +5,23 @@ package plugins.Freetalk.WoT;
 
 import java.net.MalformedURLException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 
 import plugins.Freetalk.Board;
+import plugins.Freetalk.BoardProjection;
+import plugins.Freetalk.BoardProjection.MessageSummary;
+import plugins.Freetalk.BoardProjection.ThreadSummary;
 import plugins.Freetalk.DatabaseBasedTest;
 import plugins.Freetalk.FetchFailedMarker;
+import plugins.Freetalk.IdentityStatistics;
 import plugins.Freetalk.Message;
 import plugins.Freetalk.Message.MessageID;
 import plugins.Freetalk.MessageList;
@@ -23,6 +29,7 @@ import plugins.Freetalk.MessageManager;
 import plugins.Freetalk.Persistent;
 import plugins.Freetalk.SubscribedBoard;
 import plugins.Freetalk.MessageList.MessageListFetchFailedMarker;
+import plugins.Freetalk.MessageList.MessageReference;
 import plugins.Freetalk.SubscribedBoard.BoardThreadLink;
 import plugins.Freetalk.SubscribedBoard.BoardMessageLink;
 import plugins.Freetalk.exceptions.InvalidParameterException;
@@ -36,6 +43,7 @@ import com.db4o.query.Query;
 
 import freenet.keys.FreenetURI;
 import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
 
 
 public class WoTMessageManagerTest extends DatabaseBasedTest {
@@ -273,6 +281,87 @@ public class WoTMessageManagerTest extends DatabaseBasedTest {
 		}
 		
 		assertFalse(expectedThreads.hasNext());
+		
+		verifyProjection();
+	}
+	
+	/**
+	 * Verifies that the {@link BoardProjection} of the test board matches the result of the queries of the board.
+	 */
+	private void verifyProjection() {
+		final BoardProjection projection = mSubscribedBoard.getProjection();
+		
+		final Iterator<String> expectedThreads = mThreads.iterator();
+		int messageCount = 0;
+		
+		for(final ThreadSummary thread : projection.getThreads()) {
+			assertTrue(expectedThreads.hasNext());
+			assertEquals(expectedThreads.next(), thread.getThreadID());
+			
+			final HashSet<String> expectedReplies = new HashSet<String>();
+			for(final BoardMessageLink replyRef : mSubscribedBoard.getAllThreadReplies(thread.getThreadID(), false))
+				expectedReplies.add(replyRef.getMessageID());
+			
+			assertEquals(expectedReplies.size(), thread.getReplyCount());
+			for(final MessageSummary reply : thread.getReplies()) {
+				assertTrue(expectedReplies.contains(reply.getMessageID()));
+				assertEquals(thread.getThreadID(), reply.getThreadID());
+			}
+			
+			messageCount += 1 + thread.getReplyCount();
+		}
+		
+		assertFalse(expectedThreads.hasNext());
+		assertEquals(mSubscribedBoard.messageCount(), messageCount);
+		assertEquals(mSubscribedBoard.messageCount(), projection.getMessageCount());
+		assertEquals(mSubscribedBoard.getUnreadMessageCount(), projection.getUnreadMessageCount());
+		
+		// The projection is only built once and updated when links are committed, so the summaries must match the current links.
+		for(final MessageSummary message : projection.getMessages()) {
+			final BoardMessageLink link;
+			try {
+				link = mSubscribedBoard.getMessageByIndex(message.getIndex());
+			} catch(NoSuchMessageException e) {
+				fail("The projection contains a deleted link: " + message.getMessageID());
+				return;
+			}
+			
+			assertEquals(link.getMessageID(), message.getMessageID());
+			assertEquals(link.wasRead(), message.wasRead());
+			assertEquals(link.wasFetched(), message.wasFetched());
+		}
+	}
+	
+	/**
+	 * Tests whether read-flag changes are applied to an existing {@link BoardProjection} when they are committed.
+	 */
+	public void testProjectionReadFlags() throws MalformedURLException, InvalidParameterException, NoSuchIdentityException, NoSuchMessageException {
+		WoTMessage thread0 = createTestMessage(mOwnIdentities[0], null, null);
+		mMessageManager.onMessageReceived(thread0); mFetchedStates.put(thread0.getID(), true);
+		mThreads.addFirst(thread0.getID());
+		
+		WoTMessage thread0reply0 = createTestMessage(mOwnIdentities[1], thread0, thread0.getURI());
+		mMessageManager.onMessageReceived(thread0reply0); mFetchedStates.put(thread0reply0.getID(), true);
+		mReplies.put(thread0.getID(), new LinkedList<String>());
+		mReplies.get(thread0.getID()).addLast(thread0reply0.getID());
+		verifyStructure();
+		
+		final BoardProjection before = mSubscribedBoard.getProjection();
+		assertEquals(2, before.getUnreadMessageCount());
+		
+		mSubscribedBoard.getThreadLink(thread0.getID()).markThreadAndRepliesAsReadAndCommit();
+		
+		final BoardProjection after = mSubscribedBoard.getProjection();
+		assertNotSame(before, after);
+		assertEquals(0, after.getUnreadMessageCount());
+		assertTrue(after.getThread(thread0.getID()).wasThreadRead());
+		assertEquals(0, after.getThread(thread0.getID()).getUnreadReplyCount());
+		
+		// The old projection must not change
+		assertEquals(2, before.getUnreadMessageCount());
+		assertFalse(before.getThread(thread0.getID()).wasThreadRead());
+		
+		verifyProjection();
 	}
 
 	
@@ -487,6 +576,10 @@ public class WoTMessageManagerTest extends DatabaseBasedTest {
 			verifyStructure(); 
 		}
 		
+		// The counters of the IdentityStatistics are used instead of getMessagesBy().size() by the web interface.
+		assertEquals(2, mMessageManager.getMessageCountBy(mOwnIdentities[1]));
+		assertEquals(2, mMessageManager.getMessageCountBy(mOwnIdentities[0]));
+		
 		mMessageManager.beforeIdentityDeletion(mOwnIdentities[1]);
 		mFetchedStates.put(thread0.getID(), false);
 		mFetchedStates.put(thread0reply0.getID(), false);
@@ -499,6 +592,9 @@ public class WoTMessageManagerTest extends DatabaseBasedTest {
 	
 		verifyStructure(); // Check whether Board.deleteMessage() worked.
 		
+		assertEquals(0, mMessageManager.getMessageCountBy(mOwnIdentities[1]));
+		assertEquals(2, mMessageManager.getMessageCountBy(mOwnIdentities[0]));
+		
 		try {
 			mMessageManager.getOwnMessage(thread0.getID());
 			fail("onIdentityDeletion() did not delete a Message object!");
@@ -512,6 +608,73 @@ public class WoTMessageManagerTest extends DatabaseBasedTest {
 		catch(NoSuchMessageListException e) { }
 	}
 	
+	private ArrayList<String> getMessageIDsByMinimumLinkDate(SubscribedBoard board, Date minimumLinkDate) {
+		final ArrayList<String> result = new ArrayList<String>();
+		Date previousLinkDate = minimumLinkDate;
+		for(BoardMessageLink link : board.getMessagesByMinimumLinkDate(minimumLinkDate)) {
+			assertFalse(link.getLinkDate().before(previousLinkDate)); // Lower bound and ascending order
+			previousLinkDate = link.getLinkDate();
+			result.add(link.getMessageID());
+		}
+		return result;
+	}
+	
+	/**
+	 * Tests the query which NNTP NEWNEWS uses: Messages must be returned by the date when they were linked, not by their message date,
+	 * so a thread whose ghost link is fetched after its replies is listed after them.
+	 */
+	public void testGetMessagesByMinimumLinkDate() throws Exception {
+		mMessageManager.getOrCreateBoard("eng.test.other");
+		final SubscribedBoard otherBoard = mMessageManager.subscribeToBoard(mOwnIdentities[0], "eng.test.other");
+		mSubscribedBoards.add(otherBoard);
+		mBoards.add(mMessageManager.getBoardByName(otherBoard.getName()));
+		
+		WoTMessage oldThread = createTestMessage(mOwnIdentities[1], null, null);
+		mMessageManager.onMessageReceived(oldThread);
+		
+		Thread.sleep(10);
+		final Date since = CurrentTimeUTC.get();
+		
+		WoTMessage thread = createTestMessage(mOwnIdentities[2], null, null);
+		WoTMessage reply = createTestMessage(mOwnIdentities[3], thread, thread.getURI());
+		
+		mMessageManager.onMessageReceived(reply);
+		
+		for(SubscribedBoard board : mSubscribedBoards) {
+			// The ghost link of the thread has no link date yet
+			assertNull(board.getThreadLink(thread.getID()).getLinkDate());
+			
+			final ArrayList<String> expected = new ArrayList<String>();
+			expected.add(reply.getID());
+			assertEquals(expected, getMessageIDsByMinimumLinkDate(board, since));
+		}
+		
+		Thread.sleep(10);
+		mMessageManager.onMessageReceived(thread);
+		
+		// The message date of the thread is older than the one of the reply but it was linked later
+		assertFalse(thread.getDate().after(reply.getDate()));
+		final ArrayList<String> expected = new ArrayList<String>();
+		expected.add(reply.getID());
+		expected.add(thread.getID());
+		
+		// The messages were posted to both boards, NEWNEWS lists each ID once
+		final LinkedHashSet<String> newMessageIDs = new LinkedHashSet<String>();
+		for(SubscribedBoard board : mSubscribedBoards) {
+			final ArrayList<String> messageIDs = getMessageIDsByMinimumLinkDate(board, since);
+			assertEquals(expected, messageIDs);
+			newMessageIDs.addAll(messageIDs);
+			
+			assertTrue(board.getThreadLink(thread.getID()).getLinkDate().after(board.getReplyLink(thread.getID(), reply.getID()).getLinkDate()));
+			assertEquals(3, getMessageIDsByMinimumLinkDate(board, new Date(0)).size());
+		}
+		assertEquals(expected, new ArrayList<String>(newMessageIDs));
+		
+		Thread.sleep(10);
+		for(SubscribedBoard board : mSubscribedBoards)
+			assertEquals(0, getMessageIDsByMinimumLinkDate(board, CurrentTimeUTC.get()).size());
+	}
+	
 	public void testOnMessageFetchFailed() {
 		
 	}
@@ -612,4 +775,170 @@ public class WoTMessageManagerTest extends DatabaseBasedTest {
 		assertEquals(1, messageLists.size());
 		assertEquals(messageLists.next().getID(), marker.getMessageListID());
 	}
+	
+	/**
+	 * Creates a not-stored message list of the given author with the next free index which references the given message and one random
+	 * message which does not exist.
+	 */
+	private WoTMessageList createTestMessageList(WoTOwnIdentity author, Message existingMessage) throws MalformedURLException, InvalidParameterException, NoSuchIdentityException {
+		return createTestMessageList(author, existingMessage, mMessageListIndex++);
+	}
+	
+	/**
+	 * Creates a not-stored message list of the given author with the given index which references the given message and one random
+	 * message which does not exist.
+	 */
+	private WoTMessageList createTestMessageList(WoTOwnIdentity author, Message existingMessage, int index) throws MalformedURLException, InvalidParameterException, NoSuchIdentityException {
+		List<MessageReference> references = new ArrayList<MessageReference>(2);
+		references.add(new MessageReference(MessageID.construct(existingMessage), new FreenetURI("CHK@"), mBoard, CurrentTimeUTC.get()));
+		references.add(new MessageReference(MessageID.constructRandomID(author), new FreenetURI("CHK@"), mBoard, CurrentTimeUTC.get()));
+		
+		WoTMessageList list = new WoTMessageList(mFreetalk, author, WoTMessageList.assembleURI(author.getRequestURI(), index), references);
+		list.initializeTransient(mFreetalk);
+		return list;
+	}
+	
+	private void verifyReceivedMessageLists(List<WoTMessageList> lists, Message existingMessage) throws NoSuchMessageListException {
+		for(WoTMessageList list : lists) {
+			final MessageList storedList = mMessageManager.getMessageList(list.getID());
+			
+			for(MessageReference ref : storedList)
+				assertEquals(ref.getMessageID().equals(existingMessage.getID()), ref.wasMessageDownloaded());
+		}
+	}
+	
+	/**
+	 * Tests whether {@link MessageManager#onMessageListsReceived} stores the same state as calling onMessageListReceived for each list:
+	 * All lists are stored, references to existing messages are marked as downloaded, duplicates are ignored and the IdentityStatistics are updated.
+	 */
+	public void testOnMessageListsReceived() throws Exception {
+		final WoTOwnIdentity author = mOwnIdentities[0];
+		final WoTMessage message = createTestMessage(author, null, null); // Stores the message list with index 0
+		mMessageManager.onMessageReceived(message);
+		
+		final ArrayList<WoTMessageList> batch = new ArrayList<WoTMessageList>();
+		for(int i = 0; i < 8; ++i)
+			batch.add(createTestMessageList(author, message));
+		
+		// A list which is contained twice should be ignored the second time
+		batch.add(batch.get(0));
+		
+		mMessageManager.onMessageListsReceived(batch);
+		
+		verifyReceivedMessageLists(batch, message);
+		
+		Query q = db.query();
+		q.constrain(MessageList.class);
+		assertEquals(1 + 8, q.execute().size());
+		
+		final ObjectSet<IdentityStatistics> allStats = mMessageManager.getAllIdentityStatistics();
+		assertEquals(1, allStats.size());
+		final IdentityStatistics stats = allStats.next();
+		assertEquals(0, stats.getIndexOfOldestAvailableMessageList());
+		assertEquals(8, stats.getIndexOfLatestAvailableMessageList());
+		
+		// Receiving the same lists again must not change anything
+		mMessageManager.onMessageListsReceived(batch);
+		verifyReceivedMessageLists(batch, message);
+	}
+	
+	/**
+	 * Compares the time which onMessageListReceived and onMessageListsReceived need for storing the same amount of message lists of the
+	 * same author. The batch stores all lists in one transaction instead of one per list, so it must not be slower. The times are logged.
+	 */
+	public void testOnMessageListsReceivedBenchmark() throws Exception {
+		final int listCount = 128;
+		final WoTOwnIdentity author = mOwnIdentities[0];
+		final WoTMessage message = createTestMessage(author, null, null);
+		mMessageManager.onMessageReceived(message);
+		
+		final ArrayList<WoTMessageList> singleLists = new ArrayList<WoTMessageList>(listCount);
+		final ArrayList<WoTMessageList> batchLists = new ArrayList<WoTMessageList>(listCount);
+		for(int i = 0; i < listCount; ++i)
+			singleLists.add(createTestMessageList(author, message));
+		for(int i = 0; i < listCount; ++i)
+			batchLists.add(createTestMessageList(author, message));
+		
+		long startTime = System.currentTimeMillis();
+		for(WoTMessageList list : singleLists)
+			mMessageManager.onMessageListReceived(list);
+		final long singleTime = System.currentTimeMillis() - startTime;
+		
+		startTime = System.currentTimeMillis();
+		mMessageManager.onMessageListsReceived(batchLists);
+		final long batchTime = System.currentTimeMillis() - startTime;
+		
+		verifyReceivedMessageLists(singleLists, message);
+		verifyReceivedMessageLists(batchLists, message);
+		
+		Logger.normal(this, "Storing " + listCount + " message lists: onMessageListReceived: " + singleTime + " ms; "
+				+ "onMessageListsReceived: " + batchTime + " ms");
+		
+		// The tolerance prevents failures due to the granularity of the clock if both are fast.
+		assertTrue("onMessageListsReceived took " + batchTime + " ms, onMessageListReceived " + singleTime + " ms",
+				batchTime <= singleTime + 50);
+	}
+	
+	/**
+	 * Tests whether {@link MessageManager#onMessageListsReceived} produces the same database state as calling onMessageListReceived for
+	 * each list: One author receives its lists one by one, another author receives lists with the same indices as a batch.
+	 * The indices contain a gap so the IdentityStatistics have to deal with a fragmented range of fetched lists.
+	 */
+	public void testOnMessageListsReceivedEqualsSingleLists() throws Exception {
+		final WoTOwnIdentity singleAuthor = mOwnIdentities[0];
+		final WoTOwnIdentity batchAuthor = mOwnIdentities[1];
+		
+		mMessageListIndex = 0;
+		final WoTMessage message = createTestMessage(singleAuthor, null, null); // Stores the message list with index 0
+		mMessageManager.onMessageReceived(message);
+		mMessageListIndex = 0;
+		mMessageManager.onMessageReceived(createTestMessage(batchAuthor, null, null));
+		
+		final int[] indices = { 1, 2, 3, 5, 6, 7 };
+		final ArrayList<WoTMessageList> singleLists = new ArrayList<WoTMessageList>(indices.length);
+		final ArrayList<WoTMessageList> batchLists = new ArrayList<WoTMessageList>(indices.length);
+		for(int index : indices) {
+			singleLists.add(createTestMessageList(singleAuthor, message, index));
+			batchLists.add(createTestMessageList(batchAuthor, message, index));
+		}
+		
+		for(WoTMessageList list : singleLists)
+			mMessageManager.onMessageListReceived(list);
+		mMessageManager.onMessageListsReceived(batchLists);
+		
+		verifyReceivedMessageLists(singleLists, message);
+		verifyReceivedMessageLists(batchLists, message);
+		
+		Query q = db.query();
+		q.constrain(MessageList.class);
+		assertEquals(2 * (1 + indices.length), q.execute().size());
+		
+		IdentityStatistics singleStats = null;
+		IdentityStatistics batchStats = null;
+		for(IdentityStatistics stats : mMessageManager.getAllIdentityStatistics()) {
+			if(stats.getIdentity() == singleAuthor)
+				singleStats = stats;
+			else if(stats.getIdentity() == batchAuthor)
+				batchStats = stats;
+		}
+		
+		assertNotNull(singleStats);
+		assertNotNull(batchStats);
+		assertEquals(singleStats.getIndexOfOldestAvailableMessageList(), batchStats.getIndexOfOldestAvailableMessageList());
+		assertEquals(singleStats.getIndexOfLatestAvailableMessageList(), batchStats.getIndexOfLatestAvailableMessageList());
+		
+		// The lists of both authors reference the same messages so the same references must be marked as downloaded.
+		for(int i = 0; i < indices.length; ++i) {
+			final MessageList singleList = mMessageManager.getMessageList(singleLists.get(i).getID());
+			final MessageList batchList = mMessageManager.getMessageList(batchLists.get(i).getID());
+			
+			final Iterator<MessageReference> batchRefs = batchList.iterator();
+			for(MessageReference singleRef : singleList) {
+				final MessageReference batchRef = batchRefs.next();
+				assertEquals(singleRef.getMessageID().equals(message.getID()), batchRef.getMessageID().equals(message.getID()));
+				assertEquals(singleRef.wasMessageDownloaded(), batchRef.wasMessageDownloaded());
+			}
+			assertFalse(batchRefs.hasNext());
+		}
+	}
 }
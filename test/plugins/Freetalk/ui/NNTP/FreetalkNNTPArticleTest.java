@@ -0,0 +1,90 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk.ui.NNTP;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+/**
+ * Compares {@link FreetalkNNTPArticle#parseBBCodeToNNTPQuotes(String)} with the regular expression based converter which it replaces.
+ */
+public class FreetalkNNTPArticleTest extends TestCase {
+
+	/**
+	 * The previous implementation of parseBBCodeToNNTPQuotes().
+	 */
+	private static String oldParseBBCodeToNNTPQuotes(String body) {
+		final String pat = "\\[quote( author=\"([^\"]+)\" message=\"([^\"]+)\")?\\](.+)\\[/quote\\]";
+		final Pattern quotePattern = Pattern.compile(pat, Pattern.DOTALL);
+		body = Matcher.quoteReplacement(body);
+		Matcher quoteMatcher = quotePattern.matcher(body);
+		while(quoteMatcher.find()) {
+			final String replacement = "> " + quoteMatcher.group(4).replace("\n", "\n> ");
+			body = quoteMatcher.replaceFirst(replacement);
+			body = Matcher.quoteReplacement(body);
+			quoteMatcher = quotePattern.matcher(body);
+		}
+		final Pattern trimEmpty = Pattern.compile("^((>\\s*)*\\n)+");
+		return trimEmpty.matcher(body).replaceFirst("");
+	}
+
+	private static void assertConversion(final String expected, final String body) {
+		assertEquals(expected, FreetalkNNTPArticle.parseBBCodeToNNTPQuotes(body));
+	}
+
+	/**
+	 * Nested quotes whose closing tags are followed by a line break are converted as before.
+	 */
+	public void testNestedQuotesEqualOldConverter() {
+		final String[] bodies = {
+			"Text without quotes\nin two lines",
+			"[quote]a[/quote]\nb",
+			"[quote]a\n[quote]b[/quote]\nc[/quote]\nd",
+			"[quote author=\"x@y.freetalk\" message=\"id@y\"]a\n[quote]b\nc[/quote]\nd[/quote]\ne",
+			"[quote]a\n[quote]b\n[quote]c[/quote]\nd[/quote]\ne[/quote]\nf",
+			"\n\nLeading empty lines are removed",
+		};
+
+		for(String body : bodies)
+			assertEquals(body, oldParseBBCodeToNNTPQuotes(body), FreetalkNNTPArticle.parseBBCodeToNNTPQuotes(body));
+	}
+
+	/**
+	 * The old converter matched the first opening tag with the last closing tag, so it mixed up sibling quotes.
+	 */
+	public void testSiblingQuotes() {
+		final String body = "x\n[quote]a\n[quote]b[/quote]\nc\n[quote]d[/quote]\ne[/quote]\nf";
+		assertFalse(oldParseBBCodeToNNTPQuotes(body).equals(FreetalkNNTPArticle.parseBBCodeToNNTPQuotes(body)));
+		assertConversion("x\n> a\n> > b\n> c\n> > d\n> e\nf", body);
+	}
+
+	/**
+	 * The line break which follows a quote tag belongs to the tag, as in the quotes which the web interface creates, so it does not
+	 * become an empty quoted line anymore.
+	 */
+	public void testLineBreakAfterTag() {
+		assertConversion("> a\nb", "[quote]\na\n[/quote]\nb");
+		assertConversion("> > a\n> b\nc", "[quote]\n[quote]\na\n[/quote]\nb\n[/quote]\nc");
+	}
+
+	public void testQuoteWithinLine() {
+		assertConversion("x \n> a\n y", "x [quote]a[/quote] y");
+	}
+
+	public void testLeadingEmptyQuoteLines() {
+		assertConversion("> a\nb", "[quote]\n\n\na[/quote]\nb");
+	}
+
+	public void testUnmatchedTags() {
+		assertConversion("a[/quote]\nb", "a[/quote]\nb");
+		assertConversion("> a\n> b", "[quote]a\nb");
+	}
+
+	public void testSpecialCharacters() {
+		assertConversion("> $1 \\n\nb", "[quote]$1 \\n[/quote]\nb");
+	}
+
+}
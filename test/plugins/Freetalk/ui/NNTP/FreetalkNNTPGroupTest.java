@@ -0,0 +1,41 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk.ui.NNTP;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests {@link FreetalkNNTPGroup#matchesWildmat(String, String)}, which NEWNEWS uses to select the groups.
+ */
+public class FreetalkNNTPGroupTest extends TestCase {
+
+	public void testWildcards() {
+		assertTrue(FreetalkNNTPGroup.matchesWildmat("en.test", "*"));
+		assertTrue(FreetalkNNTPGroup.matchesWildmat("en.test", "en.*"));
+		assertTrue(FreetalkNNTPGroup.matchesWildmat("en.test", "en.t?st"));
+		assertFalse(FreetalkNNTPGroup.matchesWildmat("en.test", "en"));
+		assertFalse(FreetalkNNTPGroup.matchesWildmat("en.test", "en.t?"));
+	}
+
+	public void testSpecialCharactersAreLiteral() {
+		assertFalse(FreetalkNNTPGroup.matchesWildmat("enXtest", "en.test"));
+		assertTrue(FreetalkNNTPGroup.matchesWildmat("en.te(s)t+", "en.te(s)t+"));
+	}
+
+	public void testPatternList() {
+		assertTrue(FreetalkNNTPGroup.matchesWildmat("en.test", "de.*,en.t?st"));
+		assertFalse(FreetalkNNTPGroup.matchesWildmat("en.test", "de.*,fr.*"));
+	}
+
+	/**
+	 * The last matching pattern decides.
+	 */
+	public void testNegation() {
+		assertFalse(FreetalkNNTPGroup.matchesWildmat("en.test", "en.*,!*.test"));
+		assertTrue(FreetalkNNTPGroup.matchesWildmat("en.test", "!*.test,en.*"));
+		assertTrue(FreetalkNNTPGroup.matchesWildmat("en.other", "en.*,!*.test"));
+		assertFalse(FreetalkNNTPGroup.matchesWildmat("en.test", "!en.*"));
+	}
+
+}
@@ -0,0 +1,176 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package plugins.Freetalk.ui.NNTP;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import plugins.Freetalk.DatabaseBasedTest;
+
+/**
+ * Drives a {@link FreetalkNNTPHandler} over a loopback socket.
+ */
+public class FreetalkNNTPHandlerTest extends DatabaseBasedTest {
+
+	private static final int TIMEOUT = 10 * 1000;
+
+	private static final int MAX_POST_SIZE = 1024;
+
+	private ServerSocket mServerSocket;
+
+	private Socket mClientSocket;
+
+	private Thread mHandlerThread;
+
+	private InputStream mInput;
+
+	private OutputStream mOutput;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+
+		mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+		mClientSocket = new Socket(mServerSocket.getInetAddress(), mServerSocket.getLocalPort());
+		mClientSocket.setSoTimeout(TIMEOUT);
+
+		final Socket serverSocket = mServerSocket.accept();
+		mHandlerThread = new Thread(new FreetalkNNTPHandler(mFreetalk, serverSocket, TIMEOUT, MAX_POST_SIZE,
+				new FreetalkNNTPOverviewCache()));
+		mHandlerThread.start();
+
+		mInput = mClientSocket.getInputStream();
+		mOutput = mClientSocket.getOutputStream();
+
+		assertTrue(readLine().startsWith("200 "));
+	}
+
+	protected void tearDown() throws Exception {
+		mClientSocket.close();
+		mHandlerThread.join(TIMEOUT);
+		mServerSocket.close();
+
+		super.tearDown();
+	}
+
+	private void sendLine(final String line) throws IOException {
+		mOutput.write((line + "\r\n").getBytes("UTF-8"));
+		mOutput.flush();
+	}
+
+	private String readLine() throws IOException {
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		int b;
+		while ((b = mInput.read()) != '\n') {
+			assertTrue("Connection closed", b >= 0);
+			if (b != '\r')
+				line.write(b);
+		}
+		return line.toString("UTF-8");
+	}
+
+	private ArrayList<String> readTextResponse() throws IOException {
+		final ArrayList<String> lines = new ArrayList<String>();
+		String line;
+		while (!(line = readLine()).equals("."))
+			lines.add(line);
+		return lines;
+	}
+
+	public void testCompressDeflate() throws IOException {
+		if (!FreetalkNNTPHandler.isCompressionSupported())
+			return;
+
+		sendLine("CAPABILITIES");
+		assertTrue(readLine().startsWith("101 "));
+		assertTrue(readTextResponse().contains("COMPRESS DEFLATE"));
+
+		sendLine("COMPRESS DEFLATE");
+		assertTrue(readLine().startsWith("206 "));
+
+		// Everything after the 206 response is compressed
+		mOutput = FreetalkNNTPHandler.newSyncFlushDeflaterOutputStream(mOutput, new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+		mInput = new InflaterInputStream(mInput, new Inflater(true));
+
+		sendLine("DATE");
+		assertTrue(readLine().matches("111 \\d{14}"));
+
+		sendLine("CAPABILITIES");
+		assertTrue(readLine().startsWith("101 "));
+		assertFalse(readTextResponse().contains("COMPRESS DEFLATE"));
+
+		sendLine("COMPRESS DEFLATE");
+		assertTrue(readLine().startsWith("502 "));
+
+		sendLine("QUIT");
+		assertTrue(readLine().startsWith("205 "));
+	}
+
+	public void testNewNews() throws IOException {
+		sendLine("NEWNEWS * 20100101");
+		assertTrue(readLine().startsWith("501 "));
+
+		sendLine("NEWNEWS * 20100101 0000 GMT");
+		assertTrue(readLine().startsWith("501 "));
+
+		sendLine("NEWNEWS * 20100101 000000 GMT");
+		assertTrue(readLine().startsWith("480 "));
+
+		sendLine("QUIT");
+		assertTrue(readLine().startsWith("205 "));
+	}
+
+	public void testPipelining() throws IOException {
+		sendLine("DATE\r\nCAPABILITIES\r\nDATE");
+
+		assertTrue(readLine().startsWith("111 "));
+		assertTrue(readLine().startsWith("101 "));
+		assertTrue(readTextResponse().contains("POST"));
+		assertTrue(readLine().startsWith("111 "));
+
+		sendLine("QUIT");
+		assertTrue(readLine().startsWith("205 "));
+	}
+
+	public void testPostTooLarge() throws IOException {
+		sendLine("POST");
+		assertTrue(readLine().startsWith("340 "));
+
+		final StringBuilder article = new StringBuilder();
+		article.append("From: a@b\r\nNewsgroups: test\r\nSubject: test\r\n\r\n");
+		while (article.length() <= MAX_POST_SIZE)
+			article.append("..0123456789012345678901234567890123456789\r\n");
+		article.append(".");
+		sendLine(article.toString());
+		assertTrue(readLine().startsWith("441 "));
+
+		// The whole article was consumed so the next command works
+		sendLine("DATE");
+		assertTrue(readLine().startsWith("111 "));
+
+		sendLine("QUIT");
+		assertTrue(readLine().startsWith("205 "));
+	}
+
+	public void testUnsupportedAlgorithm() throws IOException {
+		sendLine("COMPRESS LZMA");
+		assertTrue(readLine().startsWith("503 "));
+
+		// The connection stays uncompressed
+		sendLine("DATE");
+		assertTrue(readLine().startsWith("111 "));
+
+		sendLine("QUIT");
+		assertTrue(readLine().startsWith("205 "));
+	}
+
+}